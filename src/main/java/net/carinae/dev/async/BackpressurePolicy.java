@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import org.springframework.core.style.ToStringCreator;
+
+
+/**
+ * What to do with a task enqueued while the queue is over capacity, see
+ * {@link EnqueueBackpressure}.
+ *
+ * @author Carlos Vara
+ */
+public final class BackpressurePolicy {
+
+    public enum Action {
+        /**
+         * Wait until the queue drains, up to a timeout, before the enqueuing
+         * transaction. Rejected if still over capacity when enqueued.
+         */
+        BLOCK,
+        /** Fail right away. */
+        REJECT,
+        /** Enqueue it anyway, but not to be run before a delay. */
+        DEFER
+    }
+
+
+    /**
+     * Waits for the queue to drain below its low watermark, and fails if it
+     * doesn't within the timeout. The wait happens in
+     * {@link EnqueueBackpressure#awaitCapacity}, which the caller must call
+     * before opening the enqueuing transaction. Once in it, the task is
+     * rejected if the queue is still over capacity.
+     *
+     * @param timeout
+     *            Max milliseconds to wait.
+     */
+    public static BackpressurePolicy block(long timeout) {
+        return new BackpressurePolicy(Action.BLOCK, timeout);
+    }
+
+    /**
+     * Fails right away with a {@link QueueFullException}.
+     */
+    public static BackpressurePolicy reject() {
+        return REJECT;
+    }
+
+    /**
+     * Enqueues the task with a trigger stamp the given delay from now, so it
+     * doesn't compete with the backlog already queued.
+     *
+     * @param delay
+     *            Milliseconds to delay the task.
+     */
+    public static BackpressurePolicy defer(long delay) {
+        return new BackpressurePolicy(Action.DEFER, delay);
+    }
+
+
+    private static final BackpressurePolicy REJECT = new BackpressurePolicy(Action.REJECT, 0);
+
+    private final Action action;
+    private final long millis;
+
+    private BackpressurePolicy(Action action, long millis) {
+        this.action = action;
+        this.millis = millis;
+    }
+
+    public Action getAction() {
+        return this.action;
+    }
+
+    /**
+     * @return The timeout when blocking, or the delay when deferring, in
+     *         milliseconds.
+     */
+    public long getMillis() {
+        return this.millis;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringCreator(this).append("action", getAction())
+            .append("millis", getMillis())
+            .toString();
+    }
+
+}
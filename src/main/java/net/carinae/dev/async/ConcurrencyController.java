@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Adapts the number of local workers and the prefetch depth of the executor
+ * to what this node and the database can take.
+ * <p>
+ * The executor reports how long claims take, how many of them conflict, how
+ * long tasks run and when the workers can't keep up. On each period the
+ * limit is adjusted AIMD style:
+ * <ul>
+ *  <li>It is cut by a quarter if too many claims conflict, or if claims or
+ *  tasks take much longer than the best seen lately, as that means the
+ *  database is contended.</li>
+ *  <li>Otherwise it grows by one if the workers were saturated.</li>
+ * </ul>
+ * The prefetch depth follows the limit, so a node doesn't claim more tasks
+ * ahead than it can start soon. Disabled until bounds are set; the state is
+ * exposed through the getters.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class ConcurrencyController {
+
+    final static Logger logger = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    /**
+     * Fraction of claims that may conflict before backing off.
+     */
+    private static final double MAX_CONFLICT_RATE = 0.1;
+
+    /**
+     * How much latencies may grow over the best seen before backing off.
+     */
+    private static final double MAX_LATENCY_GROWTH = 2.0;
+
+    /**
+     * How fast the best latencies seen are forgotten, per period.
+     */
+    private static final double BASELINE_DECAY = 1.05;
+
+
+    @Autowired(required=false)
+    @Qualifier("PersistentExecutorWorkers")
+    protected ThreadPoolTaskExecutor localWorkers;
+
+    private int minConcurrency = 0;
+    private int maxConcurrency = 0;
+
+    private volatile int concurrencyLimit = 0;
+    private volatile int prefetchDepth = Constants.TASK_PIPELINE_DEPTH;
+
+    // Current period
+    private long claims = 0;
+    private long conflicts = 0;
+    private long claimNanos = 0;
+    private long tasks = 0;
+    private long taskNanos = 0;
+    private boolean saturated = false;
+
+    // Exported state of the last period
+    private volatile double conflictRate = 0;
+    private volatile double claimLatency = 0;
+    private volatile double taskLatency = 0;
+
+    // Best latencies seen lately
+    private double baselineClaimLatency = 0;
+    private double baselineTaskLatency = 0;
+
+
+    /**
+     * Enables the controller within the given bounds, starting from the
+     * current size of the local worker pool.
+     *
+     * @param minConcurrency
+     *            Min number of local workers, at least one.
+     * @param maxConcurrency
+     *            Max number of local workers.
+     */
+    public synchronized void setBounds(int minConcurrency, int maxConcurrency) {
+        if ( minConcurrency < 1 || maxConcurrency < minConcurrency ) {
+            throw new IllegalArgumentException("Invalid concurrency bounds: " + minConcurrency + ", " + maxConcurrency);
+        }
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        int current = this.localWorkers != null ? this.localWorkers.getMaxPoolSize() : maxConcurrency;
+        applyLimit(Math.max(minConcurrency, Math.min(maxConcurrency, current)));
+    }
+
+
+    // Reported by the executor ------------------------------------------------
+
+    /**
+     * A claim finished, either with a task or empty handed.
+     *
+     * @param nanos
+     *            Time spent, including the retries.
+     * @param attempts
+     *            Claim transactions run.
+     * @param conflicts
+     *            How many of them lost the task to another node.
+     */
+    public synchronized void claimed(long nanos, int attempts, int conflicts) {
+        this.claims += attempts;
+        this.conflicts += conflicts;
+        this.claimNanos += nanos;
+    }
+
+    /**
+     * A durable task ran on this node.
+     */
+    public synchronized void taskExecuted(long nanos) {
+        this.tasks++;
+        this.taskNanos += nanos;
+    }
+
+    /**
+     * The executor had claimed tasks waiting for a worker.
+     */
+    public synchronized void workersSaturated() {
+        this.saturated = true;
+    }
+
+
+    // Exported state ----------------------------------------------------------
+
+    /**
+     * @return The current number of local workers, zero if disabled.
+     */
+    public int getConcurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    /**
+     * @return How many deserialized tasks may wait for a local worker.
+     */
+    public int getPrefetchDepth() {
+        return this.prefetchDepth;
+    }
+
+    /**
+     * @return The fraction of claim attempts that conflicted in the last
+     *         period.
+     */
+    public double getConflictRate() {
+        return this.conflictRate;
+    }
+
+    /**
+     * @return The mean claim time in the last period, in milliseconds.
+     */
+    public double getClaimLatency() {
+        return this.claimLatency;
+    }
+
+    /**
+     * @return The mean task run time in the last period, in milliseconds.
+     */
+    public double getTaskLatency() {
+        return this.taskLatency;
+    }
+
+
+    // Control loop ------------------------------------------------------------
+
+    /**
+     * Adjusts the limit from what was observed since the previous run.
+     */
+    @Scheduled(fixedRate=Constants.TASK_CONCURRENCY_RATE)
+    public synchronized void controller() {
+
+        if ( this.concurrencyLimit == 0 || this.claims == 0 ) {
+            resetPeriod();
+            return;
+        }
+
+        this.conflictRate = (double)this.conflicts / this.claims;
+        this.claimLatency = this.claimNanos / 1e6 / this.claims;
+        this.taskLatency = this.tasks > 0 ? this.taskNanos / 1e6 / this.tasks : 0;
+
+        this.baselineClaimLatency = baseline(this.baselineClaimLatency, this.claimLatency);
+        this.baselineTaskLatency = baseline(this.baselineTaskLatency, this.taskLatency);
+
+        boolean contended = this.conflictRate > MAX_CONFLICT_RATE
+            || this.claimLatency > MAX_LATENCY_GROWTH * this.baselineClaimLatency
+            || (this.tasks > 0 && this.taskLatency > MAX_LATENCY_GROWTH * this.baselineTaskLatency);
+
+        int limit = this.concurrencyLimit;
+        if ( contended ) {
+            limit = Math.max(this.minConcurrency, limit - Math.max(1, limit / 4));
+        }
+        else if ( this.saturated ) {
+            limit = Math.min(this.maxConcurrency, limit + 1);
+        }
+
+        if ( limit != this.concurrencyLimit ) {
+            logger.info("Concurrency limit {} -> {} (conflict rate {}, claim {} ms, task {} ms)", new Object[] {
+                    this.concurrencyLimit, limit, this.conflictRate, this.claimLatency, this.taskLatency});
+            applyLimit(limit);
+        }
+
+        resetPeriod();
+    }
+
+
+    /**
+     * The lowest latency seen, slowly forgotten so the baseline can follow a
+     * permanent change in the workload.
+     */
+    private static double baseline(double baseline, double latency) {
+        if ( latency <= 0 ) {
+            return baseline;
+        }
+        return baseline <= 0 ? latency : Math.min(latency, baseline * BASELINE_DECAY);
+    }
+
+    private void applyLimit(int limit) {
+        if ( this.localWorkers != null ) {
+            // Core and max pool sizes kept equal, the pool doesn't queue
+            if ( limit > this.localWorkers.getMaxPoolSize() ) {
+                this.localWorkers.setMaxPoolSize(limit);
+                this.localWorkers.setCorePoolSize(limit);
+            }
+            else {
+                this.localWorkers.setCorePoolSize(limit);
+                this.localWorkers.setMaxPoolSize(limit);
+            }
+        }
+        this.concurrencyLimit = limit;
+        this.prefetchDepth = Math.min(limit, Constants.TASK_PIPELINE_DEPTH);
+    }
+
+    private void resetPeriod() {
+        this.claims = 0;
+        this.conflicts = 0;
+        this.claimNanos = 0;
+        this.tasks = 0;
+        this.taskNanos = 0;
+        this.saturated = false;
+    }
+
+}
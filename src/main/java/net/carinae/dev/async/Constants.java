@@ -28,5 +28,23 @@ public class Constants {
     
     public static final long TASK_RUNNER_RATE = 60l*1000l; // Every minute
     public static final long TASK_HYPERVISOR_RATE = 60l*60l*1000l; // Every hour
+    public static final long TASK_RECURRENCE_RATE = 10l*1000l; // Every 10 seconds
+    public static final long TASK_COMPLETION_WATCHER_RATE = 1000l; // Every second
+    public static final int TASK_STALLED_THRESHOLD = 2*60*60; // Two hours, in seconds
+    public static final long TASK_SHUTDOWN_TIMEOUT = 30l*1000l; // 30 seconds
+    public static final long TASK_JOURNAL_PUMP_RATE = 1000l; // Every second
+    public static final int TASK_JOURNAL_SEGMENT_SIZE = 8*1024*1024; // 8MB
+    public static final int TASK_JOURNAL_LOAD_BATCH = 500; // Journaled tasks checked and inserted at once
+    public static final int TASK_LOG_SEGMENT_SIZE = 64*1024*1024; // 64MB
+    public static final long TASK_LOG_COMPACTION_THRESHOLD = 256l*1024l*1024l; // Logged bytes between snapshots
+    public static final long TASK_LOG_COMPLETED_RETENTION = 24l*60l*60l*1000l; // One day
+    public static final int TASK_PAYLOAD_THRESHOLD = 16*1024; // Bigger serialized tasks go to the payload store
+    public static final long TASK_DEPTH_FLUSH_RATE = 1000l; // Every second
+    public static final int TASK_DEPTH_STRIPES = 16; // Counter rows per task type and state
+    public static final long TASK_WATCHDOG_RATE = 1000l; // Every second
+    public static final int TASK_PIPELINE_DEPTH = 16; // Deserialized tasks waiting for a local worker
+    public static final long TASK_CONCURRENCY_RATE = 5l*1000l; // Every 5 seconds
+    public static final long TASK_TENANT_REFRESH_RATE = 5l*1000l; // Every 5 seconds
+    public static final int TASK_BATCH_SIZE = 100; // Default max tasks run in one batch
     
 }
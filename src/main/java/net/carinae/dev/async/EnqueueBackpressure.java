@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Protects the queue from producers that enqueue faster than the workers
+ * drain it.
+ * <p>
+ * The queue is over capacity once its pending depth reaches the high
+ * watermark, and stays so until it drains down to the low watermark. The
+ * depth is the cached one of the {@link QueueDepthMonitor}, so checking it
+ * costs no query. Tasks enqueued meanwhile follow the
+ * {@link BackpressurePolicy} of their caller. Disabled until a high watermark
+ * is set.
+ * <p>
+ * Enqueues happen inside the caller's transaction, so callers that want to
+ * block must do it before opening it with {@link #awaitCapacity}, instead of
+ * holding a connection and their locks while the queue drains.
+ * <p>
+ * The watermarks and default policy can be set from the context by
+ * declaring this bean with the id of the scanned one:
+ *
+ * <pre>
+ * &lt;bean id="enqueueBackpressure" class="net.carinae.dev.async.EnqueueBackpressure"&gt;
+ *     &lt;property name="highWatermark" value="${tasks.highWatermark}"/&gt;
+ *     &lt;property name="lowWatermark" value="${tasks.lowWatermark}"/&gt;
+ *     &lt;property name="defaultPolicy"&gt;
+ *         &lt;bean class="net.carinae.dev.async.BackpressurePolicy" factory-method="defer"&gt;
+ *             &lt;constructor-arg value="60000"/&gt;
+ *         &lt;/bean&gt;
+ *     &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class EnqueueBackpressure implements InitializingBean {
+
+    final static Logger logger = LoggerFactory.getLogger(EnqueueBackpressure.class);
+
+
+    @Autowired
+    protected QueueDepthMonitor depthMonitor;
+
+    private volatile long highWatermark = 0;
+    private volatile long lowWatermark = 0;
+    private volatile BackpressurePolicy defaultPolicy = BackpressurePolicy.reject();
+
+    /**
+     * Whether the high watermark was reached and the low one not yet.
+     */
+    private boolean overCapacity = false;
+
+
+    /**
+     * Sets the watermarks on the number of pending tasks.
+     *
+     * @param highWatermark
+     *            Depth at which enqueues start being held back, zero or less
+     *            to disable backpressure.
+     * @param lowWatermark
+     *            Depth at which they are accepted again.
+     */
+    public synchronized void setWatermarks(long highWatermark, long lowWatermark) {
+        if ( lowWatermark > highWatermark ) {
+            throw new IllegalArgumentException("Low watermark " + lowWatermark + " over high watermark " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.overCapacity = false;
+    }
+
+    /**
+     * @param highWatermark
+     *            Depth at which enqueues start being held back, zero or less
+     *            to disable backpressure.
+     */
+    public synchronized void setHighWatermark(long highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * @param lowWatermark
+     *            Depth at which they are accepted again.
+     */
+    public synchronized void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        setWatermarks(this.highWatermark, this.lowWatermark);
+    }
+
+
+    /**
+     * Sets the policy of the callers that don't choose one. Rejects by
+     * default.
+     */
+    public void setDefaultPolicy(BackpressurePolicy defaultPolicy) {
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    public BackpressurePolicy getDefaultPolicy() {
+        return this.defaultPolicy;
+    }
+
+
+    /**
+     * Waits until the queue is under capacity, for callers whose policy
+     * blocks. Must be called before opening the transaction that enqueues,
+     * so no connection nor lock is held meanwhile.
+     *
+     * @param policy
+     *            The policy of the caller, <code>null</code> for the default
+     *            one. Only a blocking one waits.
+     * @throws QueueFullException
+     *             If still over capacity once the blocking timeout expires.
+     * @throws IllegalStateException
+     *             If called inside a transaction.
+     */
+    public void awaitCapacity(BackpressurePolicy policy) {
+
+        if ( TransactionSynchronizationManager.isActualTransactionActive() ) {
+            throw new IllegalStateException("Can't wait for the task queue to drain inside a transaction");
+        }
+        if ( policy == null ) {
+            policy = this.defaultPolicy;
+        }
+        if ( this.highWatermark <= 0 || policy.getAction() != BackpressurePolicy.Action.BLOCK || !isOverCapacity() ) {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + policy.getMillis();
+        try {
+            while ( isOverCapacity() && System.currentTimeMillis() < deadline ) {
+                Thread.sleep(Math.min(100, Math.max(1, deadline - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if ( isOverCapacity() ) {
+            throw new QueueFullException(this.depthMonitor.getPendingDepth());
+        }
+    }
+
+
+    /**
+     * Admits a task about to be enqueued, applying the policy if the queue is
+     * over capacity. A deferred task gets its trigger stamp moved. Being
+     * inside the enqueuing transaction, a blocking policy doesn't wait here
+     * but rejects the task, as its caller should have waited in
+     * {@link #awaitCapacity} before.
+     *
+     * @param task
+     *            The task about to be enqueued.
+     * @param policy
+     *            The policy of the caller, <code>null</code> for the default
+     *            one.
+     * @throws QueueFullException
+     *             If rejected.
+     */
+    public void admit(AbstractBaseTask task, BackpressurePolicy policy) {
+
+        if ( this.highWatermark <= 0 || !isOverCapacity() ) {
+            return;
+        }
+        if ( policy == null ) {
+            policy = this.defaultPolicy;
+        }
+
+        switch (policy.getAction()) {
+            case DEFER: {
+                Calendar deferred = Calendar.getInstance();
+                deferred.add(Calendar.MILLISECOND, (int)policy.getMillis());
+                if ( task.getTriggerStamp() == null || task.getTriggerStamp().before(deferred) ) {
+                    task.setTriggerStamp(deferred);
+                }
+                logger.debug("Queue over capacity, deferring {}", task);
+                return;
+            }
+            default:
+                break;
+        }
+
+        throw new QueueFullException(this.depthMonitor.getPendingDepth());
+    }
+
+
+    /**
+     * Checks the depth against the watermarks.
+     */
+    private synchronized boolean isOverCapacity() {
+        long pending = this.depthMonitor.getPendingDepth();
+        if ( this.overCapacity ) {
+            if ( pending <= this.lowWatermark ) {
+                logger.info("Task queue back under capacity, {} tasks pending", pending);
+                this.overCapacity = false;
+            }
+        }
+        else if ( this.highWatermark > 0 && pending >= this.highWatermark ) {
+            logger.warn("Task queue over capacity, {} tasks pending", pending);
+            this.overCapacity = true;
+        }
+        return this.overCapacity;
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.util.AppendOnlyJournal;
+import net.carinae.dev.async.util.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * A task executor for fire-and-forget enqueues that don't happen inside a
+ * transaction.
+ * <p>
+ * Tasks are appended to a local {@link AppendOnlyJournal}, so enqueueing
+ * costs a disk append (with syncs shared among concurrent producers) instead
+ * of a database insert. A pump periodically loads the journal segments into
+ * the task queue, one transaction per segment, and discards them. From then
+ * on they are executed as any other queued task.
+ * <p>
+ * Journaled tasks can't have parent tasks, and are not run by the local fast
+ * path. A segment loaded but not discarded because of a crash is loaded again
+ * on restart, which is harmless as each record carries its queued task id.
+ * Segments are loaded in batches: the already enqueued ids are looked up with
+ * one query and the new tasks inserted in one JDBC batch.
+ * <p>
+ * Records keep the tenant and key of the tasks, and start with the version
+ * of their format. A segment that can't be read, or has records of an
+ * unknown version, is set aside with an error, and the rest of the segments
+ * are still loaded. One that fails to be enqueued is retried on the next
+ * pump, also without holding back the others.
+ * <p>
+ * It is not picked up by the component scan, declare it with its own
+ * journal directory:
+ * 
+ * <pre>
+ * &lt;bean class="net.carinae.dev.async.JournaledTaskExecutor" id="JournaledExecutor"&gt;
+ *     &lt;property name="directory" value="/var/lib/myapp/task-journal"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * @author Carlos Vara
+ */
+public class JournaledTaskExecutor implements TaskExecutor, InitializingBean, DisposableBean {
+
+    final static Logger logger = LoggerFactory.getLogger(JournaledTaskExecutor.class);
+    
+    /**
+     * Version of the records written: id, type, trigger, tenant, key and
+     * serialized task.
+     */
+    private static final byte RECORD_VERSION = 2;
+    
+    
+    @Autowired
+    protected PersistentTaskExecutor persistentExecutor;
+    
+    @Autowired
+    protected Serializer serializer;
+    
+    private File directory;
+    
+    private AppendOnlyJournal journal;
+    
+    
+    /**
+     * @param directory
+     *            The directory of the journal, only used by this node.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+    
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        this.journal = new AppendOnlyJournal(this.directory, Constants.TASK_JOURNAL_SEGMENT_SIZE);
+    }
+    
+    @Override
+    public void destroy() throws IOException {
+        this.journal.close();
+    }
+    
+    
+    /**
+     * Appends the task to the journal. Returns once it is durable; it will be
+     * in the task queue after the next pump.
+     * 
+     * @see org.springframework.core.task.TaskExecutor#execute(java.lang.Runnable)
+     */
+    @Override
+    public void execute(Runnable task) {
+        
+        AbstractBaseTask abt;
+        try {
+            abt = AbstractBaseTask.class.cast(task);
+        } catch (ClassCastException e) {
+            logger.error("Only runnables that extends AbstractBaseTask are accepted.");
+            throw new IllegalArgumentException("Invalid task: " + task);
+        }
+        if ( !abt.getParentTaskIds().isEmpty() ) {
+            throw new IllegalArgumentException("Journaled tasks can't have parent tasks: " + task);
+        }
+        
+        String queuedTaskId = UUID.randomUUID().toString();
+        
+        try {
+            this.journal.append(toRecord(queuedTaskId, abt));
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't journal task " + task, e);
+        }
+        
+        abt.setQueuedTaskId(queuedTaskId);
+        logger.debug("Journaled task {}", queuedTaskId);
+    }
+    
+    
+    /**
+     * Loads the journaled tasks into the task queue.
+     */
+    @Scheduled(fixedRate=Constants.TASK_JOURNAL_PUMP_RATE)
+    public void pump() {
+        
+        List<File> segments;
+        try {
+            segments = this.journal.seal();
+        } catch (IOException e) {
+            logger.error("Couldn't seal the task journal, will retry", e);
+            return;
+        }
+        
+        for ( File segment : segments ) {
+            try {
+                int loaded = loadRecords(this.journal.read(segment));
+                this.journal.discard(segment);
+                logger.debug("Loaded {} tasks from journal segment {}", loaded, segment);
+            } catch (IOException e) {
+                logger.error("Journal segment " + segment + " can't be read, setting it aside", e);
+                this.journal.quarantine(segment);
+            } catch (RuntimeException e) {
+                logger.error("Couldn't load journal segment " + segment + ", will retry", e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Enqueues the tasks of a journal segment. All the records are read
+     * before enqueueing any.
+     * 
+     * @return The number of tasks enqueued.
+     * @throws IOException
+     *             If any record can't be read.
+     */
+    public int loadRecords(List<byte[]> records) throws IOException {
+        List<QueuedTaskHolder> queuedTasks = new ArrayList<QueuedTaskHolder>(records.size());
+        for ( byte[] record : records ) {
+            queuedTasks.add(fromRecord(record));
+        }
+        return loadTasks(queuedTasks);
+    }
+    
+    
+    /**
+     * Enqueues journaled tasks, in batches of
+     * {@link Constants#TASK_JOURNAL_LOAD_BATCH}.
+     * 
+     * @return The number of tasks enqueued.
+     */
+    @Transactional
+    public int loadTasks(List<QueuedTaskHolder> queuedTasks) {
+        
+        int loaded = 0;
+        List<QueuedTaskHolder> batch = new ArrayList<QueuedTaskHolder>(Constants.TASK_JOURNAL_LOAD_BATCH);
+        for ( QueuedTaskHolder queuedTask : queuedTasks ) {
+            batch.add(queuedTask);
+            if ( batch.size() == Constants.TASK_JOURNAL_LOAD_BATCH ) {
+                loaded += this.persistentExecutor.executeSerialized(batch);
+                batch.clear();
+            }
+        }
+        if ( !batch.isEmpty() ) {
+            loaded += this.persistentExecutor.executeSerialized(batch);
+        }
+        return loaded;
+    }
+    
+    
+    // Record format -----------------------------------------------------------
+    
+    /**
+     * @return The journal record of a task.
+     */
+    byte[] toRecord(String queuedTaskId, AbstractBaseTask task) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(RECORD_VERSION);
+        out.writeUTF(queuedTaskId);
+        out.writeUTF(task.getClass().getName());
+        out.writeLong(task.getTriggerStamp() != null ? task.getTriggerStamp().getTimeInMillis() : -1);
+        writeNullableUTF(out, task.getTenant());
+        writeNullableUTF(out, task.getTaskKey());
+        out.write(this.serializer.serializeObject(task));
+        out.close();
+        return bos.toByteArray();
+    }
+    
+    /**
+     * @return The queued task of a journal record.
+     * @throws IOException
+     *             If the record is not of the current version, or truncated.
+     */
+    QueuedTaskHolder fromRecord(byte[] record) throws IOException {
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        
+        byte version = in.readByte();
+        if ( version != RECORD_VERSION ) {
+            throw new IOException("Unknown journal record version: " + version);
+        }
+        
+        QueuedTaskHolder queuedTask = new QueuedTaskHolder();
+        queuedTask.setId(in.readUTF());
+        queuedTask.setTaskType(in.readUTF());
+        long triggerMillis = in.readLong();
+        if ( triggerMillis >= 0 ) {
+            Calendar triggerStamp = Calendar.getInstance(TimeZone.getTimeZone("Etc/UTC"));
+            triggerStamp.setTimeInMillis(triggerMillis);
+            queuedTask.setTriggerStamp(triggerStamp);
+        }
+        queuedTask.setTenant(readNullableUTF(in));
+        queuedTask.setTaskKey(readNullableUTF(in));
+        byte[] serializedTask = new byte[in.available()];
+        in.readFully(serializedTask);
+        queuedTask.setSerializedTask(serializedTask);
+        return queuedTask;
+    }
+    
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if ( value != null ) {
+            out.writeUTF(value);
+        }
+    }
+    
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+}
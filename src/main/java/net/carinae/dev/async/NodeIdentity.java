@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Identity of this executor node, which survives restarts if it is given a
+ * file to keep it.
+ * <p>
+ * The id is generated the first time and kept in the file, so a restarted
+ * node can recognize the tasks it had claimed before dying. Each node needs
+ * its own file: it is locked while the node runs, and a node that finds it
+ * locked by another process uses a new id instead of taking over the tasks
+ * of a live node. Without a file, every run gets a new id and the tasks left
+ * by a dead run are only recovered by the hypervisor.
+ * 
+ * @author Carlos Vara
+ */
+@Component
+public class NodeIdentity implements DisposableBean {
+
+    final static Logger logger = LoggerFactory.getLogger(NodeIdentity.class);
+    
+    private File idFile = null;
+    
+    private String nodeId;
+    
+    /**
+     * Whether the id was left by a previous run of this node.
+     */
+    private boolean restored = false;
+    
+    /**
+     * The id file, kept open while locked.
+     */
+    private RandomAccessFile lockedFile;
+    
+    
+    /**
+     * @return The id of this node.
+     */
+    public synchronized String getNodeId() {
+        if ( this.nodeId == null ) {
+            this.nodeId = this.idFile != null ? loadOrCreate() : UUID.randomUUID().toString();
+        }
+        return this.nodeId;
+    }
+    
+    
+    /**
+     * @return <code>true</code> if the id was used by a previous run of this
+     *         node, so the tasks it left claimed can be recovered.
+     */
+    public synchronized boolean isRestored() {
+        getNodeId();
+        return this.restored;
+    }
+    
+    
+    /**
+     * Sets the file where the id is kept. Must be different for each node,
+     * even on the same host. None by default.
+     */
+    public synchronized void setIdFile(File idFile) {
+        releaseIdFile();
+        this.idFile = idFile;
+        this.nodeId = null;
+        this.restored = false;
+    }
+    
+    
+    /**
+     * Releases the id file, so the next run can take it over.
+     */
+    @Override
+    public synchronized void destroy() {
+        releaseIdFile();
+    }
+    
+    
+    private String loadOrCreate() {
+        
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(this.idFile, "rw");
+            FileLock lock;
+            try {
+                lock = file.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Locked by this same process
+                lock = null;
+            }
+            if ( lock == null ) {
+                logger.warn("Node id file {} is in use by another node, using a new node id", this.idFile);
+                file.close();
+                return UUID.randomUUID().toString();
+            }
+            
+            this.lockedFile = file;
+            byte[] contents = new byte[(int)file.length()];
+            file.readFully(contents);
+            String stored = new String(contents, "UTF-8").trim();
+            if ( StringUtils.hasText(stored) ) {
+                logger.info("Using node id {} from {}", stored, this.idFile);
+                this.restored = true;
+                return stored;
+            }
+            
+            String created = UUID.randomUUID().toString();
+            file.setLength(0);
+            file.write(created.getBytes("UTF-8"));
+            file.getFD().sync();
+            logger.info("Created node id {} in {}", created, this.idFile);
+            return created;
+            
+        } catch (IOException e) {
+            // Still usable, but the tasks of this incarnation won't be recovered on restart
+            logger.warn("Couldn't use node id file " + this.idFile + ", using a new node id", e);
+            if ( file != null && this.lockedFile == null ) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    // Nothing else to do
+                }
+            }
+            return UUID.randomUUID().toString();
+        }
+    }
+    
+    private void releaseIdFile() {
+        if ( this.lockedFile != null ) {
+            try {
+                // Releases the lock too
+                this.lockedFile.close();
+            } catch (IOException e) {
+                logger.warn("Couldn't release node id file " + this.idFile, e);
+            }
+            this.lockedFile = null;
+        }
+    }
+    
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a bean method whose calls are executed asynchronously through the
+ * {@link PersistentTaskExecutor}.
+ * <p>
+ * Calling it only enqueues an invocation record (bean name, method and
+ * arguments) in the current transaction, which must exist. The worker that
+ * claims it calls the method of the bean directly. The method must return
+ * <code>void</code> and its arguments must be serializable.
+ * 
+ * @author Carlos Vara
+ * @see PersistentAsyncAnnotationBeanPostProcessor
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PersistentAsync {
+
+}
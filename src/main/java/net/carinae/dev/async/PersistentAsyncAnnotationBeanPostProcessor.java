@@ -0,0 +1,240 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.carinae.dev.async.task.MethodInvocationTask;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Proxies the beans with {@link PersistentAsync} methods, so calling them
+ * enqueues a {@link MethodInvocationTask} instead, and invokes those methods
+ * when the tasks are run.
+ * <p>
+ * Methods are identified by the bean name plus a signature id, so the queued
+ * task only carries those two strings and the arguments.
+ * 
+ * @author Carlos Vara
+ */
+@Component
+public class PersistentAsyncAnnotationBeanPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+    final static Logger logger = LoggerFactory.getLogger(PersistentAsyncAnnotationBeanPostProcessor.class);
+    
+    /**
+     * Annotated methods, by bean name and signature id.
+     */
+    private final ConcurrentMap<String, Method> methods = new ConcurrentHashMap<String, Method>();
+    
+    /**
+     * The method being invoked by a worker in this thread, which must run
+     * instead of being enqueued again.
+     */
+    private final ThreadLocal<String> directInvocation = new ThreadLocal<String>();
+    
+    private BeanFactory beanFactory;
+    
+    private volatile PersistentTaskExecutor executor;
+    
+    
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) {
+        this.beanFactory = beanFactory;
+    }
+    
+    
+    // BeanPostProcessor methods -----------------------------------------------
+    
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+    
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        
+        Class<?> targetClass = AopUtils.getTargetClass(bean);
+        final List<Method> annotated = new ArrayList<Method>();
+        ReflectionUtils.doWithMethods(targetClass, new ReflectionUtils.MethodCallback() {
+            @Override
+            public void doWith(Method method) {
+                if ( AnnotationUtils.findAnnotation(method, PersistentAsync.class) != null ) {
+                    annotated.add(method);
+                }
+            }
+        });
+        
+        if ( annotated.isEmpty() ) {
+            return bean;
+        }
+        
+        for ( Method method : annotated ) {
+            if ( !void.class.equals(method.getReturnType()) ) {
+                throw new IllegalStateException("@PersistentAsync methods must return void: " + method);
+            }
+            invocableMethod(bean, method);
+            this.methods.put(key(beanName, signatureId(method)), method);
+            logger.debug("Persistent async method {} in bean {}", method, beanName);
+        }
+        
+        MethodInterceptor interceptor = new PersistentAsyncInterceptor(beanName);
+        if ( bean instanceof Advised && !((Advised)bean).isFrozen() ) {
+            ((Advised)bean).addAdvice(0, interceptor);
+            return bean;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(bean);
+        proxyFactory.setProxyTargetClass(!AopUtils.isJdkDynamicProxy(bean));
+        proxyFactory.addAdvice(interceptor);
+        return proxyFactory.getProxy(targetClass.getClassLoader());
+    }
+    
+    
+    // Invocation --------------------------------------------------------------
+    
+    /**
+     * Invokes a persistent async method, as recorded by a
+     * {@link MethodInvocationTask}.
+     * 
+     * @param beanName
+     *            The name of the bean.
+     * @param signatureId
+     *            The method, as given by {@link #signatureId(Method)}.
+     * @param arguments
+     *            The arguments of the call.
+     */
+    public void invoke(String beanName, String signatureId, Object[] arguments) {
+        
+        String key = key(beanName, signatureId);
+        Method method = this.methods.get(key);
+        if ( method == null ) {
+            throw new IllegalStateException("Unknown persistent async method: " + key);
+        }
+        
+        Object bean = this.beanFactory.getBean(beanName);
+        Method invocable = invocableMethod(bean, method);
+        this.directInvocation.set(key);
+        try {
+            ReflectionUtils.makeAccessible(invocable);
+            invocable.invoke(bean, arguments);
+        } catch (InvocationTargetException e) {
+            ReflectionUtils.rethrowRuntimeException(e.getTargetException());
+        } catch (IllegalAccessException e) {
+            ReflectionUtils.handleReflectionException(e);
+        } finally {
+            this.directInvocation.remove();
+        }
+    }
+    
+    
+    /**
+     * @return The id of a method, unique within its bean.
+     */
+    public static String signatureId(Method method) {
+        List<String> parameterTypes = new ArrayList<String>();
+        for ( Class<?> parameterType : method.getParameterTypes() ) {
+            parameterTypes.add(parameterType.getName());
+        }
+        return method.getName() + "(" + StringUtils.collectionToCommaDelimitedString(parameterTypes) + ")";
+    }
+    
+    /**
+     * Methods are found on the target class, but a JDK proxy only implements
+     * its interfaces, so for those the same method is looked up on the proxy.
+     * 
+     * @return The method to invoke on the given bean.
+     */
+    private static Method invocableMethod(Object bean, Method method) {
+        if ( !AopUtils.isJdkDynamicProxy(bean) ) {
+            return method;
+        }
+        Method proxied = ReflectionUtils.findMethod(bean.getClass(), method.getName(), method.getParameterTypes());
+        if ( proxied == null ) {
+            throw new IllegalStateException("@PersistentAsync methods of interface proxied beans must be declared by an interface: " + method);
+        }
+        return proxied;
+    }
+    
+    private static String key(String beanName, String signatureId) {
+        return beanName + "#" + signatureId;
+    }
+    
+    private PersistentTaskExecutor getExecutor() {
+        if ( this.executor == null ) {
+            this.executor = this.beanFactory.getBean(PersistentTaskExecutor.class);
+        }
+        return this.executor;
+    }
+    
+    
+    /**
+     * Enqueues the calls to the persistent async methods of a bean.
+     */
+    private class PersistentAsyncInterceptor implements MethodInterceptor {
+        
+        private final String beanName;
+        
+        public PersistentAsyncInterceptor(String beanName) {
+            this.beanName = beanName;
+        }
+        
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            
+            String signatureId = signatureId(invocation.getMethod());
+            String key = key(this.beanName, signatureId);
+            if ( !methods.containsKey(key) ) {
+                return invocation.proceed();
+            }
+            
+            // Called by the worker running the task
+            if ( key.equals(directInvocation.get()) ) {
+                directInvocation.remove();
+                return invocation.proceed();
+            }
+            
+            Object[] arguments = invocation.getArguments();
+            for ( Object argument : arguments ) {
+                if ( argument != null && !(argument instanceof Serializable) ) {
+                    throw new IllegalArgumentException("Arguments of @PersistentAsync methods must be serializable: " + argument);
+                }
+            }
+            
+            getExecutor().execute(new MethodInvocationTask(this.beanName, signatureId, arguments));
+            return null;
+        }
+    }
+    
+}
@@ -15,29 +15,86 @@
  */
 package net.carinae.dev.async;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.carinae.dev.async.dao.PayloadStore;
 import net.carinae.dev.async.dao.QueuedTaskHolderDao;
 import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.task.BatchableTask;
 import net.carinae.dev.async.util.Serializer;
+import net.carinae.dev.async.util.TaskEventRecorder;
+import net.carinae.dev.async.util.TaskEventRecorder.Phase;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * A task executor with persistent task queueing.
+ * <p>
+ * On shutdown it stops claiming tasks, waits a bounded time for the running
+ * ones and frees those that didn't finish, so other nodes can pick them up
+ * right away instead of waiting for the hypervisor. Likewise, on startup it
+ * frees the tasks that a previous run of the same node left claimed when it
+ * died (see {@link NodeIdentity}).
+ * <p>
+ * Tasks flagged as non-durable (see {@link AbstractBaseTask#setDurable(boolean)})
+ * never reach the queue: once their enqueuing transaction commits they wait
+ * in an in-memory queue, drained by the same local workers and runners and
+ * subject to the same type limits.
+ * <p>
+ * With local workers, queued tasks go through a pipeline: the runner claims
+ * and deserializes them, and hands them to the workers through a bounded
+ * queue, so the next task is being claimed while the previous ones execute.
+ * Without local workers, the runner executes each task itself.
+ * <p>
+ * Durable tasks enqueued while the queue is over capacity are held back by
+ * the {@link EnqueueBackpressure}, according to the policy of the caller.
+ * Callers that prefer to wait call {@link #awaitCapacity} before opening the
+ * enqueuing transaction.
+ * <p>
+ * Claim and execution times are reported to the
+ * {@link ConcurrencyController}, which sizes the local workers and the
+ * prefetch depth accordingly. Claims are shared among the tenants of the
+ * tasks by the {@link TenantScheduler}.
+ * <p>
+ * A claimed {@link BatchableTask} brings along the ready tasks of its type
+ * and tenant, and they all run as one batch.
+ * <p>
+ * Enqueued tasks can be cancelled, by id or by key, and rescheduled until
+ * they are started.
  * 
  * @author Carlos Vara
  */
 @Component("PersistentExecutor")
-public class PersistentTaskExecutor implements TaskExecutor {
+public class PersistentTaskExecutor implements TaskExecutor, SmartLifecycle {
     
     final static Logger logger = LoggerFactory.getLogger(PersistentTaskExecutor.class);
     
@@ -48,6 +105,81 @@ public class PersistentTaskExecutor implements TaskExecutor {
     @Autowired
     protected Serializer serializer;
     
+    @Autowired
+    protected TaskCompletionWatcher completionWatcher;
+    
+    @Autowired
+    protected TaskTypeLimiter limiter;
+    
+    @Autowired
+    protected NodeIdentity nodeIdentity;
+    
+    @Autowired
+    protected TaskEventRecorder eventRecorder;
+    
+    @Autowired
+    protected EnqueueBackpressure backpressure;
+    
+    @Autowired
+    protected QueueDepthMonitor depthMonitor;
+    
+    @Autowired
+    protected TaskWatchdog watchdog;
+    
+    @Autowired
+    protected ConcurrencyController concurrency;
+    
+    @Autowired
+    protected TenantScheduler tenantScheduler;
+    
+    /**
+     * Optional store for serialized tasks bigger than
+     * {@link Constants#TASK_PAYLOAD_THRESHOLD}, so they don't bloat the queue
+     * table.
+     */
+    @Autowired(required=false)
+    protected PayloadStore payloadStore;
+    
+    /**
+     * Optional local worker pool. When present, tasks enqueued while it has
+     * idle threads are executed by this node right after the enqueuing
+     * transaction commits, skipping the poll/claim/deserialize round trip.
+     */
+    @Autowired(required=false)
+    @Qualifier("PersistentExecutorWorkers")
+    protected ThreadPoolTaskExecutor localWorkers;
+    
+    /**
+     * Whether new tasks can be claimed by this node.
+     */
+    private volatile boolean running = false;
+    
+    /**
+     * Whether the tasks left by the previous incarnation of this node have
+     * already been recovered.
+     */
+    private boolean recovered = false;
+    
+    /**
+     * Ids of the tasks claimed by this node and not finished yet.
+     */
+    private final Set<String> claimedTasks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    /**
+     * Ids of the claimed tasks that were cancelled before being run.
+     */
+    private final Set<String> cancelledTasks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    /**
+     * Non-durable tasks waiting for execution.
+     */
+    private final Queue<AbstractBaseTask> inMemoryQueue = new ConcurrentLinkedQueue<AbstractBaseTask>();
+    
+    /**
+     * Claimed and deserialized tasks waiting for a local worker.
+     */
+    private final BlockingQueue<ClaimedTask> prefetchedTasks = new ArrayBlockingQueue<ClaimedTask>(Constants.TASK_PIPELINE_DEPTH);
+    
     
     /**
      * Additional requirement: must be run inside a transaction.
@@ -59,9 +191,48 @@ public class PersistentTaskExecutor implements TaskExecutor {
     @Override
     @Transactional(propagation=Propagation.MANDATORY)
     public void execute(Runnable task) {
+        execute(task, null);
+    }
+    
+    
+    /**
+     * Waits until the queue is under capacity if the policy blocks. Must be
+     * run outside a transaction, before the one that enqueues, so no
+     * connection nor lock is held while waiting.
+     * 
+     * @param policy
+     *            The backpressure policy, <code>null</code> for the default
+     *            one.
+     * @throws QueueFullException
+     *             If still over capacity once the timeout expires.
+     */
+    @Transactional(propagation=Propagation.NEVER)
+    public void awaitCapacity(BackpressurePolicy policy) {
+        this.backpressure.awaitCapacity(policy);
+    }
+    
+    
+    /**
+     * Enqueues a task as {@link #execute(Runnable)} does, choosing what to do
+     * if the queue is over capacity. Same requirement: must be run inside a
+     * transaction. A blocking policy doesn't wait here, but rejects the task
+     * if {@link #awaitCapacity} wasn't called before the transaction.
+     * 
+     * @param task
+     *            The task to enqueue.
+     * @param policy
+     *            The backpressure policy, <code>null</code> for the default
+     *            one.
+     * @throws QueueFullException
+     *             If the task was rejected because of the queue depth.
+     */
+    @Transactional(propagation=Propagation.MANDATORY)
+    public void execute(Runnable task, BackpressurePolicy policy) {
         
         logger.debug("Trying to enqueue: {}", task);
         
+        Object enqueueEvent = this.eventRecorder.begin(Phase.ENQUEUE);
+        
         AbstractBaseTask abt; 
         try {
             abt = AbstractBaseTask.class.cast(task);
@@ -70,22 +241,161 @@ public class PersistentTaskExecutor implements TaskExecutor {
             throw new IllegalArgumentException("Invalid task: " + task);
         }
         
+        if ( !abt.isDurable() ) {
+            enqueueInMemory(abt);
+            this.eventRecorder.commit(enqueueEvent, abt.getClass().getName(), abt.getQueuedTaskId(), 0, 0);
+            return;
+        }
+        
+        // May reject or defer it
+        this.backpressure.admit(abt, policy);
+        
         // Serialize the task
         QueuedTaskHolder newTask = new QueuedTaskHolder();
+        newTask.setTaskType(abt.getClass().getName());
         byte[] serializedTask = this.serializer.serializeObject(abt);
         newTask.setTriggerStamp(abt.getTriggerStamp());
+        newTask.setTenant(abt.getTenant());
+        newTask.setTaskKey(abt.getTaskKey());
+        abt.setPayloadSize(serializedTask.length);
         
         logger.debug("New serialized task takes {} bytes", serializedTask.length);
         
-        newTask.setSerializedTask(serializedTask);
+        abt.setPayloadRef(setSerializedTask(newTask, serializedTask));
+        
+        // Record what it's waiting for
+        if ( !abt.getParentTaskIds().isEmpty() ) {
+            this.queuedTaskDao.persistDependencies(newTask, abt.getParentTaskIds());
+        }
+        
+        // Claim it already if it can run locally as soon as we commit
+        boolean runLocally = newTask.getPendingParents() == 0 && canRunLocally(abt);
+        if ( runLocally ) {
+            newTask.setStartedStamp(Calendar.getInstance(TimeZone.getTimeZone("etc/UTC")));
+            newTask.setNodeId(this.nodeIdentity.getNodeId());
+        }
         
         // Store it in the db
         this.queuedTaskDao.persist(newTask);
+        abt.setQueuedTaskId(newTask.getId());
+        abt.setQueuedTaskVersion(newTask.getVersion());
+        if ( !runLocally ) {
+            this.depthMonitor.taskEnqueued();
+        }
+        
+        this.eventRecorder.commit(enqueueEvent, newTask.getTaskType(), newTask.getId(), serializedTask.length, 0);
+        
+        if ( runLocally ) {
+            TransactionSynchronizationManager.registerSynchronization(new LocalExecutionSynchronization(abt));
+        }
         
         // POST: Task has been enqueued
     }
     
     
+    /**
+     * Enqueues a task as {@link #execute(Runnable)} does, and returns a handle
+     * that is done once the task has been completed, by this node or by any
+     * other. Same requirement: must be run inside a transaction.
+     * 
+     * @param task
+     *            The task to enqueue.
+     * @return A handle to wait for the completion of the task. It fails if the
+     *         enqueuing transaction is rolled back.
+     */
+    @Transactional(propagation=Propagation.MANDATORY)
+    public Future<Void> submit(Runnable task) {
+        
+        execute(task);
+        
+        final String queuedTaskId = ((AbstractBaseTask)task).getQueuedTaskId();
+        Future<Void> future = this.completionWatcher.watch(queuedTaskId);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if ( status != STATUS_COMMITTED ) {
+                    completionWatcher.taskFailed(queuedTaskId, new IllegalStateException("Task was not enqueued: " + queuedTaskId));
+                }
+            }
+        });
+        
+        return future;
+    }
+    
+    
+    /**
+     * Enqueues a batch of tasks that were already serialized elsewhere, such
+     * as in the {@link JournaledTaskExecutor}. Same requirement: must be run
+     * inside a transaction. The existing ids are looked up with a single query
+     * and the new tasks inserted in a single batch. Enqueueing the same task
+     * id twice has no effect.
+     * 
+     * @param newTasks
+     *            The queued tasks to persist, with their id, type and
+     *            serialized task set, and if any, their trigger stamp, tenant
+     *            and key.
+     * @return The number of tasks enqueued, not counting the ones whose id
+     *         was already enqueued.
+     */
+    @Transactional(propagation=Propagation.MANDATORY)
+    public int executeSerialized(List<QueuedTaskHolder> newTasks) {
+        
+        List<String> taskIds = new ArrayList<String>(newTasks.size());
+        for ( QueuedTaskHolder newTask : newTasks ) {
+            taskIds.add(newTask.getId());
+        }
+        Set<String> enqueuedIds = new HashSet<String>(this.queuedTaskDao.findExistingTaskIds(taskIds));
+        
+        List<QueuedTaskHolder> added = new ArrayList<QueuedTaskHolder>(newTasks.size());
+        List<Object> enqueueEvents = new ArrayList<Object>(newTasks.size());
+        List<Integer> payloadSizes = new ArrayList<Integer>(newTasks.size());
+        for ( QueuedTaskHolder newTask : newTasks ) {
+            if ( !enqueuedIds.add(newTask.getId()) ) {
+                continue;
+            }
+            enqueueEvents.add(this.eventRecorder.begin(Phase.ENQUEUE));
+            payloadSizes.add(newTask.getSerializedTask().length);
+            setSerializedTask(newTask, newTask.getSerializedTask());
+            added.add(newTask);
+        }
+        
+        this.queuedTaskDao.persistAll(added);
+        
+        for ( int i = 0; i < added.size(); i++ ) {
+            QueuedTaskHolder newTask = added.get(i);
+            this.depthMonitor.taskEnqueued();
+            this.eventRecorder.commit(enqueueEvents.get(i), newTask.getTaskType(), newTask.getId(), payloadSizes.get(i), 0);
+        }
+        return added.size();
+    }
+    
+    
+    /**
+     * Enqueues a task that was already serialized elsewhere, such as an
+     * occurrence of a recurring task. Same requirement: must be run inside a
+     * transaction. As with {@link #execute(Runnable)}, big tasks go to the
+     * payload store and the task counts as pending right away. Backpressure
+     * and the local fast path don't apply.
+     * 
+     * @param newTask
+     *            The queued task to persist, with its type and, if any, its
+     *            id, trigger stamp, tenant, key and recurrence key set.
+     * @param serializedTask
+     *            The serialized task.
+     */
+    @Transactional(propagation=Propagation.MANDATORY)
+    public void executeSerialized(QueuedTaskHolder newTask, byte[] serializedTask) {
+        
+        Object enqueueEvent = this.eventRecorder.begin(Phase.ENQUEUE);
+        
+        setSerializedTask(newTask, serializedTask);
+        this.queuedTaskDao.persist(newTask);
+        this.depthMonitor.taskEnqueued();
+        
+        this.eventRecorder.commit(enqueueEvent, newTask.getTaskType(), newTask.getId(), serializedTask.length, 0);
+    }
+    
+    
     /**
      * Runs enqueued tasks.
      */
@@ -96,23 +406,311 @@ public class PersistentTaskExecutor implements TaskExecutor {
 
         QueuedTaskHolder lockedTask = null;
         
-        // While there is work to do...
-        while ( (lockedTask = tryLockTask()) != null ) {
+        // While there is work to do, alternating in-memory and queued tasks
+        boolean busy = true;
+        while ( this.running && busy ) {
             
-            logger.debug("Obtained lock on {}", lockedTask);
+            busy = false;
             
-            // Deserialize the task
-            AbstractBaseTask runnableTask = this.serializer.deserializeAndCast(lockedTask.getSerializedTask());
-            runnableTask.setQueuedTaskId(lockedTask.getId());
+            AbstractBaseTask inMemoryTask = pollInMemoryTask();
+            if ( inMemoryTask != null ) {
+                runInMemoryTask(inMemoryTask);
+                busy = true;
+            }
             
-            // Run it
-            runnableTask.run();
+            if ( this.running && (lockedTask = tryLockTask()) != null ) {
+                ClaimedTask claimedTask = deserializeClaimedTask(lockedTask);
+                if ( claimedTask != null ) {
+                    handOff(collectBatch(claimedTask));
+                }
+                busy = true;
+            }
         }
         
         logger.debug("Finishing runner {}, nothing else to do.", Thread.currentThread().getName());
     }
     
     
+    /**
+     * Deserializes a task claimed by a runner, taking its limiter slot.
+     * 
+     * @return The task ready to run, <code>null</code> if its type is
+     *         saturated and it was freed.
+     */
+    private ClaimedTask deserializeClaimedTask(QueuedTaskHolder lockedTask) {
+        
+        logger.debug("Obtained lock on {}", lockedTask);
+        
+        // Its type may have been saturated since the claim query was issued
+        if ( !this.limiter.tryAcquire(lockedTask.getTaskType()) ) {
+            logger.debug("Task type {} saturated, freeing {}", lockedTask.getTaskType(), lockedTask.getId());
+            freeClaimedTask(lockedTask.getId(), lockedTask.getVersion());
+            return null;
+        }
+        
+        this.claimedTasks.add(lockedTask.getId());
+        if ( this.cancelledTasks.remove(lockedTask.getId()) ) {
+            logger.debug("Task {} cancelled, skipping it", lockedTask.getId());
+            this.claimedTasks.remove(lockedTask.getId());
+            this.limiter.release(lockedTask.getTaskType());
+            return null;
+        }
+        try {
+            return new ClaimedTask(deserialize(lockedTask), lockedTask.getTaskType());
+        } catch (RuntimeException e) {
+            this.claimedTasks.remove(lockedTask.getId());
+            this.limiter.release(lockedTask.getTaskType());
+            throw e;
+        }
+    }
+    
+    
+    private AbstractBaseTask deserialize(QueuedTaskHolder lockedTask) {
+        Object deserializeEvent = this.eventRecorder.begin(Phase.DESERIALIZE);
+        byte[] serializedTask = lockedTask.getPayloadRef() != null ? loadPayload(lockedTask.getPayloadRef()) : lockedTask.getSerializedTask();
+        AbstractBaseTask runnableTask = this.serializer.deserializeAndCast(serializedTask);
+        runnableTask.setQueuedTaskId(lockedTask.getId());
+        runnableTask.setQueuedTaskVersion(lockedTask.getVersion());
+        runnableTask.setTenant(lockedTask.getTenant());
+        runnableTask.setTaskKey(lockedTask.getTaskKey());
+        runnableTask.setPayloadRef(lockedTask.getPayloadRef());
+        runnableTask.setPayloadSize(serializedTask.length);
+        this.eventRecorder.commit(deserializeEvent, lockedTask.getTaskType(), lockedTask.getId(), serializedTask.length, 0);
+        return runnableTask;
+    }
+    
+    
+    /**
+     * Claims the ready tasks of the same type and tenant as a claimed
+     * {@link BatchableTask}, to run them all in one batch. The batch keeps
+     * the single concurrency slot of the first task, as it runs on a single
+     * worker, but takes a rate token for each of the rest, so no more are
+     * claimed than the rate limit of the type allows.
+     * 
+     * @return The same claimed task, with the rest of its batch.
+     */
+    private ClaimedTask collectBatch(ClaimedTask claimedTask) {
+        
+        if ( !(claimedTask.task instanceof BatchableTask) ) {
+            return claimedTask;
+        }
+        int maxBatchSize = ((BatchableTask<?>)claimedTask.task).getMaxBatchSize();
+        if ( maxBatchSize <= 1 || !this.running ) {
+            return claimedTask;
+        }
+        
+        int permits = this.limiter.tryAcquireRate(claimedTask.taskType, maxBatchSize - 1);
+        if ( permits == 0 ) {
+            return claimedTask;
+        }
+        
+        String tenant = claimedTask.task.getTenant() != null ? claimedTask.task.getTenant() : QueuedTaskHolderDao.DEFAULT_TENANT;
+        List<QueuedTaskHolder> lockedTasks;
+        try {
+            lockedTasks = obtainLockedBatch(claimedTask.taskType, tenant, permits);
+        } catch (OptimisticLockingFailureException e) {
+            // Another node got some of them, run the first one alone
+            this.limiter.returnRate(claimedTask.taskType, permits);
+            return claimedTask;
+        }
+        
+        int collected = 0;
+        for ( QueuedTaskHolder lockedTask : lockedTasks ) {
+            this.tenantScheduler.claimed(lockedTask.getTenant());
+            this.claimedTasks.add(lockedTask.getId());
+            if ( this.cancelledTasks.remove(lockedTask.getId()) ) {
+                this.claimedTasks.remove(lockedTask.getId());
+                continue;
+            }
+            try {
+                claimedTask.tasks.add(deserialize(lockedTask));
+                collected++;
+            } catch (RuntimeException e) {
+                logger.warn("Couldn't deserialize {}, freeing it: {}", lockedTask.getId(), e);
+                this.claimedTasks.remove(lockedTask.getId());
+                freeClaimedTask(lockedTask.getId(), lockedTask.getVersion());
+            }
+        }
+        this.limiter.returnRate(claimedTask.taskType, permits - collected);
+        logger.debug("Collected a batch of {} tasks of type {}", claimedTask.tasks.size(), claimedTask.taskType);
+        
+        return claimedTask;
+    }
+    
+    
+    /**
+     * Passes a deserialized task to the execution stage: the local workers
+     * through the prefetch queue, holding at most the prefetch depth set by
+     * the {@link ConcurrencyController}. If there are no local workers, or the
+     * queue stays full, the runner executes it itself, so it never waits for
+     * long.
+     */
+    private void handOff(ClaimedTask claimedTask) {
+        
+        if ( this.localWorkers != null ) {
+            boolean queued = offerPrefetched(claimedTask, 0);
+            if ( !queued ) {
+                this.concurrency.workersSaturated();
+                dispatchPrefetchedTasks();
+                queued = offerPrefetched(claimedTask, 100);
+            }
+            if ( queued ) {
+                dispatchPrefetchedTasks();
+                return;
+            }
+        }
+        
+        runClaimedTask(claimedTask);
+    }
+    
+    /**
+     * Queues a task if the prefetch queue is under the prefetch depth, waiting
+     * up to the given time for room in it.
+     */
+    private boolean offerPrefetched(ClaimedTask claimedTask, long timeoutMillis) {
+        if ( this.prefetchedTasks.size() >= this.concurrency.getPrefetchDepth() ) {
+            return false;
+        }
+        try {
+            return this.prefetchedTasks.offer(claimedTask, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    
+    /**
+     * Starts local workers to drain the prefetch queue while they have idle
+     * threads.
+     */
+    private void dispatchPrefetchedTasks() {
+        
+        if ( this.localWorkers == null ) {
+            return;
+        }
+        
+        while ( !this.prefetchedTasks.isEmpty() && this.localWorkers.getActiveCount() < this.localWorkers.getMaxPoolSize() ) {
+            try {
+                this.localWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ClaimedTask claimedTask;
+                        while ( (claimedTask = prefetchedTasks.poll()) != null ) {
+                            runClaimedTask(claimedTask);
+                            claimReleasedTasks(claimedTask.getReleasedDependents());
+                        }
+                    }
+                });
+            } catch (TaskRejectedException e) {
+                // No idle worker anymore, the busy ones will drain it
+                return;
+            }
+        }
+    }
+    
+    
+    /**
+     * Runs a deserialized task, or frees it if this node is shutting down.
+     */
+    private void runClaimedTask(ClaimedTask claimedTask) {
+        try {
+            if ( this.running ) {
+                List<AbstractBaseTask> tasks = skipCancelled(claimedTask.tasks);
+                if ( tasks.size() > 1 ) {
+                    runBatch(tasks);
+                }
+                else if ( !tasks.isEmpty() ) {
+                    runTask(tasks.get(0));
+                }
+            }
+            else {
+                logger.debug("Shutting down, freeing {}", claimedTask.getTaskIds());
+                freeClaimedTasks(claimedTask.getTaskIds());
+            }
+        } finally {
+            this.claimedTasks.removeAll(claimedTask.getTaskIds());
+            this.cancelledTasks.removeAll(claimedTask.getTaskIds());
+            this.limiter.release(claimedTask.taskType);
+        }
+    }
+    
+    
+    /**
+     * @return The tasks not cancelled since they were claimed.
+     */
+    private List<AbstractBaseTask> skipCancelled(List<AbstractBaseTask> tasks) {
+        List<AbstractBaseTask> live = new ArrayList<AbstractBaseTask>(tasks.size());
+        for ( AbstractBaseTask task : tasks ) {
+            if ( this.cancelledTasks.remove(task.getQueuedTaskId()) ) {
+                logger.debug("Task {} cancelled, skipping it", task.getQueuedTaskId());
+            }
+            else {
+                live.add(task);
+            }
+        }
+        return live;
+    }
+    
+    
+    /**
+     * A claimed task, deserialized and holding the limiter slot of its type,
+     * along with the rest of its batch if any.
+     */
+    private static class ClaimedTask {
+        
+        final AbstractBaseTask task;
+        final String taskType;
+        final List<AbstractBaseTask> tasks = new ArrayList<AbstractBaseTask>(1);
+        
+        ClaimedTask(AbstractBaseTask task, String taskType) {
+            this.task = task;
+            this.taskType = taskType;
+            this.tasks.add(task);
+        }
+        
+        List<String> getTaskIds() {
+            List<String> taskIds = new ArrayList<String>(this.tasks.size());
+            for ( AbstractBaseTask batched : this.tasks ) {
+                taskIds.add(batched.getQueuedTaskId());
+            }
+            return taskIds;
+        }
+        
+        int getReleasedDependents() {
+            int released = 0;
+            for ( AbstractBaseTask batched : this.tasks ) {
+                released += batched.getReleasedDependents();
+            }
+            return released;
+        }
+    }
+    
+    
+    /**
+     * Claims as many tasks as the ones just released by a task completed on
+     * a local worker, so they don't wait for the next runner. They go through
+     * the regular claim and hand off, so they may be other ready tasks if
+     * those come first. Claims stop once the prefetch queue is full, as the
+     * busy workers will be drained by the runners anyway.
+     */
+    private void claimReleasedTasks(int released) {
+        QueuedTaskHolder lockedTask;
+        for ( int i = 0; i < released; i++ ) {
+            if ( !this.running || this.prefetchedTasks.size() >= this.concurrency.getPrefetchDepth() ) {
+                return;
+            }
+            if ( (lockedTask = tryLockTask()) == null ) {
+                return;
+            }
+            ClaimedTask claimedTask = deserializeClaimedTask(lockedTask);
+            if ( claimedTask != null ) {
+                handOff(collectBatch(claimedTask));
+            }
+        }
+    }
+    
+    
     /**
      * The hypervisor re-queues for execution possible stalled tasks.
      */
@@ -128,6 +726,448 @@ public class PersistentTaskExecutor implements TaskExecutor {
     }
 
 
+    /**
+     * Runs a claimed task under the watchdog and notifies those waiting for
+     * it.
+     */
+    private void runTask(AbstractBaseTask task) {
+        Object execution = this.watchdog.watch(task);
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            this.watchdog.unwatch(execution);
+        }
+        if ( task.isDurable() ) {
+            this.concurrency.taskExecuted(System.nanoTime() - start);
+        }
+        if ( task.isCompleted() ) {
+            this.completionWatcher.taskCompleted(task.getQueuedTaskId());
+        }
+    }
+    
+    
+    /**
+     * Runs a claimed batch under the watchdog, which watches it through its
+     * first task and frees all of them if it hangs, and notifies those waiting for the completed tasks.
+     */
+    private void runBatch(List<AbstractBaseTask> batch) {
+        BatchableTask<?> first = (BatchableTask<?>)batch.get(0);
+        Object execution = this.watchdog.watch(batch);
+        long start = System.nanoTime();
+        try {
+            first.runBatch(batch);
+        } finally {
+            this.watchdog.unwatch(execution);
+        }
+        this.concurrency.taskExecuted(System.nanoTime() - start);
+        for ( AbstractBaseTask task : batch ) {
+            if ( task.isCompleted() ) {
+                this.completionWatcher.taskCompleted(task.getQueuedTaskId());
+            }
+        }
+    }
+    
+    
+    /**
+     * Keeps a non-durable task aside until its enqueuing transaction commits,
+     * and then queues it in memory. It gets an id, so it can be watched as
+     * any other, but it never touches the database.
+     */
+    private void enqueueInMemory(final AbstractBaseTask task) {
+        
+        if ( task.getTriggerStamp() != null || !task.getParentTaskIds().isEmpty() ) {
+            throw new IllegalArgumentException("Non-durable tasks can't have a trigger stamp nor parents: " + task);
+        }
+        
+        task.setQueuedTaskId(UUID.randomUUID().toString());
+        
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                inMemoryQueue.offer(task);
+                dispatchInMemoryTasks();
+            }
+        });
+    }
+    
+    
+    /**
+     * Takes the first in-memory task whose type isn't saturated, acquiring its
+     * limiter slot. Tasks of saturated types are moved to the tail.
+     * 
+     * @return The task, or <code>null</code> if none can run now.
+     */
+    private AbstractBaseTask pollInMemoryTask() {
+        AbstractBaseTask firstSkipped = null;
+        AbstractBaseTask task;
+        while ( (task = this.inMemoryQueue.poll()) != null ) {
+            if ( task == firstSkipped ) {
+                this.inMemoryQueue.offer(task);
+                return null;
+            }
+            if ( this.limiter.tryAcquire(task.getClass().getName()) ) {
+                return task;
+            }
+            this.inMemoryQueue.offer(task);
+            if ( firstSkipped == null ) {
+                firstSkipped = task;
+            }
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Hands in-memory tasks to the local workers while they have idle
+     * threads. Without local workers, they wait for the runners.
+     */
+    private void dispatchInMemoryTasks() {
+        
+        if ( !this.running || this.localWorkers == null ) {
+            return;
+        }
+        
+        AbstractBaseTask task;
+        while ( this.localWorkers.getActiveCount() < this.localWorkers.getMaxPoolSize() && (task = pollInMemoryTask()) != null ) {
+            final AbstractBaseTask inMemoryTask = task;
+            try {
+                this.localWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runInMemoryTask(inMemoryTask);
+                        dispatchInMemoryTasks();
+                        dispatchPrefetchedTasks();
+                    }
+                });
+            } catch (TaskRejectedException e) {
+                // No idle worker anymore, put it back
+                this.limiter.release(task.getClass().getName());
+                this.inMemoryQueue.offer(task);
+                return;
+            }
+        }
+    }
+    
+    
+    /**
+     * Runs an in-memory task whose limiter slot is already taken. It isn't
+     * retried if it fails.
+     */
+    private void runInMemoryTask(AbstractBaseTask task) {
+        String taskId = task.getQueuedTaskId();
+        this.claimedTasks.add(taskId);
+        try {
+            runTask(task);
+            if ( !task.isCompleted() ) {
+                this.completionWatcher.taskFailed(taskId, new IllegalStateException("Non-durable task failed: " + taskId));
+            }
+        } finally {
+            this.claimedTasks.remove(taskId);
+            this.limiter.release(task.getClass().getName());
+        }
+    }
+    
+    
+    /**
+     * Sets the serialized form of a task being enqueued, moving it to the
+     * payload store if it's too big.
+     * 
+     * @return The reference in the payload store, <code>null</code> if kept
+     *         in the row.
+     */
+    private String setSerializedTask(QueuedTaskHolder newTask, byte[] serializedTask) {
+        if ( this.payloadStore != null && serializedTask.length > Constants.TASK_PAYLOAD_THRESHOLD ) {
+            String payloadRef = this.payloadStore.store(serializedTask);
+            newTask.setPayloadRef(payloadRef);
+            newTask.setSerializedTask(new byte[0]);
+            return payloadRef;
+        }
+        newTask.setSerializedTask(serializedTask);
+        return null;
+    }
+    
+    
+    /**
+     * Checks if a task being enqueued can take the local fast path: there is a
+     * local worker pool with idle threads, the task is due now and its type
+     * isn't saturated. If so, the limiter slot is already taken.
+     */
+    private boolean canRunLocally(AbstractBaseTask task) {
+        if ( !this.running || this.localWorkers == null || !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            return false;
+        }
+        if ( task.getTriggerStamp() != null && task.getTriggerStamp().after(Calendar.getInstance()) ) {
+            return false;
+        }
+        if ( this.localWorkers.getActiveCount() >= this.localWorkers.getMaxPoolSize() ) {
+            return false;
+        }
+        return this.limiter.tryAcquire(task.getClass().getName());
+    }
+    
+    
+    /**
+     * Hands an already claimed task to the local workers once its enqueuing
+     * transaction commits. The in-memory task is used, so there is no
+     * deserialization. If the node dies before completing it, the row is
+     * recovered as any other stalled task.
+     */
+    private class LocalExecutionSynchronization extends TransactionSynchronizationAdapter {
+        
+        private final AbstractBaseTask task;
+        
+        public LocalExecutionSynchronization(AbstractBaseTask task) {
+            this.task = task;
+        }
+        
+        @Override
+        public void afterCommit() {
+            final String taskType = this.task.getClass().getName();
+            final String taskId = this.task.getQueuedTaskId();
+            if ( !running ) {
+                logger.debug("Shutting down, freeing {}", taskId);
+                limiter.release(taskType);
+                freeClaimedTask(taskId, this.task.getQueuedTaskVersion());
+                return;
+            }
+            claimedTasks.add(taskId);
+            try {
+                localWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if ( !cancelledTasks.remove(taskId) ) {
+                                runTask(task);
+                            }
+                        } finally {
+                            claimedTasks.remove(taskId);
+                            limiter.release(taskType);
+                        }
+                        // Don't wait for the next tick to run the tasks it released
+                        claimReleasedTasks(task.getReleasedDependents());
+                        dispatchPrefetchedTasks();
+                    }
+                });
+            } catch (TaskRejectedException e) {
+                // No idle worker anymore, leave it to the runners
+                logger.debug("Local workers busy, freeing {}", taskId);
+                claimedTasks.remove(taskId);
+                limiter.release(taskType);
+                freeClaimedTask(taskId, this.task.getQueuedTaskVersion());
+            }
+        }
+        
+        @Override
+        public void afterCompletion(int status) {
+            if ( status != STATUS_COMMITTED ) {
+                limiter.release(this.task.getClass().getName());
+            }
+        }
+    }
+    
+    
+    // Cancellation ------------------------------------------------------------
+    
+    /**
+     * Cancels a task that is not completed yet, see
+     * {@link #cancel(Collection)}.
+     * 
+     * @return <code>true</code> if the task was cancelled, <code>false</code>
+     *         if it doesn't exist or was already completed.
+     */
+    @Transactional
+    public boolean cancel(String taskId) {
+        return cancel(Collections.singleton(taskId)) > 0;
+    }
+    
+    
+    /**
+     * Cancels the given tasks that are not completed yet, whatever their
+     * state. They are marked as completed without running, and their
+     * payloads discarded when the transaction commits. Their dependents are
+     * not released, so they keep waiting unless cancelled too, and the
+     * handles returned by {@link #submit(Runnable)} for them are cancelled.
+     * Those claimed by this node and not started yet are skipped. Those
+     * running, here or on another node, can't complete anymore, so their
+     * transactions are rolled back.
+     * 
+     * @param taskIds
+     *            The ids of the tasks.
+     * @return The number of tasks cancelled.
+     */
+    @Transactional
+    public int cancel(Collection<String> taskIds) {
+        return cancelled(this.queuedTaskDao.markCancelled(taskIds, Calendar.getInstance()));
+    }
+    
+    
+    /**
+     * Cancels all the tasks with a key that are not completed yet, as
+     * {@link #cancel(Collection)} does.
+     * 
+     * @param taskKey
+     *            The key of the tasks, see
+     *            {@link AbstractBaseTask#setTaskKey(String)}.
+     * @return The number of tasks cancelled.
+     */
+    @Transactional
+    public int cancelByKey(String taskKey) {
+        return cancelled(this.queuedTaskDao.markCancelledByKey(taskKey, Calendar.getInstance()));
+    }
+    
+    
+    /**
+     * Moves the trigger stamp of a task not started yet.
+     * 
+     * @return <code>true</code> if the task was rescheduled,
+     *         <code>false</code> if it doesn't exist or was already started.
+     */
+    @Transactional
+    public boolean reschedule(String taskId, Calendar triggerStamp) {
+        return reschedule(Collections.singleton(taskId), triggerStamp) > 0;
+    }
+    
+    
+    /**
+     * Moves the trigger stamp of the given tasks not started yet. Tasks
+     * already started or completed are left as they are.
+     * 
+     * @param taskIds
+     *            The ids of the tasks.
+     * @param triggerStamp
+     *            The earliest moment to execute them, <code>null</code> for
+     *            right away.
+     * @return The number of tasks rescheduled.
+     */
+    @Transactional
+    public int reschedule(Collection<String> taskIds, Calendar triggerStamp) {
+        return this.queuedTaskDao.markRescheduled(taskIds, triggerStamp);
+    }
+    
+    
+    private int cancelled(List<QueuedTaskHolder> cancelled) {
+        
+        final List<String> cancelledIds = new ArrayList<String>(cancelled.size());
+        for ( QueuedTaskHolder task : cancelled ) {
+            cancelledIds.add(task.getId());
+            if ( task.getPayloadRef() != null && this.payloadStore != null ) {
+                this.payloadStore.delete(task.getPayloadRef());
+            }
+        }
+        
+        if ( !cancelledIds.isEmpty() ) {
+            logger.debug("Cancelled {}", cancelledIds);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    // So those claimed by this node are skipped
+                    for ( String taskId : cancelledIds ) {
+                        if ( claimedTasks.contains(taskId) ) {
+                            cancelledTasks.add(taskId);
+                        }
+                        completionWatcher.taskFailed(taskId, new CancellationException("Task cancelled: " + taskId));
+                    }
+                }
+            });
+        }
+        
+        return cancelledIds.size();
+    }
+    
+    
+    // SmartLifecycle methods --------------------------------------------------
+    
+    /**
+     * Starts claiming tasks. The first time, frees the tasks this node had
+     * claimed before it was restarted, as nobody is running them anymore. That
+     * is only done if the node id was restored from its locked file, so it
+     * can't belong to another live node.
+     */
+    @Override
+    public void start() {
+        if ( !this.recovered ) {
+            if ( this.nodeIdentity.isRestored() ) {
+                int freed = recoverClaimedTasks();
+                if ( freed > 0 ) {
+                    logger.info("Recovered {} tasks left unfinished by a previous run of this node", freed);
+                }
+            }
+            this.recovered = true;
+        }
+        this.running = true;
+        dispatchInMemoryTasks();
+    }
+    
+    
+    /**
+     * Stops claiming tasks, frees the prefetched ones right away, waits up to
+     * {@link Constants#TASK_SHUTDOWN_TIMEOUT} for the running ones, and frees
+     * the rest with a single update. Tasks freed while still running won't
+     * be able to complete, so their transactions are rolled back.
+     */
+    @Override
+    public void stop() {
+        
+        this.running = false;
+        
+        List<String> prefetchedIds = new ArrayList<String>();
+        ClaimedTask claimedTask;
+        while ( (claimedTask = this.prefetchedTasks.poll()) != null ) {
+            prefetchedIds.addAll(claimedTask.getTaskIds());
+            this.limiter.release(claimedTask.taskType);
+        }
+        if ( !prefetchedIds.isEmpty() ) {
+            freeClaimedTasks(prefetchedIds);
+            this.claimedTasks.removeAll(prefetchedIds);
+            logger.info("Freed {} prefetched tasks on shutdown", prefetchedIds.size());
+        }
+        
+        long deadline = System.currentTimeMillis() + Constants.TASK_SHUTDOWN_TIMEOUT;
+        try {
+            while ( !this.claimedTasks.isEmpty() && System.currentTimeMillis() < deadline ) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if ( !this.claimedTasks.isEmpty() ) {
+            int freed = freeClaimedTasks(new ArrayList<String>(this.claimedTasks));
+            logger.info("Freed {} unfinished tasks on shutdown", freed);
+        }
+        
+        if ( !this.inMemoryQueue.isEmpty() ) {
+            logger.warn("{} non-durable tasks left without running on shutdown", this.inMemoryQueue.size());
+        }
+    }
+    
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+    
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+    
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+    
+    /**
+     * Stopped before any other lifecycle bean, while the database is still
+     * available.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+    
+    
     /**
      * Tries to ensure a lock on a task in order to execute it.
      * 
@@ -136,19 +1176,41 @@ public class PersistentTaskExecutor implements TaskExecutor {
      */
     private QueuedTaskHolder tryLockTask() {
         
+        Object claimEvent = this.eventRecorder.begin(Phase.CLAIM);
+        long start = System.nanoTime();
+        
         int tries = 3;
+        int conflicts = 0;
         
         QueuedTaskHolder ret = null;
         while ( tries > 0 ) {
             try {
                 ret = obtainLockedTask();
-                return ret;
+                break;
             } catch (OptimisticLockingFailureException e) {
                 tries--;
+                conflicts++;
             }
         }
         
-        return null;
+        this.concurrency.claimed(System.nanoTime() - start, tries > 0 ? conflicts + 1 : conflicts, conflicts);
+        
+        // Only charged to its tenant once the claim is committed
+        if ( ret != null ) {
+            this.tenantScheduler.claimed(ret.getTenant());
+        }
+        
+        // Empty polls aren't worth an event. The size of bodies kept in the
+        // payload store is only known once loaded.
+        if ( ret != null ) {
+            int payloadSize = ret.getPayloadRef() == null ? ret.getSerializedTask().length : -1;
+            this.eventRecorder.commit(claimEvent, ret.getTaskType(), ret.getId(), payloadSize, conflicts);
+        }
+        else if ( conflicts > 0 ) {
+            this.eventRecorder.commit(claimEvent, null, null, -1, conflicts);
+        }
+        
+        return ret;
     }
 
     /**
@@ -184,15 +1246,92 @@ public class PersistentTaskExecutor implements TaskExecutor {
      */
     @Transactional
     public QueuedTaskHolder obtainLockedTask() {
-        QueuedTaskHolder qt = this.queuedTaskDao.findNextTaskForExecution();
+        Set<String> saturatedTypes = this.limiter.getSaturatedTypes();
+        
+        // The tenant whose turn it is, or the next ones if it has nothing ready
+        String tenant = this.tenantScheduler.nextTenant();
+        QueuedTaskHolder qt = this.queuedTaskDao.findNextTaskForExecution(saturatedTypes, tenant);
+        while ( qt == null && tenant != null ) {
+            this.tenantScheduler.drained(tenant);
+            tenant = this.tenantScheduler.nextTenant();
+            qt = this.queuedTaskDao.findNextTaskForExecution(saturatedTypes, tenant);
+        }
+        
         logger.debug("Next possible task for execution {}", qt);
         if ( qt != null ) {
-            qt.setStartedStamp(Calendar.getInstance(TimeZone.getTimeZone("etc/UTC")));
+            if ( !this.queuedTaskDao.markStarted(qt, Calendar.getInstance(TimeZone.getTimeZone("etc/UTC")), this.nodeIdentity.getNodeId()) ) {
+                throw new OptimisticLockingFailureException("Task already locked: " + qt.getId());
+            }
         }
         return qt;
     }
 
 
+    /**
+     * Locks ready tasks to be run in the same batch as one already claimed.
+     * Tasks that another thread got first are skipped, unless the conflict is
+     * only reported at commit.
+     * 
+     * @return The locked tasks, maybe none.
+     * @throws OptimisticLockingFailureException
+     *             If getting the lock fails.
+     */
+    @Transactional
+    public List<QueuedTaskHolder> obtainLockedBatch(String taskType, String tenant, int maxTasks) {
+        Calendar startedStamp = Calendar.getInstance(TimeZone.getTimeZone("etc/UTC"));
+        List<QueuedTaskHolder> locked = new ArrayList<QueuedTaskHolder>();
+        for ( QueuedTaskHolder qt : this.queuedTaskDao.findNextTasksForExecution(taskType, tenant, maxTasks) ) {
+            if ( this.queuedTaskDao.markStarted(qt, startedStamp, this.nodeIdentity.getNodeId()) ) {
+                locked.add(qt);
+            }
+        }
+        return locked;
+    }
+
+
+    /**
+     * @return The serialized task kept in the payload store.
+     */
+    @Transactional(readOnly=true)
+    public byte[] loadPayload(String payloadRef) {
+        return this.payloadStore.load(payloadRef);
+    }
+
+
+    /**
+     * Frees a claimed task that this node won't run after all, either because
+     * it couldn't be handed to the local workers or because its type became
+     * saturated. Runs in its own transaction, as it may be called once the
+     * enqueuing one has already committed.
+     */
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public void freeClaimedTask(String taskId, int version) {
+        this.queuedTaskDao.markFree(taskId, version);
+    }
+
+
+    /**
+     * Frees the tasks claimed by this node that are still unfinished.
+     * 
+     * @return The number of tasks freed.
+     */
+    @Transactional
+    public int freeClaimedTasks(Collection<String> taskIds) {
+        return this.queuedTaskDao.markFree(taskIds);
+    }
+
+
+    /**
+     * Frees the tasks still claimed by this node id.
+     * 
+     * @return The number of tasks freed.
+     */
+    @Transactional
+    public int recoverClaimedTasks() {
+        return this.queuedTaskDao.markFreeByNode(this.nodeIdentity.getNodeId());
+    }
+
+
     /**
      * Tries to reset a stalled task, returns null if no stalled task was reset.
      * 
@@ -207,7 +1346,9 @@ public class PersistentTaskExecutor implements TaskExecutor {
         QueuedTaskHolder stalledTask = this.queuedTaskDao.findRandomStalledTask();
         logger.debug("Obtained this stalledTask {}", stalledTask);
         if ( stalledTask != null ) {
-            stalledTask.setStartedStamp(null);
+            if ( !this.queuedTaskDao.markFree(stalledTask.getId(), stalledTask.getVersion()) ) {
+                throw new OptimisticLockingFailureException("Stalled task changed: " + stalledTask.getId());
+            }
         }
         return stalledTask;
     }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+import org.springframework.core.style.ToStringCreator;
+
+
+/**
+ * Number of queued tasks of a type in each state, as maintained by the
+ * counters of the queue. The delayed ones are counted when read.
+ *
+ * @author Carlos Vara
+ */
+public class QueueDepth {
+
+    /**
+     * The states a queued task can be in. Delayed depends on the current
+     * time, as a task becomes ready once its trigger stamp passes without its
+     * row changing. So the counters keep delayed tasks as ready, see
+     * {@link #counted(QueuedTaskHolder)}, and the delayed ones are counted
+     * apart when reading the depths.
+     */
+    public enum State {
+        /** Not started and ready for execution. */
+        READY,
+        /** Not started and with a trigger stamp not reached yet. */
+        DELAYED,
+        /** Not started and waiting for its parents. */
+        WAITING,
+        /** Started and not completed yet. */
+        RUNNING,
+        /** Completed. */
+        COMPLETED;
+
+        /**
+         * @return The state the given task is in now.
+         */
+        public static State of(QueuedTaskHolder task) {
+            State counted = counted(task);
+            if ( counted == READY && task.getTriggerStamp() != null && !task.getTriggerStamp().before(Calendar.getInstance()) ) {
+                return DELAYED;
+            }
+            return counted;
+        }
+        
+        /**
+         * @return The state the given task is counted in, which only depends
+         *         on its row: never {@link #DELAYED}, which is counted as
+         *         {@link #READY}.
+         */
+        public static State counted(QueuedTaskHolder task) {
+            if ( task.getCompletedStamp() != null ) {
+                return COMPLETED;
+            }
+            if ( task.getStartedStamp() != null ) {
+                return RUNNING;
+            }
+            if ( task.getPendingParents() > 0 ) {
+                return WAITING;
+            }
+            return READY;
+        }
+    }
+
+
+    public QueueDepth(String taskType) {
+        this.taskType = taskType;
+    }
+
+
+    /**
+     * @return The class name of the tasks counted.
+     */
+    public String getTaskType() {
+        return this.taskType;
+    }
+
+    public long getCount(State state) {
+        return this.counts[state.ordinal()];
+    }
+
+    public void setCount(State state, long count) {
+        this.counts[state.ordinal()] = count;
+    }
+
+    /**
+     * @return The number of tasks not started yet, whatever the reason.
+     */
+    public long getPending() {
+        return getCount(State.READY) + getCount(State.DELAYED) + getCount(State.WAITING);
+    }
+
+
+    private final String taskType;
+    private final long[] counts = new long[State.values().length];
+
+
+    @Override
+    public String toString() {
+        ToStringCreator tsc = new ToStringCreator(this).append("taskType", getTaskType());
+        for ( State state : State.values() ) {
+            tsc.append(state.name().toLowerCase(), getCount(state));
+        }
+        return tsc.toString();
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Admin view of the queue, for dashboards and autoscalers.
+ * <p>
+ * Depths come from the counters maintained by the DAO, so they can be polled
+ * every few seconds without counting the queue. This component periodically
+ * flushes the counter changes of this node, and keeps a cached total of the
+ * pending tasks for the {@link EnqueueBackpressure}.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class QueueDepthMonitor {
+
+    final static Logger logger = LoggerFactory.getLogger(QueueDepthMonitor.class);
+
+
+    @Autowired
+    protected QueuedTaskHolderDao queuedTaskDao;
+
+    /**
+     * Pending tasks of all types as of the last refresh.
+     */
+    private volatile long pendingDepth = 0;
+
+    /**
+     * Tasks enqueued by this node since the last refresh.
+     */
+    private final AtomicLong enqueuedSinceRefresh = new AtomicLong();
+
+
+    /**
+     * @return The number of tasks not started yet, from the cached counters
+     *         plus the tasks enqueued by this node since they were read. It
+     *         doesn't touch the database.
+     */
+    public long getPendingDepth() {
+        return this.pendingDepth + this.enqueuedSinceRefresh.get();
+    }
+
+
+    /**
+     * Notifies that this node enqueued a task, so it is reflected in the
+     * pending depth before the next refresh.
+     */
+    public void taskEnqueued() {
+        this.enqueuedSinceRefresh.incrementAndGet();
+    }
+
+
+    /**
+     * @return The number of tasks in each state, per task type.
+     */
+    @Transactional(readOnly=true)
+    public List<QueueDepth> getQueueDepths() {
+        return this.queuedTaskDao.findQueueDepths();
+    }
+
+
+    /**
+     * Lists the tasks of a type in a state, a page at a time.
+     *
+     * @see QueuedTaskHolderDao#findTasks(String, QueueDepth.State, QueuedTaskHolder, int)
+     */
+    @Transactional(readOnly=true)
+    public List<QueuedTaskHolder> findTasks(String taskType, QueueDepth.State state, QueuedTaskHolder after, int maxResults) {
+        return this.queuedTaskDao.findTasks(taskType, state, after, maxResults);
+    }
+
+
+    /**
+     * Rebuilds the counters by counting the whole queue.
+     *
+     * @see QueuedTaskHolderDao#recountQueueDepths()
+     */
+    @Transactional
+    public void recount() {
+        this.queuedTaskDao.recountQueueDepths();
+        logger.info("Recounted queue depths: {}", this.queuedTaskDao.findQueueDepths());
+    }
+
+
+    /**
+     * Writes the counter changes of this node, and refreshes the cached
+     * pending depth. Changes that can't be written are kept for the next run.
+     */
+    @Scheduled(fixedRate=Constants.TASK_DEPTH_FLUSH_RATE)
+    public void flusher() {
+        try {
+            flush();
+            long pending = 0;
+            for ( QueueDepth depth : getQueueDepths() ) {
+                pending += depth.getPending();
+            }
+            this.pendingDepth = pending;
+            this.enqueuedSinceRefresh.set(0);
+        } catch (DataAccessException e) {
+            logger.debug("Couldn't flush queue depths, will retry", e);
+        } catch (TransactionException e) {
+            logger.debug("Couldn't flush queue depths, will retry", e);
+        }
+    }
+
+
+    @Transactional
+    public void flush() {
+        this.queuedTaskDao.flushQueueDepths();
+    }
+
+}
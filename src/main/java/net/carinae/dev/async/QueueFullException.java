@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import org.springframework.core.task.TaskRejectedException;
+
+
+/**
+ * Thrown when a task is not enqueued because the queue is over capacity.
+ *
+ * @author Carlos Vara
+ */
+public class QueueFullException extends TaskRejectedException {
+
+    public QueueFullException(long pendingDepth) {
+        super("Task queue over capacity, " + pendingDepth + " tasks pending");
+        this.pendingDepth = pendingDepth;
+    }
+
+
+    /**
+     * @return The pending tasks when the task was rejected.
+     */
+    public long getPendingDepth() {
+        return this.pendingDepth;
+    }
+
+
+    private final long pendingDepth;
+
+    private static final long serialVersionUID = 1L;
+}
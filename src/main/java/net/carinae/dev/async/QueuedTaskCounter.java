@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import org.springframework.core.style.ToStringCreator;
+
+
+/**
+ * Persistent entity that keeps one stripe of the number of queued tasks of a
+ * type in a state.
+ * <p>
+ * Each node adds its changes to its own stripe, so nodes don't contend on the
+ * same rows. The depth is the sum of all the stripes.
+ *
+ * @author Carlos Vara
+ */
+@Entity
+@Table(name="TASK_QUEUE_DEPTH")
+public class QueuedTaskCounter {
+
+    public QueuedTaskCounter() {
+    }
+
+    public QueuedTaskCounter(String taskType, QueueDepth.State state, int stripe) {
+        this.id = idFor(taskType, state, stripe);
+        this.taskType = taskType;
+        this.state = state;
+        this.stripe = stripe;
+    }
+
+
+    /**
+     * @return The id of the counter row for a stripe of a task type and state.
+     */
+    public static String idFor(String taskType, QueueDepth.State state, int stripe) {
+        return taskType + "#" + state.name() + "#" + stripe;
+    }
+
+
+    // Getters -----------------------------------------------------------------
+
+    @Id
+    public String getId() {
+        return this.id;
+    }
+
+    @NotNull
+    @Column(name="TASK_TYPE")
+    public String getTaskType() {
+        return this.taskType;
+    }
+
+    @NotNull
+    @Enumerated(EnumType.STRING)
+    @Column(name="STATE")
+    public QueueDepth.State getState() {
+        return this.state;
+    }
+
+    @Column(name="STRIPE")
+    public int getStripe() {
+        return this.stripe;
+    }
+
+    @Column(name="TASK_COUNT")
+    public long getTaskCount() {
+        return this.taskCount;
+    }
+
+
+    // Setters -----------------------------------------------------------------
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setTaskType(String taskType) {
+        this.taskType = taskType;
+    }
+
+    public void setState(QueueDepth.State state) {
+        this.state = state;
+    }
+
+    public void setStripe(int stripe) {
+        this.stripe = stripe;
+    }
+
+    public void setTaskCount(long taskCount) {
+        this.taskCount = taskCount;
+    }
+
+
+    // Fields ------------------------------------------------------------------
+
+    private String id;
+    private String taskType;
+    private QueueDepth.State state;
+    private int stripe;
+    private long taskCount;
+
+
+    // Methods -----------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return new ToStringCreator(this).append("id", getId())
+            .append("taskCount", getTaskCount())
+            .toString();
+    }
+
+}
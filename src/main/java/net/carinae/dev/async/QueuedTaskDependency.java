@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import org.hibernate.annotations.Index;
+import org.springframework.core.style.ToStringCreator;
+
+
+/**
+ * Persistent entity that records that a queued task can't be executed until
+ * another one is completed.
+ * <p>
+ * Rows only exist while the parent task is pending; they are removed in the
+ * same transaction that completes it.
+ *
+ * @author Carlos Vara
+ */
+@Entity
+@Table(name="TASK_DEPENDENCY")
+public class QueuedTaskDependency {
+
+    public QueuedTaskDependency() {
+    }
+
+    public QueuedTaskDependency(String parentId, String childId) {
+        this.parentId = parentId;
+        this.childId = childId;
+    }
+
+
+    // Getters -----------------------------------------------------------------
+
+    @Id
+    public String getId() {
+        if ( this.id == null ) {
+            this.setId(UUID.randomUUID().toString());
+        }
+        return this.id;
+    }
+
+    @NotNull
+    @Index(name="IDX_TASK_DEPENDENCY_PARENT")
+    @Column(name="PARENT_ID")
+    public String getParentId() {
+        return this.parentId;
+    }
+
+    @NotNull
+    @Column(name="CHILD_ID")
+    public String getChildId() {
+        return this.childId;
+    }
+
+
+    // Setters -----------------------------------------------------------------
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setParentId(String parentId) {
+        this.parentId = parentId;
+    }
+
+    public void setChildId(String childId) {
+        this.childId = childId;
+    }
+
+
+    // Fields ------------------------------------------------------------------
+
+    private String id;
+    private String parentId;
+    private String childId;
+
+
+    // Methods -----------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return new ToStringCreator(this).append("parentId", getParentId())
+            .append("childId", getChildId())
+            .toString();
+    }
+
+}
@@ -27,19 +27,33 @@ import javax.persistence.PrePersist;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.Transient;
 import javax.persistence.Version;
 import javax.validation.constraints.NotNull;
-import javax.validation.constraints.Past;
+import org.hibernate.annotations.Index;
 import org.springframework.core.style.ToStringCreator;
 
 
 /**
  * Persistent entity that stores an async task.
+ * <p>
+ * The type index serves the paginated listings of
+ * {@link net.carinae.dev.async.dao.QueuedTaskHolderDao#findTasks}, the
+ * tenant index the per tenant claims of the {@link TenantScheduler}, the
+ * key index the cancellations by key, and the trigger index the count of the
+ * delayed tasks.
+ * <p>
+ * A cancelled task is completed without having been started.
  * 
  * @author Carlos Vara
  */
 @Entity
 @Table(name="TASK_QUEUE")
+@org.hibernate.annotations.Table(appliesTo="TASK_QUEUE", indexes={
+        @Index(name="IDX_TASK_QUEUE_TYPE", columnNames={"TASK_TYPE", "COMPLETED_STAMP", "CREATION_STAMP", "ID"}),
+        @Index(name="IDX_TASK_QUEUE_TENANT", columnNames={"TENANT", "STARTED_STAMP", "OPTLOCK", "CREATION_STAMP"}),
+        @Index(name="IDX_TASK_QUEUE_KEY", columnNames={"TASK_KEY", "COMPLETED_STAMP"}),
+        @Index(name="IDX_TASK_QUEUE_TRIGGER", columnNames={"TRIGGER_STAMP", "STARTED_STAMP"})})
 public class QueuedTaskHolder {
     
     // Getters -----------------------------------------------------------------
@@ -53,7 +67,6 @@ public class QueuedTaskHolder {
     }
     
     @NotNull
-    @Past
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name="CREATION_STAMP")
     public Calendar getCreationStamp() {
@@ -66,20 +79,30 @@ public class QueuedTaskHolder {
         return triggerStamp;
     }
 
-    @Past
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name="STARTED_STAMP")
     public Calendar getStartedStamp() {
         return this.startedStamp;
     }
     
-    @Past
+    /**
+     * @return The id of the node that claimed the task, if claimed.
+     */
+    @Index(name="IDX_TASK_QUEUE_NODE")
+    @Column(name="NODE_ID")
+    public String getNodeId() {
+        return this.nodeId;
+    }
+    
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name="COMPLETED_STAMP")
     public Calendar getCompletedStamp() {
         return this.completedStamp;
     }
     
+    /**
+     * @return The serialized task, empty if it's kept in the payload store.
+     */
     @Lob
     @NotNull
     @Column(name="SERIALIZED_TASK")
@@ -87,19 +110,85 @@ public class QueuedTaskHolder {
         return this.serializedTask;
     }
     
+    /**
+     * @return The reference of the serialized task in the payload store, if
+     *         it was too big to be kept in the row.
+     */
+    @Column(name="PAYLOAD_REF")
+    public String getPayloadRef() {
+        return this.payloadRef;
+    }
+    
+    /**
+     * @return The class name of the task.
+     */
+    @Column(name="TASK_TYPE")
+    public String getTaskType() {
+        return this.taskType;
+    }
+    
+    /**
+     * @return The owner of the task, whose share of the executions is
+     *         enforced by the {@link TenantScheduler}. <code>null</code> for
+     *         the default tenant.
+     */
+    @Column(name="TENANT")
+    public String getTenant() {
+        return this.tenant;
+    }
+    
+    /**
+     * @return The key the task can be cancelled by, shared with other tasks
+     *         on the same business entity. May be <code>null</code>.
+     */
+    @Column(name="TASK_KEY")
+    public String getTaskKey() {
+        return this.taskKey;
+    }
+    
+    /**
+     * Identifies the occurrence of a recurring task this task was created for.
+     * Being unique, no occurrence can be enqueued twice.
+     */
+    @Column(name="RECURRENCE_KEY", unique=true)
+    public String getRecurrenceKey() {
+        return this.recurrenceKey;
+    }
+    
+    /**
+     * Number of parent tasks that must be completed before this one can be
+     * executed.
+     */
+    @Column(name="PENDING_PARENTS")
+    public int getPendingParents() {
+        return this.pendingParents;
+    }
+    
+    /**
+     * @return <code>true</code> if the task was cancelled instead of run.
+     */
+    @Transient
+    public boolean isCancelled() {
+        return this.completedStamp != null && this.startedStamp == null;
+    }
+    
     @Version
     @Column(name="OPTLOCK")
-    protected int getVersion() {
+    public int getVersion() {
         return this.version;
     }
     
     
     // Setters -----------------------------------------------------------------
     
-    protected void setId(String id) {
+    public void setId(String id) {
         this.id = id;
     }
     
+    public void setTaskType(String taskType) {
+        this.taskType = taskType;
+    }
+    
     public void setCreationStamp(Calendar creationStamp) {
         this.creationStamp = creationStamp;
     }
@@ -112,6 +201,10 @@ public class QueuedTaskHolder {
         this.startedStamp = startedStamp;
     }
 
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
     public void setCompletedStamp(Calendar completedStamp) {
         this.completedStamp = completedStamp;
     }
@@ -120,7 +213,27 @@ public class QueuedTaskHolder {
         this.serializedTask = serializedTask;
     }
     
-    protected void setVersion(int version) {
+    public void setPayloadRef(String payloadRef) {
+        this.payloadRef = payloadRef;
+    }
+    
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+    
+    public void setTaskKey(String taskKey) {
+        this.taskKey = taskKey;
+    }
+    
+    public void setRecurrenceKey(String recurrenceKey) {
+        this.recurrenceKey = recurrenceKey;
+    }
+    
+    public void setPendingParents(int pendingParents) {
+        this.pendingParents = pendingParents;
+    }
+    
+    public void setVersion(int version) {
         this.version = version;
     }
     
@@ -128,11 +241,18 @@ public class QueuedTaskHolder {
     // Fields ------------------------------------------------------------------
 
     private String id;
+    private String taskType;
     private Calendar creationStamp;
     private Calendar triggerStamp = null;
     private Calendar startedStamp = null;
+    private String nodeId = null;
     private Calendar completedStamp = null;
     private byte[] serializedTask;
+    private String payloadRef = null;
+    private String tenant = null;
+    private String taskKey = null;
+    private String recurrenceKey = null;
+    private int pendingParents = 0;
     private int version;
     
     
@@ -166,8 +286,11 @@ public class QueuedTaskHolder {
     public String toString() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss z");
         return new ToStringCreator(this).append("id", getId())
+            .append("taskType", getTaskType())
+            .append("tenant", getTenant())
             .append("creationStamp", (getCreationStamp()!=null)?sdf.format(getCreationStamp().getTime()):null)
             .append("startedStamp", (getStartedStamp()!=null)?sdf.format(getStartedStamp().getTime()):null)
+            .append("nodeId", getNodeId())
             .append("completedStamp", (getCompletedStamp()!=null)?sdf.format(getCompletedStamp().getTime()):null)
             .toString();
     }    
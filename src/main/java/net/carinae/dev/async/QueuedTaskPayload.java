@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import org.springframework.core.style.ToStringCreator;
+
+
+/**
+ * Persistent entity that stores the serialized form of a large task out of
+ * the task queue table, which only keeps a reference to it.
+ * 
+ * @author Carlos Vara
+ */
+@Entity
+@Table(name="TASK_PAYLOAD")
+public class QueuedTaskPayload {
+
+    public QueuedTaskPayload() {
+    }
+    
+    public QueuedTaskPayload(byte[] payload) {
+        this.payload = payload;
+    }
+    
+    
+    // Getters -----------------------------------------------------------------
+    
+    @Id
+    public String getId() {
+        if ( this.id == null ) {
+            this.setId(UUID.randomUUID().toString());
+        }
+        return this.id;
+    }
+    
+    @Lob
+    @NotNull
+    @Column(name="PAYLOAD")
+    public byte[] getPayload() {
+        return this.payload;
+    }
+    
+    
+    // Setters -----------------------------------------------------------------
+    
+    public void setId(String id) {
+        this.id = id;
+    }
+    
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+    
+    
+    // Fields ------------------------------------------------------------------
+    
+    private String id;
+    private byte[] payload;
+    
+    
+    // Methods -----------------------------------------------------------------
+    
+    @Override
+    public String toString() {
+        return new ToStringCreator(this).append("id", getId())
+            .append("size", (getPayload()!=null)?getPayload().length:null)
+            .toString();
+    }
+    
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+import javax.validation.constraints.NotNull;
+import org.springframework.core.style.ToStringCreator;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+
+
+/**
+ * Persistent entity that defines a task to be enqueued periodically, either
+ * following a cron expression or at a fixed rate.
+ *
+ * @author Carlos Vara
+ */
+@Entity
+@Table(name="TASK_RECURRENCE")
+public class RecurringTaskDefinition {
+
+    // Getters -----------------------------------------------------------------
+
+    /**
+     * @return The unique name of the definition.
+     */
+    @Id
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * @return The class name of the task.
+     */
+    @Column(name="TASK_TYPE")
+    public String getTaskType() {
+        return this.taskType;
+    }
+
+    @Column(name="CRON_EXPRESSION")
+    public String getCronExpression() {
+        return this.cronExpression;
+    }
+
+    @Column(name="TIME_ZONE")
+    public String getTimeZone() {
+        return this.timeZone;
+    }
+
+    /**
+     * @return Milliseconds between occurrences, when not using a cron
+     *         expression.
+     */
+    @Column(name="FIXED_RATE")
+    public Long getFixedRate() {
+        return this.fixedRate;
+    }
+
+    @NotNull
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="NEXT_FIRE_STAMP")
+    public Calendar getNextFireStamp() {
+        return this.nextFireStamp;
+    }
+
+    /**
+     * @return The tenant of the enqueued occurrences, <code>null</code> for
+     *         the default one.
+     */
+    @Column(name="TENANT")
+    public String getTenant() {
+        return this.tenant;
+    }
+
+    /**
+     * @return The key of the enqueued occurrences, may be <code>null</code>.
+     */
+    @Column(name="TASK_KEY")
+    public String getTaskKey() {
+        return this.taskKey;
+    }
+
+    @Lob
+    @NotNull
+    @Column(name="SERIALIZED_TASK")
+    public byte[] getSerializedTask() {
+        return this.serializedTask;
+    }
+
+    @Version
+    @Column(name="OPTLOCK")
+    public int getVersion() {
+        return this.version;
+    }
+
+
+    // Setters -----------------------------------------------------------------
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setTaskType(String taskType) {
+        this.taskType = taskType;
+    }
+
+    public void setCronExpression(String cronExpression) {
+        this.cronExpression = cronExpression;
+    }
+
+    public void setTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    public void setFixedRate(Long fixedRate) {
+        this.fixedRate = fixedRate;
+    }
+
+    public void setNextFireStamp(Calendar nextFireStamp) {
+        this.nextFireStamp = nextFireStamp;
+    }
+
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public void setTaskKey(String taskKey) {
+        this.taskKey = taskKey;
+    }
+
+    public void setSerializedTask(byte[] serializedTask) {
+        this.serializedTask = serializedTask;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+
+    // Fields ------------------------------------------------------------------
+
+    private String id;
+    private String taskType;
+    private String cronExpression;
+    private String timeZone;
+    private Long fixedRate;
+    private Calendar nextFireStamp;
+    private String tenant;
+    private String taskKey;
+    private byte[] serializedTask;
+    private int version;
+
+
+    // Methods -----------------------------------------------------------------
+
+    /**
+     * Computes the first occurrence strictly after the given moment.
+     *
+     * @param after
+     *            The reference moment.
+     * @return The next occurrence.
+     */
+    public Calendar computeNextFireStamp(Calendar after) {
+        Calendar next = Calendar.getInstance(TimeZone.getTimeZone("Etc/UTC"));
+        if ( this.cronExpression != null ) {
+            TimeZone tz = this.timeZone != null ? TimeZone.getTimeZone(this.timeZone) : TimeZone.getDefault();
+            Date nextDate = new CronSequenceGenerator(this.cronExpression, tz).next(after.getTime());
+            next.setTime(nextDate);
+        }
+        else {
+            next.setTimeInMillis(after.getTimeInMillis() + this.fixedRate);
+        }
+        return next;
+    }
+
+    /**
+     * @return The key that identifies the occurrence at the given moment,
+     *         unique across the whole queue.
+     */
+    public String getRecurrenceKey(Calendar fireStamp) {
+        return this.id + "@" + fireStamp.getTimeInMillis();
+    }
+
+    @Override
+    public String toString() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss z");
+        return new ToStringCreator(this).append("id", getId())
+            .append("cronExpression", getCronExpression())
+            .append("fixedRate", getFixedRate())
+            .append("nextFireStamp", (getNextFireStamp()!=null)?sdf.format(getNextFireStamp().getTime()):null)
+            .toString();
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import javax.persistence.OptimisticLockException;
+import net.carinae.dev.async.dao.RecurringTaskDefinitionDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.util.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Cluster-wide recurring tasks.
+ * <p>
+ * Definitions are persisted, and every node periodically materializes their
+ * due occurrences into regular queued tasks, which are then claimed and
+ * executed as any other. Each occurrence carries a unique recurrence key, so
+ * even if several nodes try to enqueue the same occurrence only one of them
+ * succeeds.
+ * <p>
+ * Occurrences are enqueued through the {@link PersistentTaskExecutor}, with
+ * the tenant and key the task had when defined.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class RecurringTaskScheduler {
+
+    final static Logger logger = LoggerFactory.getLogger(RecurringTaskScheduler.class);
+
+
+    @Autowired
+    protected RecurringTaskDefinitionDao definitionDao;
+
+    @Autowired
+    protected PersistentTaskExecutor executor;
+
+    @Autowired
+    protected Serializer serializer;
+
+
+    /**
+     * Creates or updates a recurring task that follows a cron expression,
+     * evaluated in the default time zone of this node.
+     *
+     * @param name
+     *            Unique name of the recurring task.
+     * @param task
+     *            The task to enqueue on each occurrence.
+     * @param cronExpression
+     *            When to enqueue it.
+     */
+    @Transactional
+    public void scheduleWithCron(String name, AbstractBaseTask task, String cronExpression) {
+        define(name, task, cronExpression, null);
+    }
+
+
+    /**
+     * Creates or updates a recurring task that is enqueued at a fixed rate.
+     *
+     * @param name
+     *            Unique name of the recurring task.
+     * @param task
+     *            The task to enqueue on each occurrence.
+     * @param period
+     *            Milliseconds between occurrences.
+     */
+    @Transactional
+    public void scheduleAtFixedRate(String name, AbstractBaseTask task, long period) {
+        define(name, task, null, period);
+    }
+
+
+    /**
+     * Stores the definition. Its next occurrence is only recomputed if it is
+     * new or its recurrence changed, so redefining it on every startup
+     * doesn't delay it.
+     */
+    private void define(String name, AbstractBaseTask task, String cronExpression, Long fixedRate) {
+
+        RecurringTaskDefinition definition = this.definitionDao.findById(name);
+        boolean isNew = definition == null;
+        if ( isNew ) {
+            definition = new RecurringTaskDefinition();
+            definition.setId(name);
+        }
+
+        boolean changed = isNew
+            || !ObjectUtils.nullSafeEquals(cronExpression, definition.getCronExpression())
+            || !ObjectUtils.nullSafeEquals(fixedRate, definition.getFixedRate());
+
+        definition.setTaskType(task.getClass().getName());
+        definition.setCronExpression(cronExpression);
+        definition.setFixedRate(fixedRate);
+        definition.setTimeZone(TimeZone.getDefault().getID());
+        definition.setTenant(task.getTenant());
+        definition.setTaskKey(task.getTaskKey());
+        definition.setSerializedTask(this.serializer.serializeObject(task));
+        if ( changed ) {
+            definition.setNextFireStamp(definition.computeNextFireStamp(Calendar.getInstance()));
+        }
+
+        if ( isNew ) {
+            this.definitionDao.persist(definition);
+        }
+
+        logger.debug("Defined recurring task {}", definition);
+    }
+
+
+    /**
+     * Enqueues the occurrences due before the next run of the materializer.
+     * They are enqueued with their fire time as trigger stamp, so they won't
+     * be executed earlier. Losing the race for an occurrence to another node
+     * is expected; any other failure is logged and retried on the next run.
+     */
+    @Scheduled(fixedRate=Constants.TASK_RECURRENCE_RATE)
+    public void materializer() {
+
+        Calendar horizon = Calendar.getInstance();
+        horizon.add(Calendar.MILLISECOND, (int)Constants.TASK_RECURRENCE_RATE);
+
+        for ( String definitionId : findDueDefinitionIds(horizon) ) {
+            try {
+                materialize(definitionId, horizon);
+            } catch (RuntimeException e) {
+                if ( isConflict(e) ) {
+                    logger.debug("Occurrence of {} already enqueued by another node", definitionId);
+                }
+                else {
+                    logger.warn("Couldn't enqueue the occurrence of " + definitionId, e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the exception comes from the unique
+     *         recurrence key or the version of the definition, whatever the
+     *         layer that wrapped it.
+     */
+    private static boolean isConflict(Throwable e) {
+        for ( Throwable cause = e; cause != null; cause = cause.getCause() ) {
+            if ( cause instanceof DataIntegrityViolationException
+                    || cause instanceof OptimisticLockingFailureException
+                    || cause instanceof OptimisticLockException ) {
+                return true;
+            }
+            // Integrity constraint violation class
+            if ( cause instanceof SQLException && ((SQLException)cause).getSQLState() != null
+                    && ((SQLException)cause).getSQLState().startsWith("23") ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    @Transactional(readOnly=true)
+    public List<String> findDueDefinitionIds(Calendar horizon) {
+        return this.definitionDao.findDueDefinitionIds(horizon);
+    }
+
+
+    /**
+     * Enqueues the next occurrence of a definition, if still due, and
+     * advances it.
+     *
+     * @return <code>true</code> if an occurrence was enqueued.
+     * @throws RuntimeException
+     *             If another node enqueued it concurrently, among others.
+     */
+    @Transactional
+    public boolean materialize(String definitionId, Calendar horizon) {
+
+        RecurringTaskDefinition definition = this.definitionDao.findById(definitionId);
+        if ( definition == null || definition.getNextFireStamp().after(horizon) ) {
+            return false;
+        }
+
+        Calendar fireStamp = definition.getNextFireStamp();
+
+        QueuedTaskHolder occurrence = new QueuedTaskHolder();
+        occurrence.setTaskType(definition.getTaskType());
+        occurrence.setTriggerStamp(fireStamp);
+        occurrence.setTenant(definition.getTenant());
+        occurrence.setTaskKey(definition.getTaskKey());
+        occurrence.setRecurrenceKey(definition.getRecurrenceKey(fireStamp));
+        this.executor.executeSerialized(occurrence, definition.getSerializedTask());
+
+        // Occurrences missed while no node was running are skipped
+        Calendar now = Calendar.getInstance();
+        definition.setNextFireStamp(definition.computeNextFireStamp(fireStamp.before(now) ? now : fireStamp));
+
+        logger.debug("Enqueued occurrence {}", occurrence.getRecurrenceKey());
+        return true;
+    }
+
+}
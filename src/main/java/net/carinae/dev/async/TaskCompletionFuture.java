@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle to a task enqueued through
+ * {@link PersistentTaskExecutor#submit(Runnable)}, done once the task has been
+ * completed by any node.
+ * <p>
+ * Cancelling the handle only stops waiting for the task; the persistent task
+ * itself keeps its course, so {@link #cancel(boolean)} always returns
+ * <code>false</code>. If the task is cancelled through the executor instead,
+ * the handle is cancelled too, and {@link #get()} throws a
+ * {@link CancellationException}.
+ *
+ * @author Carlos Vara
+ */
+public class TaskCompletionFuture implements Future<Void> {
+
+    private final String queuedTaskId;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Throwable failure;
+
+
+    TaskCompletionFuture(String queuedTaskId) {
+        this.queuedTaskId = queuedTaskId;
+    }
+
+
+    /**
+     * @return The id of the queued task this handle waits for.
+     */
+    public String getQueuedTaskId() {
+        return this.queuedTaskId;
+    }
+
+
+    // Future methods ----------------------------------------------------------
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.failure instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        this.done.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if ( !this.done.await(timeout, unit) ) {
+            throw new TimeoutException("Task not completed yet: " + this.queuedTaskId);
+        }
+        return result();
+    }
+
+
+    // Completion --------------------------------------------------------------
+
+    void complete() {
+        this.done.countDown();
+    }
+
+    void fail(Throwable cause) {
+        this.failure = cause;
+        this.done.countDown();
+    }
+
+    private Void result() throws ExecutionException {
+        if ( this.failure instanceof CancellationException ) {
+            throw (CancellationException)this.failure;
+        }
+        if ( this.failure != null ) {
+            throw new ExecutionException(this.failure);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Keeps the {@link TaskCompletionFuture}s of submitted tasks and completes
+ * them.
+ * <ul>
+ *  <li>Tasks run by this node are notified directly by the executor.</li>
+ *  <li>Tasks run by other nodes are detected by a periodic watcher, which
+ *  checks all the pending handles with a few batched queries.</li>
+ * </ul>
+ * Cancelled tasks fail their handles with a {@link CancellationException},
+ * as they will never be completed.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class TaskCompletionWatcher {
+
+    final static Logger logger = LoggerFactory.getLogger(TaskCompletionWatcher.class);
+
+    /**
+     * Max number of ids checked per query.
+     */
+    private static final int BATCH_SIZE = 500;
+
+
+    @Autowired
+    protected QueuedTaskHolderDao queuedTaskDao;
+
+    private final ConcurrentMap<String, TaskCompletionFuture> pending = new ConcurrentHashMap<String, TaskCompletionFuture>();
+
+
+    /**
+     * Starts watching a task.
+     *
+     * @param queuedTaskId
+     *            The id of the queued task.
+     * @return The handle that will be completed with the task.
+     */
+    public TaskCompletionFuture watch(String queuedTaskId) {
+        TaskCompletionFuture future = new TaskCompletionFuture(queuedTaskId);
+        TaskCompletionFuture previous = this.pending.putIfAbsent(queuedTaskId, future);
+        return previous != null ? previous : future;
+    }
+
+
+    /**
+     * Notifies that a task has been completed. Does nothing if nobody is
+     * waiting for it.
+     */
+    public void taskCompleted(String queuedTaskId) {
+        TaskCompletionFuture future = this.pending.remove(queuedTaskId);
+        if ( future != null ) {
+            future.complete();
+        }
+    }
+
+
+    /**
+     * Notifies that a task will never be completed, for example because its
+     * enqueuing transaction was rolled back.
+     */
+    public void taskFailed(String queuedTaskId, Throwable cause) {
+        TaskCompletionFuture future = this.pending.remove(queuedTaskId);
+        if ( future != null ) {
+            future.fail(cause);
+        }
+    }
+
+
+    /**
+     * Checks if any of the pending tasks has been completed or cancelled
+     * elsewhere.
+     */
+    @Scheduled(fixedRate=Constants.TASK_COMPLETION_WATCHER_RATE)
+    public void watcher() {
+
+        if ( this.pending.isEmpty() ) {
+            return;
+        }
+
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        Iterator<String> it = this.pending.keySet().iterator();
+        while ( it.hasNext() ) {
+            batch.add(it.next());
+            if ( batch.size() == BATCH_SIZE || !it.hasNext() ) {
+                for ( String completedId : findCompleted(batch) ) {
+                    taskCompleted(completedId);
+                }
+                for ( String cancelledId : findCancelled(batch) ) {
+                    taskFailed(cancelledId, new CancellationException("Task cancelled: " + cancelledId));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+
+    /**
+     * @return The ids of the given tasks which are already completed.
+     */
+    @Transactional(readOnly=true)
+    public List<String> findCompleted(List<String> queuedTaskIds) {
+        List<String> completed = this.queuedTaskDao.findCompletedTaskIds(queuedTaskIds);
+        logger.debug("{} out of {} watched tasks completed", completed.size(), queuedTaskIds.size());
+        return completed;
+    }
+
+
+    /**
+     * @return The ids of the given tasks which were cancelled.
+     */
+    @Transactional(readOnly=true)
+    public List<String> findCancelled(List<String> queuedTaskIds) {
+        return this.queuedTaskDao.findCancelledTaskIds(queuedTaskIds);
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.carinae.dev.async.task.TaskLimits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Per task type bulkheads and rate limits, local to this node.
+ * <p>
+ * Limits are read from the {@link TaskLimits} annotation of the task classes
+ * the first time a task of that type is seen, or set programmatically with
+ * {@link #setLimits(Class, int, double)}. The executor asks for the saturated
+ * types before claiming, so those types are skipped by the claim query.
+ * 
+ * @author Carlos Vara
+ */
+@Component
+public class TaskTypeLimiter {
+
+    final static Logger logger = LoggerFactory.getLogger(TaskTypeLimiter.class);
+    
+    /**
+     * Limits by type, also kept for types without limits so their running
+     * tasks are counted if limits are set later.
+     */
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+    
+    
+    /**
+     * Sets the limits for a task type, overriding its annotation. The tasks
+     * of that type already running count against the new limits.
+     * 
+     * @param taskType
+     *            The task class.
+     * @param maxConcurrency
+     *            Max running tasks of that type, zero or less for unlimited.
+     * @param maxPerSecond
+     *            Max started tasks per second, zero or less for unlimited.
+     */
+    public void setLimits(Class<?> taskType, int maxConcurrency, double maxPerSecond) {
+        limitFor(taskType.getName()).update(maxConcurrency, maxPerSecond);
+    }
+    
+    
+    /**
+     * @return The task types that can't be started right now.
+     */
+    public Set<String> getSaturatedTypes() {
+        Set<String> saturated = new HashSet<String>();
+        for ( Map.Entry<String, Limit> entry : this.limits.entrySet() ) {
+            if ( entry.getValue().isSaturated() ) {
+                saturated.add(entry.getKey());
+            }
+        }
+        return saturated;
+    }
+    
+    
+    /**
+     * Takes a concurrency slot and a rate token for a task about to start.
+     * 
+     * @param taskType
+     *            The task class name, may be <code>null</code> for unknown.
+     * @return <code>true</code> if the task can start. In that case
+     *         {@link #release(String)} must be called when it finishes.
+     */
+    public boolean tryAcquire(String taskType) {
+        if ( taskType == null ) {
+            return true;
+        }
+        return limitFor(taskType).tryAcquire();
+    }
+    
+    
+    /**
+     * Takes rate tokens for tasks joining a batch that already holds a
+     * concurrency slot, as many as available up to the requested number.
+     * 
+     * @param taskType
+     *            The task class name, may be <code>null</code> for unknown.
+     * @param wanted
+     *            The number of tasks wanting to join.
+     * @return The number of tokens taken, maybe none. Those not used must be
+     *         given back with {@link #returnRate(String, int)}.
+     */
+    public int tryAcquireRate(String taskType, int wanted) {
+        if ( taskType == null ) {
+            return wanted;
+        }
+        return limitFor(taskType).tryAcquireRate(wanted);
+    }
+    
+    
+    /**
+     * Gives back rate tokens taken by {@link #tryAcquireRate(String, int)}
+     * for tasks that didn't start after all.
+     */
+    public void returnRate(String taskType, int unused) {
+        if ( taskType != null && unused > 0 ) {
+            limitFor(taskType).returnRate(unused);
+        }
+    }
+    
+    
+    /**
+     * Gives back the concurrency slot of a finished task.
+     */
+    public void release(String taskType) {
+        if ( taskType != null ) {
+            limitFor(taskType).release();
+        }
+    }
+    
+    
+    private Limit limitFor(String taskType) {
+        Limit limit = this.limits.get(taskType);
+        if ( limit == null ) {
+            limit = readLimit(taskType);
+            Limit previous = this.limits.putIfAbsent(taskType, limit);
+            if ( previous != null ) {
+                limit = previous;
+            }
+        }
+        return limit;
+    }
+    
+    private Limit readLimit(String taskType) {
+        try {
+            Class<?> clazz = ClassUtils.forName(taskType, ClassUtils.getDefaultClassLoader());
+            TaskLimits annotation = clazz.getAnnotation(TaskLimits.class);
+            if ( annotation != null ) {
+                return new Limit(annotation.maxConcurrency(), annotation.maxPerSecond());
+            }
+        } catch (ClassNotFoundException e) {
+            logger.warn("Unknown task type {}, running it without limits", taskType);
+        }
+        return new Limit(0, 0);
+    }
+    
+    
+    /**
+     * Concurrency counter plus token bucket for one task type.
+     */
+    private static class Limit {
+        
+        private int maxConcurrency;
+        private double maxPerSecond;
+        
+        private int running = 0;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        
+        public Limit(int maxConcurrency, double maxPerSecond) {
+            this.maxConcurrency = maxConcurrency;
+            this.maxPerSecond = maxPerSecond;
+            // Allow a burst of one second worth of tasks
+            this.tokens = Math.max(1, maxPerSecond);
+        }
+        
+        /**
+         * Changes the limits, keeping the count of running tasks.
+         */
+        public synchronized void update(int maxConcurrency, double maxPerSecond) {
+            refill();
+            double burst = Math.max(1, maxPerSecond);
+            this.tokens = this.maxPerSecond > 0 ? Math.min(this.tokens, burst) : burst;
+            this.maxConcurrency = maxConcurrency;
+            this.maxPerSecond = maxPerSecond;
+        }
+        
+        public synchronized boolean isSaturated() {
+            refill();
+            return (this.maxConcurrency > 0 && this.running >= this.maxConcurrency)
+                || (this.maxPerSecond > 0 && this.tokens < 1);
+        }
+        
+        public synchronized boolean tryAcquire() {
+            if ( isSaturated() ) {
+                return false;
+            }
+            this.running++;
+            if ( this.maxPerSecond > 0 ) {
+                this.tokens -= 1;
+            }
+            return true;
+        }
+        
+        public synchronized int tryAcquireRate(int wanted) {
+            if ( this.maxPerSecond <= 0 ) {
+                return wanted;
+            }
+            refill();
+            int granted = Math.min(wanted, (int)this.tokens);
+            this.tokens -= granted;
+            return granted;
+        }
+        
+        public synchronized void returnRate(int unused) {
+            if ( this.maxPerSecond > 0 ) {
+                this.tokens = Math.min(Math.max(1, this.maxPerSecond), this.tokens + unused);
+            }
+        }
+        
+        public synchronized void release() {
+            this.running--;
+        }
+        
+        private void refill() {
+            if ( this.maxPerSecond <= 0 ) {
+                return;
+            }
+            long now = System.nanoTime();
+            this.tokens = Math.min(Math.max(1, this.maxPerSecond), this.tokens + (now - this.lastRefill) * this.maxPerSecond / 1e9);
+            this.lastRefill = now;
+        }
+    }
+    
+}
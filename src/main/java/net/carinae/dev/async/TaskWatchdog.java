@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.task.TaskTimeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Enforces the execution timeouts of the tasks run by this node.
+ * <p>
+ * Timeouts are read from the {@link TaskTimeout} annotation of the task
+ * classes, or set programmatically with {@link #setTimeout(Class, long)}.
+ * Tasks without timeout are only recovered by the hypervisor.
+ * <p>
+ * A task over its timeout is marked as timed out, so its transaction is
+ * rolled back, and its thread is interrupted. If it is still running on the
+ * next check, its row is freed so it can be retried right away. Freeing bumps
+ * the version of the row, which fences the hung thread: its completion
+ * requires the version it claimed, so it fails and rolls back even if the
+ * thread gets past the timed out check. Until that thread exits, it may run
+ * alongside the retry, see {@link TaskTimeout}.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class TaskWatchdog {
+
+    final static Logger logger = LoggerFactory.getLogger(TaskWatchdog.class);
+
+
+    @Autowired
+    protected QueuedTaskHolderDao queuedTaskDao;
+
+    private final ConcurrentMap<Class<?>, Long> timeouts = new ConcurrentHashMap<Class<?>, Long>();
+
+    private final Set<Execution> executions = Collections.newSetFromMap(new ConcurrentHashMap<Execution, Boolean>());
+
+
+    /**
+     * Sets the timeout of a task type, overriding its annotation.
+     *
+     * @param taskType
+     *            The task class.
+     * @param timeout
+     *            Max milliseconds a task may run, zero or less for none.
+     */
+    public void setTimeout(Class<?> taskType, long timeout) {
+        this.timeouts.put(taskType, timeout);
+    }
+
+
+    /**
+     * Starts watching a task about to run on the current thread.
+     *
+     * @return The handle for {@link #unwatch(Object)}, <code>null</code> if
+     *         the task has no timeout.
+     */
+    public Object watch(AbstractBaseTask task) {
+        return watch(Collections.singletonList(task));
+    }
+
+
+    /**
+     * Starts watching a batch about to run on the current thread, through its
+     * first task. All its tasks are freed if it hangs.
+     *
+     * @return The handle for {@link #unwatch(Object)}, <code>null</code> if
+     *         the tasks have no timeout.
+     */
+    public Object watch(List<? extends AbstractBaseTask> batch) {
+        AbstractBaseTask task = batch.get(0);
+        long timeout = timeoutFor(task.getClass());
+        if ( timeout <= 0 ) {
+            return null;
+        }
+        Execution execution = new Execution(task, batch, Thread.currentThread(), System.currentTimeMillis() + timeout);
+        this.executions.add(execution);
+        return execution;
+    }
+
+
+    /**
+     * Stops watching a task once it has finished. Clears the interrupt it
+     * may have received, so the thread can be reused.
+     */
+    public void unwatch(Object handle) {
+        if ( handle != null ) {
+            Execution execution = (Execution)handle;
+            this.executions.remove(execution);
+            synchronized (execution) {
+                execution.finished = true;
+                if ( execution.interrupted ) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Interrupts the tasks over their timeout, and frees those still running
+     * since the previous check.
+     */
+    @Scheduled(fixedRate=Constants.TASK_WATCHDOG_RATE)
+    public void watchdog() {
+
+        long now = System.currentTimeMillis();
+        for ( Execution execution : this.executions ) {
+            if ( execution.deadline > now ) {
+                continue;
+            }
+            AbstractBaseTask task = execution.task;
+            if ( !execution.interrupted ) {
+                logger.warn("Task {} over its timeout, interrupting it", task.getQueuedTaskId());
+                task.timeOut();
+                synchronized (execution) {
+                    if ( !execution.finished ) {
+                        execution.interrupted = true;
+                        execution.thread.interrupt();
+                    }
+                }
+            }
+            else if ( !execution.freed && task.isDurable() ) {
+                logger.warn("Task {} ignored its interruption, freeing it", task.getQueuedTaskId());
+                execution.freed = true;
+                for ( AbstractBaseTask batched : execution.batch ) {
+                    if ( !freeTimedOutTask(batched.getQueuedTaskId(), batched.getQueuedTaskVersion()) ) {
+                        logger.debug("Task {} no longer holds its claimed version, not freed", batched.getQueuedTaskId());
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Frees a hung task in its own transaction. The version is bumped, so the
+     * hung thread can't complete it anymore.
+     *
+     * @return <code>true</code> if freed, <code>false</code> if it was
+     *         completed or freed meanwhile.
+     */
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public boolean freeTimedOutTask(String taskId, int version) {
+        return this.queuedTaskDao.markFree(taskId, version);
+    }
+
+
+    private long timeoutFor(Class<?> taskType) {
+        Long timeout = this.timeouts.get(taskType);
+        if ( timeout == null ) {
+            TaskTimeout annotation = taskType.getAnnotation(TaskTimeout.class);
+            timeout = annotation != null ? annotation.value() : 0l;
+            this.timeouts.putIfAbsent(taskType, timeout);
+        }
+        return timeout;
+    }
+
+
+    /**
+     * A watched task.
+     */
+    private static class Execution {
+
+        final AbstractBaseTask task;
+        final List<AbstractBaseTask> batch;
+        final Thread thread;
+        final long deadline;
+
+        volatile boolean interrupted = false;
+        volatile boolean freed = false;
+        boolean finished = false;
+
+        Execution(AbstractBaseTask task, List<? extends AbstractBaseTask> batch, Thread thread, long deadline) {
+            this.task = task;
+            this.batch = new ArrayList<AbstractBaseTask>(batch);
+            this.thread = thread;
+            this.deadline = deadline;
+        }
+    }
+
+}
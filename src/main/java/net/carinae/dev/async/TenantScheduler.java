@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Shares the claims of this node among the tenants with ready tasks, so a
+ * tenant with a big backlog doesn't delay the tasks of the others.
+ * <p>
+ * Tenants take turns in deficit round-robin: on its turn a tenant gets as
+ * many claims as its weight, one by default, and then passes the turn. As
+ * every claim costs the same, no deficit is carried over between turns.
+ * Within a tenant, tasks are claimed in the usual order.
+ * <p>
+ * The tenants with ready tasks are read periodically. A tenant whose claim
+ * finds nothing loses its turns until the next read, and a tenant seen in a
+ * claim gets turns right away. While there is a single tenant, claims are
+ * not restricted at all.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class TenantScheduler {
+
+    final static Logger logger = LoggerFactory.getLogger(TenantScheduler.class);
+
+
+    @Autowired
+    protected QueuedTaskHolderDao queuedTaskDao;
+
+    private final ConcurrentMap<String, Integer> weights = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Tenants with ready tasks, in turn order.
+     */
+    private final Set<String> turns = new LinkedHashSet<String>();
+
+    /**
+     * The tenant whose turn it is, and the claims it has left.
+     */
+    private String current = null;
+    private int remaining = 0;
+
+
+    /**
+     * Sets the share of a tenant.
+     *
+     * @param tenant
+     *            The tenant, <code>null</code> for the tasks without tenant.
+     * @param weight
+     *            Claims per turn, at least one.
+     */
+    public void setWeight(String tenant, int weight) {
+        if ( weight < 1 ) {
+            throw new IllegalArgumentException("Invalid weight for tenant " + tenant + ": " + weight);
+        }
+        this.weights.put(key(tenant), weight);
+    }
+
+
+    /**
+     * @return The tenant the next claim must be restricted to, as expected by
+     *         {@link QueuedTaskHolderDao#findNextTaskForExecution}, or
+     *         <code>null</code> for no restriction.
+     */
+    public synchronized String nextTenant() {
+        if ( this.turns.size() < 2 ) {
+            return null;
+        }
+        Iterator<String> it = this.turns.iterator();
+        String first = it.next();
+        if ( !first.equals(this.current) ) {
+            startTurn(first);
+        }
+        else if ( this.remaining <= 0 ) {
+            // Pass the turn
+            it.remove();
+            this.turns.add(first);
+            startTurn(this.turns.iterator().next());
+        }
+        return this.current;
+    }
+
+
+    /**
+     * A task of a tenant was claimed, once the claim is committed.
+     *
+     * @param tenant
+     *            The tenant of the task, <code>null</code> if none.
+     */
+    public synchronized void claimed(String tenant) {
+        tenant = key(tenant);
+        this.turns.add(tenant);
+        if ( tenant.equals(this.current) ) {
+            this.remaining--;
+        }
+    }
+
+
+    /**
+     * A claim restricted to a tenant found no task.
+     */
+    public synchronized void drained(String tenant) {
+        this.turns.remove(tenant);
+    }
+
+
+    /**
+     * Reads the tenants with ready tasks. New ones are queued for a turn,
+     * and those without ready tasks dropped.
+     */
+    @Scheduled(fixedRate=Constants.TASK_TENANT_REFRESH_RATE)
+    public void refresher() {
+        try {
+            List<String> tenants = findReadyTenants();
+            synchronized (this) {
+                this.turns.retainAll(tenants);
+                this.turns.addAll(tenants);
+            }
+        } catch (DataAccessException e) {
+            logger.debug("Couldn't read the ready tenants, will retry", e);
+        } catch (TransactionException e) {
+            logger.debug("Couldn't read the ready tenants, will retry", e);
+        }
+    }
+
+
+    @Transactional(readOnly=true)
+    public List<String> findReadyTenants() {
+        return this.queuedTaskDao.findReadyTenants();
+    }
+
+
+    private void startTurn(String tenant) {
+        this.current = tenant;
+        Integer weight = this.weights.get(tenant);
+        this.remaining = weight != null ? weight : 1;
+    }
+
+    private static String key(String tenant) {
+        return tenant != null ? tenant : QueuedTaskHolderDao.DEFAULT_TENANT;
+    }
+
+}
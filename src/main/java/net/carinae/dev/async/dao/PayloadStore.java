@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+
+/**
+ * Stores the serialized form of large tasks out of the task queue table.
+ * <p>
+ * All operations are called inside a transaction. Implementations that don't
+ * take part in it must make sure that payloads written by a rolled back
+ * transaction are discarded, and that deletions only happen once the
+ * transaction commits.
+ * 
+ * @author Carlos Vara
+ */
+public interface PayloadStore {
+
+    /**
+     * Stores a payload.
+     * 
+     * @param payload
+     *            The serialized task.
+     * @return The reference to keep in the queued task.
+     */
+    String store(byte[] payload);
+    
+    
+    /**
+     * Retrieves a payload.
+     * 
+     * @param reference
+     *            The reference returned when storing it.
+     * @return The serialized task.
+     * @throws IllegalStateException
+     *             If there is no such payload.
+     */
+    byte[] load(String reference);
+    
+    
+    /**
+     * Discards a payload which is no longer needed.
+     * 
+     * @param reference
+     *            The reference returned when storing it.
+     */
+    void delete(String reference);
+    
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * {@link PayloadStore} that keeps each payload in its own file of a directory,
+ * which must be shared by all the nodes. Payloads are synced to disk when
+ * stored and read back whole into an array, without mapping the files, so
+ * no handle is left open once loaded.
+ * <p>
+ * It is not picked up by the component scan. To use it instead of
+ * {@link PayloadStoreJPA2}, declare it as a primary bean:
+ * 
+ * <pre>
+ * &lt;bean class="net.carinae.dev.async.dao.PayloadStoreFileSystem" primary="true"&gt;
+ *     &lt;property name="directory" value="/mnt/shared/task-payloads"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * Files are removed when the storing transaction is rolled back, and deleted
+ * payloads are removed once the deleting transaction commits.
+ * 
+ * @author Carlos Vara
+ */
+public class PayloadStoreFileSystem implements PayloadStore {
+
+    final static Logger logger = LoggerFactory.getLogger(PayloadStoreFileSystem.class);
+    
+    private static final String SUFFIX = ".payload";
+    
+    
+    // PayloadStore methods ----------------------------------------------------
+    
+    @Override
+    public String store(byte[] payload) {
+        
+        final String reference = UUID.randomUUID().toString();
+        File file = fileFor(reference);
+        
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(payload);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw new IllegalStateException("Couldn't store payload in " + file, e);
+        }
+        
+        if ( TransactionSynchronizationManager.isSynchronizationActive() ) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if ( status != STATUS_COMMITTED ) {
+                        remove(reference);
+                    }
+                }
+            });
+        }
+        
+        return reference;
+    }
+    
+    @Override
+    public byte[] load(String reference) {
+        
+        File file = fileFor(reference);
+        
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                byte[] payload = new byte[(int)channel.size()];
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                while ( buffer.hasRemaining() ) {
+                    if ( channel.read(buffer) < 0 ) {
+                        throw new IOException("Payload file shorter than expected: " + file);
+                    }
+                }
+                return payload;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("No payload stored with reference: " + reference, e);
+        }
+    }
+    
+    @Override
+    public void delete(final String reference) {
+        if ( TransactionSynchronizationManager.isSynchronizationActive() ) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    remove(reference);
+                }
+            });
+        }
+        else {
+            remove(reference);
+        }
+    }
+    
+    
+    // Configuration -----------------------------------------------------------
+    
+    /**
+     * @param directory
+     *            The directory where payloads are kept. Created if needed.
+     */
+    public void setDirectory(File directory) {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IllegalArgumentException("Can't create payload directory: " + directory);
+        }
+        this.directory = directory;
+    }
+    
+    private File directory;
+    
+    
+    // Helpers -----------------------------------------------------------------
+    
+    private File fileFor(String reference) {
+        return new File(this.directory, reference + SUFFIX);
+    }
+    
+    private void remove(String reference) {
+        File file = fileFor(reference);
+        if ( file.exists() && !file.delete() ) {
+            logger.warn("Couldn't delete payload file {}", file);
+        }
+    }
+    
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import net.carinae.dev.async.QueuedTaskPayload;
+import org.springframework.stereotype.Repository;
+
+/**
+ * JPA2 implementation of {@link PayloadStore}, which keeps the payloads in
+ * their own table. Being part of the current transaction, no cleanup is
+ * needed on rollback.
+ * 
+ * @author Carlos Vara
+ */
+@Repository
+public class PayloadStoreJPA2 implements PayloadStore {
+
+    
+    // PayloadStore methods ----------------------------------------------------
+    
+    @Override
+    public String store(byte[] payload) {
+        QueuedTaskPayload qtp = new QueuedTaskPayload(payload);
+        this.entityManager.persist(qtp);
+        return qtp.getId();
+    }
+    
+    @Override
+    public byte[] load(String reference) {
+        QueuedTaskPayload qtp = this.entityManager.find(QueuedTaskPayload.class, reference);
+        if ( qtp == null ) {
+            throw new IllegalStateException("No payload stored with reference: " + reference);
+        }
+        return qtp.getPayload();
+    }
+    
+    @Override
+    public void delete(String reference) {
+        this.entityManager.createQuery("delete from QueuedTaskPayload qtp where qtp.id = :id")
+            .setParameter("id", reference)
+            .executeUpdate();
+    }
+
+    
+    // Injected dependencies ---------------------------------------------------
+
+    @PersistenceContext
+    private EntityManager entityManager;
+    
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.carinae.dev.async.Constants;
+import net.carinae.dev.async.QueueDepth.State;
+import net.carinae.dev.async.QueuedTaskHolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Changes to the queue depth counters made by this node and not written yet,
+ * for the DAOs that keep the counters in the database.
+ * <p>
+ * Changes are recorded as the DAO changes the tasks, but only buffered once
+ * their transaction commits, so rolled back changes are never counted. The
+ * buffer has one atomic slot per task type and state, and is drained
+ * periodically into the stripe of this node. Tasks are counted in their
+ * {@link State#counted(QueuedTaskHolder)} state, so delayed ones are counted
+ * as ready.
+ * <p>
+ * It also remembers the type of the tasks it saw start, so completing or
+ * freeing them, which only know the task id, can be counted without reading
+ * the row.
+ *
+ * @author Carlos Vara
+ */
+class QueueDepthCounters {
+
+    private static final int STATES = State.values().length;
+
+    private final int stripe = new Random().nextInt(Constants.TASK_DEPTH_STRIPES);
+
+    private final ConcurrentMap<String, AtomicLongArray> deltas = new ConcurrentHashMap<String, AtomicLongArray>();
+
+    /**
+     * Types of the running tasks started through this node, by task id.
+     */
+    private final ConcurrentMap<String, String> runningTypes = new ConcurrentHashMap<String, String>();
+
+
+    /**
+     * @return The stripe of the counters this node writes to.
+     */
+    int getStripe() {
+        return this.stripe;
+    }
+
+    /**
+     * @return The key a task type is counted under. Tasks without type are
+     *         counted under an empty one.
+     */
+    static String key(String taskType) {
+        return taskType != null ? taskType : "";
+    }
+
+
+    // Recording ---------------------------------------------------------------
+
+    void added(QueuedTaskHolder task) {
+        State state = State.counted(task);
+        PendingChanges changes = changes();
+        changes.add(task.getTaskType(), state, 1);
+        if ( state == State.RUNNING ) {
+            changes.started.put(task.getId(), key(task.getTaskType()));
+        }
+        changes.applyIfNoTransaction();
+    }
+
+    /**
+     * Must be called before the task is marked as started.
+     */
+    void claimed(QueuedTaskHolder task) {
+        PendingChanges changes = changes();
+        changes.move(task.getTaskType(), State.counted(task), State.RUNNING, 1);
+        changes.started.put(task.getId(), key(task.getTaskType()));
+        changes.applyIfNoTransaction();
+    }
+
+    /**
+     * A running task was completed or freed.
+     */
+    void finished(String taskId, String taskType, State to) {
+        PendingChanges changes = changes();
+        changes.move(taskType, State.RUNNING, to, 1);
+        changes.finished.add(taskId);
+        changes.applyIfNoTransaction();
+    }
+
+    void moved(String taskType, State from, State to, long count) {
+        PendingChanges changes = changes();
+        changes.move(taskType, from, to, count);
+        changes.applyIfNoTransaction();
+    }
+
+    /**
+     * @return The type of a running task started through this node,
+     *         <code>null</code> if unknown.
+     */
+    String runningType(String taskId) {
+        return this.runningTypes.get(taskId);
+    }
+
+
+    // Draining ----------------------------------------------------------------
+
+    /**
+     * Takes the buffered changes, which are no longer buffered.
+     *
+     * @return The changes per task type, indexed by state ordinal. Types
+     *         without changes are not included.
+     */
+    Map<String, long[]> drain() {
+        Map<String, long[]> drained = new HashMap<String, long[]>();
+        for ( Map.Entry<String, AtomicLongArray> entry : this.deltas.entrySet() ) {
+            long[] values = new long[STATES];
+            boolean changed = false;
+            for ( int i = 0; i < STATES; i++ ) {
+                values[i] = entry.getValue().getAndSet(i, 0);
+                changed |= values[i] != 0;
+            }
+            if ( changed ) {
+                drained.put(entry.getKey(), values);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Buffers again drained changes that couldn't be written.
+     */
+    void restore(Map<String, long[]> drained) {
+        for ( Map.Entry<String, long[]> entry : drained.entrySet() ) {
+            for ( int i = 0; i < STATES; i++ ) {
+                if ( entry.getValue()[i] != 0 ) {
+                    slots(entry.getKey()).addAndGet(i, entry.getValue()[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the drained changes if the current transaction, if any, is
+     * rolled back.
+     */
+    void restoreOnRollback(final Map<String, long[]> drained) {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if ( status != STATUS_COMMITTED ) {
+                    restore(drained);
+                }
+            }
+        });
+    }
+
+    private AtomicLongArray slots(String key) {
+        AtomicLongArray slots = this.deltas.get(key);
+        if ( slots == null ) {
+            slots = new AtomicLongArray(STATES);
+            AtomicLongArray previous = this.deltas.putIfAbsent(key, slots);
+            if ( previous != null ) {
+                slots = previous;
+            }
+        }
+        return slots;
+    }
+
+
+    // Transactions ------------------------------------------------------------
+
+    /**
+     * The changes of the current transaction. Looked up among the
+     * synchronizations rather than bound as a resource, so transactions
+     * suspended by a nested one are not seen.
+     */
+    private PendingChanges changes() {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            return new PendingChanges(false);
+        }
+        for ( TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations() ) {
+            if ( synchronization instanceof PendingChanges && ((PendingChanges)synchronization).owner() == this ) {
+                return (PendingChanges)synchronization;
+            }
+        }
+        PendingChanges changes = new PendingChanges(true);
+        TransactionSynchronizationManager.registerSynchronization(changes);
+        return changes;
+    }
+
+
+    /**
+     * Changes recorded by a transaction, buffered once it commits.
+     */
+    private class PendingChanges extends TransactionSynchronizationAdapter {
+
+        final Map<String, long[]> deltas = new HashMap<String, long[]>();
+        final Map<String, String> started = new HashMap<String, String>();
+        final Set<String> finished = new HashSet<String>();
+
+        private final boolean inTransaction;
+
+        PendingChanges(boolean inTransaction) {
+            this.inTransaction = inTransaction;
+        }
+
+        QueueDepthCounters owner() {
+            return QueueDepthCounters.this;
+        }
+
+        void add(String taskType, State state, long count) {
+            String key = key(taskType);
+            long[] values = this.deltas.get(key);
+            if ( values == null ) {
+                values = new long[STATES];
+                this.deltas.put(key, values);
+            }
+            values[state.ordinal()] += count;
+        }
+
+        void move(String taskType, State from, State to, long count) {
+            if ( from != to ) {
+                add(taskType, from, -count);
+                add(taskType, to, count);
+            }
+        }
+
+        void applyIfNoTransaction() {
+            if ( !this.inTransaction ) {
+                afterCommit();
+            }
+        }
+
+        @Override
+        public void afterCommit() {
+            restore(this.deltas);
+            for ( String taskId : this.finished ) {
+                runningTypes.remove(taskId);
+            }
+            runningTypes.putAll(this.started);
+        }
+    }
+
+}
@@ -15,6 +15,10 @@
  */
 package net.carinae.dev.async.dao;
 
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import net.carinae.dev.async.QueueDepth;
 import net.carinae.dev.async.QueuedTaskHolder;
 
 
@@ -25,6 +29,12 @@ import net.carinae.dev.async.QueuedTaskHolder;
  */
 public interface QueuedTaskHolderDao {
 
+    /**
+     * Stands for the tasks without tenant in the tenant lookups.
+     */
+    String DEFAULT_TENANT = "";
+    
+
     /**
      * Adds a new task to the current persistence context. The task will be
      * persisted into the database at flush/commit.
@@ -35,6 +45,17 @@ public interface QueuedTaskHolderDao {
     void persist(QueuedTaskHolder queuedTask);
     
     
+    /**
+     * Adds several new tasks at once, as {@link #persist(QueuedTaskHolder)}
+     * does for each of them, so implementations can insert them in a single
+     * batch.
+     * 
+     * @param queuedTasks
+     *            The tasks to be saved (enqueued).
+     */
+    void persistAll(Collection<QueuedTaskHolder> queuedTasks);
+    
+    
     /**
      * Finder that retrieves a task by its id.
      * 
@@ -47,11 +68,46 @@ public interface QueuedTaskHolderDao {
 
 
     /**
+     * @param excludedTaskTypes
+     *            Task types that mustn't be returned, because they can't be
+     *            started right now.
+     * @param tenant
+     *            The tenant whose task must be returned, {@link #DEFAULT_TENANT}
+     *            for the tasks without tenant, or <code>null</code> for any
+     *            tenant.
      * @return A task which is candidate for execution. The receiving thread
      *         will need to ensure a lock on it. <code>null</code> if no
      *         candidate task is available.
      */
-    QueuedTaskHolder findNextTaskForExecution();
+    QueuedTaskHolder findNextTaskForExecution(Collection<String> excludedTaskTypes, String tenant);
+    
+    
+    /**
+     * Finds more tasks to be executed in the same batch as one already
+     * claimed, see {@link net.carinae.dev.async.task.BatchableTask}.
+     * 
+     * @param taskType
+     *            The class name of the tasks.
+     * @param tenant
+     *            The tenant of the tasks, {@link #DEFAULT_TENANT} for the tasks
+     *            without tenant.
+     * @param maxResults
+     *            Max number of tasks to return.
+     * @return Tasks which are candidates for execution, in the same order as
+     *         {@link #findNextTaskForExecution(Collection, String)}. The
+     *         receiving thread will need to ensure a lock on each of them.
+     */
+    List<QueuedTaskHolder> findNextTasksForExecution(String taskType, String tenant, int maxResults);
+    
+    
+    /**
+     * Finds the tenants that have tasks ready for execution, so they can be
+     * given their turns.
+     * 
+     * @return The tenants, {@link #DEFAULT_TENANT} standing for the tasks
+     *         without tenant, in no particular order.
+     */
+    List<String> findReadyTenants();
 
 
     /**
@@ -59,6 +115,238 @@ public interface QueuedTaskHolderDao {
      *         finishing. <code>null</code> if there aren't stalled tasks.
      */
     QueuedTaskHolder findRandomStalledTask();
+    
+    
+    /**
+     * Finds which of the given tasks are already completed after running.
+     * Cancelled tasks are not reported.
+     * 
+     * @param taskIds
+     *            The ids of the tasks to check.
+     * @return The ids of the completed ones, in no particular order.
+     */
+    List<String> findCompletedTaskIds(Collection<String> taskIds);
+    
+    
+    /**
+     * Finds which of the given tasks were cancelled.
+     * 
+     * @param taskIds
+     *            The ids of the tasks to check.
+     * @return The ids of the cancelled ones, in no particular order.
+     */
+    List<String> findCancelledTaskIds(Collection<String> taskIds);
+    
+    
+    /**
+     * Finds which of the given tasks are already enqueued, whatever their
+     * state.
+     * 
+     * @param taskIds
+     *            The ids of the tasks to check.
+     * @return The ids of the existing ones, in no particular order.
+     */
+    List<String> findExistingTaskIds(Collection<String> taskIds);
+    
+    
+    /**
+     * Records that a task being enqueued depends on other tasks. Must be called
+     * before persisting the task, as it sets its number of pending parents.
+     * The parents are locked, so none of them can be completed concurrently
+     * without seeing the new dependency.
+     * 
+     * @param child
+     *            The task being enqueued.
+     * @param parentIds
+     *            The ids of the tasks it depends on. Parents already completed
+     *            or not found are ignored.
+     */
+    void persistDependencies(QueuedTaskHolder child, Collection<String> parentIds);
+    
+    
+    /**
+     * Removes the dependencies on a task that is being completed, so its
+     * children whose last parent it was become ready for execution in the same
+     * transaction.
+     * 
+     * @param parentId
+     *            The id of the task being completed.
+     * @return The number of children that became ready.
+     */
+    int releaseDependents(String parentId);
+    
+    
+    /**
+     * Marks a task as started, as long as no other thread has started it
+     * since it was read.
+     * 
+     * @param queuedTask
+     *            The task, as returned by {@link #findNextTaskForExecution(Collection, String)}.
+     * @param startedStamp
+     *            The moment the task is started.
+     * @param nodeId
+     *            The node that claims the task.
+     * @return <code>true</code> if the task is now locked for execution by the
+     *         caller, <code>false</code> if another thread got it first.
+     *         Implementations which rely on the persistence context may
+     *         instead report the conflict at flush/commit with an
+     *         {@link org.springframework.dao.OptimisticLockingFailureException}.
+     */
+    boolean markStarted(QueuedTaskHolder queuedTask, Calendar startedStamp, String nodeId);
+    
+    
+    /**
+     * Marks a started task as completed, as long as it hasn't been modified
+     * since it was claimed. This is a single conditional update, no previous
+     * read of the task is needed.
+     * 
+     * @param taskId
+     *            The id of the task.
+     * @param version
+     *            The version the task had once claimed.
+     * @param completedStamp
+     *            The moment the task was completed.
+     * @return <code>true</code> if the task was marked as completed,
+     *         <code>false</code> if no task with that id and version exists or
+     *         it was already completed.
+     */
+    boolean markCompleted(String taskId, int version, Calendar completedStamp);
+    
+    
+    /**
+     * Frees a started but not completed task, so it can be executed again, as
+     * long as it hasn't been modified since the given version. Its version is
+     * bumped, so whoever claimed it can't complete it anymore.
+     * 
+     * @param taskId
+     *            The id of the task.
+     * @param version
+     *            The version the task is expected to have.
+     * @return <code>true</code> if the task was freed, <code>false</code> if
+     *         no task with that id and version exists or it was already
+     *         completed.
+     */
+    boolean markFree(String taskId, int version);
+    
+    
+    /**
+     * Frees a group of started but not completed tasks at once, whatever
+     * their version. Meant for a node that gives up the tasks it claimed.
+     * 
+     * @param taskIds
+     *            The ids of the tasks.
+     * @return The number of tasks freed.
+     */
+    int markFree(Collection<String> taskIds);
+    
+    
+    /**
+     * Frees all the started but not completed tasks claimed by a node. Meant
+     * for a node that restarts after dying, to recover the tasks of its
+     * previous incarnation.
+     * 
+     * @param nodeId
+     *            The id of the node.
+     * @return The number of tasks freed.
+     */
+    int markFreeByNode(String nodeId);
 
-}
+    
+    
+    /**
+     * Cancels the given tasks that are not completed yet, whatever their
+     * state. They are marked as completed without having been started, so
+     * they are never claimed again, and any claim on them is lost: a node
+     * running one of them won't be able to complete it.
+     * 
+     * @param taskIds
+     *            The ids of the tasks.
+     * @param cancelledStamp
+     *            The moment the tasks are cancelled.
+     * @return The cancelled tasks. Their dependents are not released.
+     */
+    List<QueuedTaskHolder> markCancelled(Collection<String> taskIds, Calendar cancelledStamp);
+    
+    
+    /**
+     * Cancels the tasks with a key that are not completed yet, as
+     * {@link #markCancelled(Collection, Calendar)} does. The lookup follows
+     * the key index.
+     * 
+     * @param taskKey
+     *            The key of the tasks.
+     * @param cancelledStamp
+     *            The moment the tasks are cancelled.
+     * @return The cancelled tasks. Their dependents are not released.
+     */
+    List<QueuedTaskHolder> markCancelledByKey(String taskKey, Calendar cancelledStamp);
+    
+    
+    /**
+     * Moves the trigger stamp of the given tasks that are not started yet.
+     * Tasks already started or completed are left as they are. The version
+     * of the rescheduled ones is bumped, so a claim based on their previous
+     * state fails.
+     * 
+     * @param taskIds
+     *            The ids of the tasks.
+     * @param triggerStamp
+     *            The earliest moment to execute them, <code>null</code> for
+     *            right away.
+     * @return The number of tasks rescheduled.
+     */
+    int markRescheduled(Collection<String> taskIds, Calendar triggerStamp);
+    
+    
+    // Introspection -----------------------------------------------------------
+    
+    /**
+     * Reads the queue depth counters, which are maintained as tasks change
+     * state instead of counting the queue. Implementations that buffer the
+     * changes of each node may be behind by up to one flush. The counters
+     * keep delayed tasks as ready, as they become due without changing, so
+     * the ones whose trigger stamp isn't reached yet are counted when read.
+     * 
+     * @return The number of tasks in each state, for every task type ever
+     *         counted.
+     */
+    List<QueueDepth> findQueueDepths();
+    
+    
+    /**
+     * Lists the tasks of a type in a state, a page at a time. Pages are
+     * delimited by the last task returned rather than by an offset, so each
+     * one is a range read on the type index. Tasks are sorted by creation,
+     * except completed ones, which are sorted by completion.
+     * 
+     * @param taskType
+     *            The class name of the tasks.
+     * @param state
+     *            The state of the tasks.
+     * @param after
+     *            The last task of the previous page, <code>null</code> for the
+     *            first page.
+     * @param maxResults
+     *            The size of the page.
+     * @return The tasks, an empty list once past the last page.
+     */
+    List<QueuedTaskHolder> findTasks(String taskType, QueueDepth.State state, QueuedTaskHolder after, int maxResults);
+    
+    
+    /**
+     * Writes the counter changes buffered by this node since the last flush.
+     * If the current transaction is rolled back, they are kept for the next
+     * one.
+     */
+    void flushQueueDepths();
+    
+    
+    /**
+     * Rebuilds the queue depth counters by counting the whole queue. Meant to
+     * initialize them on an existing queue or to fix them after a manual edit,
+     * never on a regular basis. Changes buffered by other nodes meanwhile
+     * will be counted twice, so it is best run on a quiet queue.
+     */
+    void recountQueueDepths();
 
+}
@@ -0,0 +1,749 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.sql.DataSource;
+import net.carinae.dev.async.Constants;
+import net.carinae.dev.async.QueueDepth;
+import net.carinae.dev.async.QueueDepth.State;
+import net.carinae.dev.async.QueuedTaskCounter;
+import net.carinae.dev.async.QueuedTaskDependency;
+import net.carinae.dev.async.QueuedTaskHolder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Plain JDBC implementation of {@link QueuedTaskHolderDao}.
+ * <p>
+ * Works directly on the <code>TASK_QUEUE</code> table with prepared
+ * statements, skipping entity hydration and the persistence context. Claiming,
+ * completing and freeing are single conditional UPDATEs whose row count tells
+ * if they succeeded.
+ * <p>
+ * The queue depth counters are kept in the <code>TASK_QUEUE_DEPTH</code>
+ * table. Every change of state is buffered in memory once committed, and
+ * added to the stripe of this node on each flush. Completions and frees of
+ * tasks started through this node take their type from memory; otherwise it
+ * is read by id.
+ * <p>
+ * It is not picked up by the component scan. To use it instead of
+ * {@link QueuedTaskHolderDaoJPA2}, declare it as a primary bean:
+ *
+ * <pre>
+ * &lt;bean class="net.carinae.dev.async.dao.QueuedTaskHolderDaoJDBC" primary="true"&gt;
+ *     &lt;property name="dataSource" ref="myDataSource"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * The data source must be the same one used by the transaction manager, so
+ * the statements take part in the current transaction.
+ *
+ * @author Carlos Vara
+ */
+public class QueuedTaskHolderDaoJDBC implements QueuedTaskHolderDao {
+
+    // SQL ---------------------------------------------------------------------
+
+    private static final String COLUMNS =
+        "ID, TASK_TYPE, CREATION_STAMP, TRIGGER_STAMP, STARTED_STAMP, NODE_ID, COMPLETED_STAMP, SERIALIZED_TASK, PAYLOAD_REF, RECURRENCE_KEY, PENDING_PARENTS, OPTLOCK, TENANT, TASK_KEY";
+
+    private static final String INSERT =
+        "INSERT INTO TASK_QUEUE (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SELECT_BY_ID =
+        "SELECT " + COLUMNS + " FROM TASK_QUEUE WHERE ID = ?";
+
+    private static final String READY =
+        "STARTED_STAMP IS NULL AND COMPLETED_STAMP IS NULL AND PENDING_PARENTS = 0 AND (TRIGGER_STAMP IS NULL OR TRIGGER_STAMP < :now)";
+
+    private static final String SELECT_READY_TENANTS =
+        "SELECT DISTINCT TENANT FROM TASK_QUEUE WHERE " + READY;
+
+    private static final String SELECT_STALLED =
+        "SELECT " + COLUMNS + " FROM TASK_QUEUE" +
+        " WHERE COMPLETED_STAMP IS NULL AND STARTED_STAMP < ?";
+
+    private static final String SELECT_COMPLETED_IDS =
+        "SELECT ID FROM TASK_QUEUE WHERE COMPLETED_STAMP IS NOT NULL AND STARTED_STAMP IS NOT NULL AND ID IN (:ids)";
+
+    private static final String SELECT_CANCELLED_IDS =
+        "SELECT ID FROM TASK_QUEUE WHERE COMPLETED_STAMP IS NOT NULL AND STARTED_STAMP IS NULL AND ID IN (:ids)";
+
+    private static final String SELECT_EXISTING_IDS =
+        "SELECT ID FROM TASK_QUEUE WHERE ID IN (:ids)";
+
+    private static final String SELECT_PARENTS_FOR_UPDATE =
+        "SELECT ID FROM TASK_QUEUE WHERE COMPLETED_STAMP IS NULL AND ID IN (:ids) FOR UPDATE";
+
+    private static final String INSERT_DEPENDENCY =
+        "INSERT INTO TASK_DEPENDENCY (ID, PARENT_ID, CHILD_ID) VALUES (?, ?, ?)";
+
+    private static final String UPDATE_RELEASE_DEPENDENTS =
+        "UPDATE TASK_QUEUE SET PENDING_PARENTS = PENDING_PARENTS - 1" +
+        " WHERE ID IN (SELECT CHILD_ID FROM TASK_DEPENDENCY WHERE PARENT_ID = ?)";
+
+    private static final String COUNT_RELEASED_DEPENDENTS =
+        "SELECT TASK_TYPE, COUNT(*) FROM TASK_QUEUE WHERE PENDING_PARENTS = 0 AND COMPLETED_STAMP IS NULL" +
+        " AND ID IN (SELECT CHILD_ID FROM TASK_DEPENDENCY WHERE PARENT_ID = ?)" +
+        " GROUP BY TASK_TYPE";
+
+    private static final String DELETE_DEPENDENCIES =
+        "DELETE FROM TASK_DEPENDENCY WHERE PARENT_ID = ?";
+
+    private static final String UPDATE_STARTED =
+        "UPDATE TASK_QUEUE SET STARTED_STAMP = ?, NODE_ID = ?, OPTLOCK = OPTLOCK + 1" +
+        " WHERE ID = ? AND OPTLOCK = ? AND STARTED_STAMP IS NULL";
+
+    private static final String UPDATE_COMPLETED =
+        "UPDATE TASK_QUEUE SET COMPLETED_STAMP = ?, OPTLOCK = OPTLOCK + 1" +
+        " WHERE ID = ? AND OPTLOCK = ? AND STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL";
+
+    private static final String UPDATE_FREE =
+        "UPDATE TASK_QUEUE SET STARTED_STAMP = NULL, NODE_ID = NULL, OPTLOCK = OPTLOCK + 1" +
+        " WHERE ID = ? AND OPTLOCK = ? AND STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL";
+
+    private static final String UPDATE_FREE_ALL =
+        "UPDATE TASK_QUEUE SET STARTED_STAMP = NULL, NODE_ID = NULL, OPTLOCK = OPTLOCK + 1" +
+        " WHERE ID IN (:ids) AND STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL";
+
+    private static final String UPDATE_FREE_BY_NODE =
+        "UPDATE TASK_QUEUE SET STARTED_STAMP = NULL, NODE_ID = NULL, OPTLOCK = OPTLOCK + 1" +
+        " WHERE NODE_ID = ? AND STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL";
+
+    private static final String SELECT_TYPE =
+        "SELECT TASK_TYPE FROM TASK_QUEUE WHERE ID = ?";
+
+    private static final String COUNT_FREE_ALL =
+        "SELECT TASK_TYPE, COUNT(*) FROM TASK_QUEUE" +
+        " WHERE ID IN (:ids) AND STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL" +
+        " GROUP BY TASK_TYPE";
+
+    private static final String COUNT_FREE_BY_NODE =
+        "SELECT TASK_TYPE, COUNT(*) FROM TASK_QUEUE" +
+        " WHERE NODE_ID = ? AND STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL" +
+        " GROUP BY TASK_TYPE";
+
+    private static final String SELECT_CANCELLABLE =
+        "SELECT " + COLUMNS + " FROM TASK_QUEUE WHERE ID IN (:ids) AND COMPLETED_STAMP IS NULL FOR UPDATE";
+
+    private static final String SELECT_CANCELLABLE_BY_KEY =
+        "SELECT " + COLUMNS + " FROM TASK_QUEUE WHERE TASK_KEY = ? AND COMPLETED_STAMP IS NULL FOR UPDATE";
+
+    private static final String UPDATE_CANCELLED =
+        "UPDATE TASK_QUEUE SET COMPLETED_STAMP = :stamp, STARTED_STAMP = NULL, NODE_ID = NULL, OPTLOCK = OPTLOCK + 1" +
+        " WHERE ID IN (:ids) AND COMPLETED_STAMP IS NULL";
+
+    private static final String UPDATE_RESCHEDULED =
+        "UPDATE TASK_QUEUE SET TRIGGER_STAMP = :trigger, OPTLOCK = OPTLOCK + 1" +
+        " WHERE ID IN (:ids) AND STARTED_STAMP IS NULL AND COMPLETED_STAMP IS NULL";
+
+    private static final String SELECT_DEPTHS =
+        "SELECT TASK_TYPE, STATE, SUM(TASK_COUNT) FROM TASK_QUEUE_DEPTH GROUP BY TASK_TYPE, STATE ORDER BY TASK_TYPE";
+
+    private static final String UPDATE_DEPTH =
+        "UPDATE TASK_QUEUE_DEPTH SET TASK_COUNT = TASK_COUNT + ? WHERE ID = ?";
+
+    private static final String INSERT_DEPTH =
+        "INSERT INTO TASK_QUEUE_DEPTH (ID, TASK_TYPE, STATE, STRIPE, TASK_COUNT) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String DELETE_DEPTHS =
+        "DELETE FROM TASK_QUEUE_DEPTH";
+
+    private static final String PENDING =
+        "STARTED_STAMP IS NULL AND COMPLETED_STAMP IS NULL AND PENDING_PARENTS = 0";
+
+    private static final String COUNT_DELAYED =
+        "SELECT TASK_TYPE, COUNT(*) FROM TASK_QUEUE WHERE TRIGGER_STAMP >= :now AND " + PENDING + " GROUP BY TASK_TYPE";
+
+    /**
+     * Conditions of the tasks in each state, see
+     * {@link QueueDepth.State#of(QueuedTaskHolder)}. Ready and delayed ones
+     * take the current time as the <code>now</code> parameter.
+     */
+    private static String inState(State state) {
+        switch (state) {
+            case READY:
+                return PENDING + " AND (TRIGGER_STAMP IS NULL OR TRIGGER_STAMP < :now)";
+            case DELAYED:
+                return PENDING + " AND TRIGGER_STAMP >= :now";
+            default:
+                return countedIn(state);
+        }
+    }
+
+    /**
+     * Conditions of the tasks counted in each state but delayed, see
+     * {@link QueueDepth.State#counted(QueuedTaskHolder)}.
+     */
+    private static String countedIn(State state) {
+        switch (state) {
+            case READY:
+                return PENDING;
+            case WAITING:
+                return "STARTED_STAMP IS NULL AND COMPLETED_STAMP IS NULL AND PENDING_PARENTS > 0";
+            case RUNNING:
+                return "STARTED_STAMP IS NOT NULL AND COMPLETED_STAMP IS NULL";
+            case COMPLETED:
+                return "COMPLETED_STAMP IS NOT NULL";
+            default:
+                throw new IllegalArgumentException("Not a counted state: " + state);
+        }
+    }
+
+    /**
+     * Claim query, restricted to the types not excluded and to a tenant if
+     * any.
+     */
+    private static String selectNext(boolean excluding, String tenant) {
+        return "SELECT " + COLUMNS + " FROM TASK_QUEUE WHERE " + READY +
+            (excluding ? " AND (TASK_TYPE IS NULL OR TASK_TYPE NOT IN (:excluded))" : "") +
+            (tenant == null ? "" : DEFAULT_TENANT.equals(tenant) ? " AND TENANT IS NULL" : " AND TENANT = :tenant") +
+            " ORDER BY OPTLOCK ASC, CREATION_STAMP ASC";
+    }
+
+    /**
+     * Batch claim query, restricted to a type and tenant.
+     */
+    private static String selectNextOfType(String tenant) {
+        return "SELECT " + COLUMNS + " FROM TASK_QUEUE WHERE " + READY +
+            " AND TASK_TYPE = :type" + (DEFAULT_TENANT.equals(tenant) ? " AND TENANT IS NULL" : " AND TENANT = :tenant") +
+            " ORDER BY OPTLOCK ASC, CREATION_STAMP ASC";
+    }
+
+    /**
+     * Keyset paginated listing of a type and state, which follows the
+     * <code>TASK_TYPE, COMPLETED_STAMP, CREATION_STAMP, ID</code> index.
+     */
+    private static String selectPage(State state, boolean first) {
+        String stamp = state == State.COMPLETED ? "COMPLETED_STAMP" : "CREATION_STAMP";
+        return "SELECT " + COLUMNS + " FROM TASK_QUEUE" +
+            " WHERE TASK_TYPE = :type" + (state == State.COMPLETED ? "" : " AND COMPLETED_STAMP IS NULL") +
+            " AND " + inState(state) +
+            (first ? "" : " AND (" + stamp + " > :stamp OR (" + stamp + " = :stamp AND ID > :id))") +
+            " ORDER BY " + stamp + " ASC, ID ASC";
+    }
+
+
+    // QueuedTaskDao methods ---------------------------------------------------
+
+    @Override
+    public void persist(QueuedTaskHolder queuedTask) {
+        this.jdbcTemplate.update(INSERT, insertArgs(queuedTask));
+        this.counters.added(queuedTask);
+    }
+
+    @Override
+    public void persistAll(Collection<QueuedTaskHolder> queuedTasks) {
+        if ( queuedTasks.isEmpty() ) {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<Object[]>(queuedTasks.size());
+        for ( QueuedTaskHolder queuedTask : queuedTasks ) {
+            batchArgs.add(insertArgs(queuedTask));
+        }
+        this.jdbcTemplate.batchUpdate(INSERT, batchArgs);
+        for ( QueuedTaskHolder queuedTask : queuedTasks ) {
+            this.counters.added(queuedTask);
+        }
+    }
+
+    @Override
+    public QueuedTaskHolder findById(String taskId) {
+        return first(this.jdbcTemplate.query(SELECT_BY_ID, ROW_MAPPER, taskId));
+    }
+
+    @Override
+    public QueuedTaskHolder findNextTaskForExecution(Collection<String> excludedTaskTypes, String tenant) {
+        MapSqlParameterSource params = new MapSqlParameterSource("now", toTimestamp(Calendar.getInstance()));
+        if ( !excludedTaskTypes.isEmpty() ) {
+            params.addValue("excluded", excludedTaskTypes);
+        }
+        params.addValue("tenant", tenant);
+        return first(this.firstRowNamedTemplate.query(selectNext(!excludedTaskTypes.isEmpty(), tenant), params, ROW_MAPPER));
+    }
+
+    @Override
+    public List<QueuedTaskHolder> findNextTasksForExecution(String taskType, String tenant, int maxResults) {
+        MapSqlParameterSource params = new MapSqlParameterSource("now", toTimestamp(Calendar.getInstance()));
+        params.addValue("type", taskType);
+        params.addValue("tenant", tenant);
+        return limitedTemplate(maxResults).query(selectNextOfType(tenant), params, new FirstRows(maxResults));
+    }
+
+    @Override
+    public List<String> findReadyTenants() {
+        List<String> tenants = new ArrayList<String>();
+        for ( String tenant : this.namedTemplate.queryForList(SELECT_READY_TENANTS,
+                Collections.singletonMap("now", toTimestamp(Calendar.getInstance())), String.class) ) {
+            tenants.add(tenant != null ? tenant : DEFAULT_TENANT);
+        }
+        return tenants;
+    }
+
+    @Override
+    public QueuedTaskHolder findRandomStalledTask() {
+
+        Calendar TOO_LONG_AGO = Calendar.getInstance();
+        TOO_LONG_AGO.add(Calendar.SECOND, -Constants.TASK_STALLED_THRESHOLD);
+
+        List<QueuedTaskHolder> stalledTasks = this.jdbcTemplate.query(SELECT_STALLED, ROW_MAPPER, toTimestamp(TOO_LONG_AGO));
+
+        if ( stalledTasks.isEmpty() ) {
+            return null;
+        }
+        else {
+            Random rand = new Random(System.currentTimeMillis());
+            return stalledTasks.get(rand.nextInt(stalledTasks.size()));
+        }
+    }
+
+    @Override
+    public List<String> findCompletedTaskIds(Collection<String> taskIds) {
+        if ( taskIds.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        return this.namedTemplate.queryForList(SELECT_COMPLETED_IDS, Collections.singletonMap("ids", taskIds), String.class);
+    }
+
+    @Override
+    public List<String> findCancelledTaskIds(Collection<String> taskIds) {
+        if ( taskIds.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        return this.namedTemplate.queryForList(SELECT_CANCELLED_IDS, Collections.singletonMap("ids", taskIds), String.class);
+    }
+
+    @Override
+    public List<String> findExistingTaskIds(Collection<String> taskIds) {
+        if ( taskIds.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        return this.namedTemplate.queryForList(SELECT_EXISTING_IDS, Collections.singletonMap("ids", taskIds), String.class);
+    }
+
+    @Override
+    public void persistDependencies(QueuedTaskHolder child, Collection<String> parentIds) {
+
+        List<String> pendingParentIds = this.namedTemplate.queryForList(SELECT_PARENTS_FOR_UPDATE,
+                Collections.singletonMap("ids", parentIds), String.class);
+
+        for ( String parentId : pendingParentIds ) {
+            this.jdbcTemplate.update(INSERT_DEPENDENCY, new QueuedTaskDependency().getId(), parentId, child.getId());
+        }
+        child.setPendingParents(pendingParentIds.size());
+    }
+
+    @Override
+    public int releaseDependents(String parentId) {
+        if ( this.jdbcTemplate.update(UPDATE_RELEASE_DEPENDENTS, parentId) == 0 ) {
+            return 0;
+        }
+        final int[] released = {0};
+        this.jdbcTemplate.query(COUNT_RELEASED_DEPENDENTS, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                counters.moved(rs.getString(1), State.WAITING, State.READY, rs.getLong(2));
+                released[0] += rs.getInt(2);
+            }
+        }, parentId);
+        this.jdbcTemplate.update(DELETE_DEPENDENCIES, parentId);
+        return released[0];
+    }
+
+    @Override
+    public boolean markStarted(QueuedTaskHolder queuedTask, Calendar startedStamp, String nodeId) {
+        int updated = this.jdbcTemplate.update(UPDATE_STARTED, toTimestamp(startedStamp), nodeId, queuedTask.getId(), queuedTask.getVersion());
+        if ( updated == 0 ) {
+            return false;
+        }
+        this.counters.claimed(queuedTask);
+        queuedTask.setStartedStamp(startedStamp);
+        queuedTask.setNodeId(nodeId);
+        queuedTask.setVersion(queuedTask.getVersion() + 1);
+        return true;
+    }
+
+    @Override
+    public boolean markCompleted(String taskId, int version, Calendar completedStamp) {
+        if ( this.jdbcTemplate.update(UPDATE_COMPLETED, toTimestamp(completedStamp), taskId, version) == 0 ) {
+            return false;
+        }
+        this.counters.finished(taskId, typeOf(taskId), State.COMPLETED);
+        return true;
+    }
+
+    @Override
+    public boolean markFree(String taskId, int version) {
+        if ( this.jdbcTemplate.update(UPDATE_FREE, taskId, version) == 0 ) {
+            return false;
+        }
+        this.counters.finished(taskId, typeOf(taskId), State.READY);
+        return true;
+    }
+
+    @Override
+    public int markFree(Collection<String> taskIds) {
+        if ( taskIds.isEmpty() ) {
+            return 0;
+        }
+        Map<String, ?> params = Collections.singletonMap("ids", taskIds);
+        this.namedTemplate.query(COUNT_FREE_ALL, params, this.freedCounter);
+        return this.namedTemplate.update(UPDATE_FREE_ALL, params);
+    }
+
+    @Override
+    public int markFreeByNode(String nodeId) {
+        this.jdbcTemplate.query(COUNT_FREE_BY_NODE, this.freedCounter, nodeId);
+        return this.jdbcTemplate.update(UPDATE_FREE_BY_NODE, nodeId);
+    }
+
+    @Override
+    public List<QueuedTaskHolder> markCancelled(Collection<String> taskIds, Calendar cancelledStamp) {
+        if ( taskIds.isEmpty() ) {
+            return new ArrayList<QueuedTaskHolder>();
+        }
+        return cancel(this.namedTemplate.query(SELECT_CANCELLABLE, Collections.singletonMap("ids", taskIds), ROW_MAPPER), cancelledStamp);
+    }
+
+    @Override
+    public List<QueuedTaskHolder> markCancelledByKey(String taskKey, Calendar cancelledStamp) {
+        return cancel(this.jdbcTemplate.query(SELECT_CANCELLABLE_BY_KEY, ROW_MAPPER, taskKey), cancelledStamp);
+    }
+
+    /**
+     * Marks the tasks to cancel, already locked.
+     */
+    private List<QueuedTaskHolder> cancel(List<QueuedTaskHolder> cancelled, Calendar cancelledStamp) {
+        if ( cancelled.isEmpty() ) {
+            return cancelled;
+        }
+        List<String> ids = new ArrayList<String>(cancelled.size());
+        for ( QueuedTaskHolder task : cancelled ) {
+            ids.add(task.getId());
+            State from = State.counted(task);
+            if ( from == State.RUNNING ) {
+                this.counters.finished(task.getId(), task.getTaskType(), State.COMPLETED);
+            }
+            else {
+                this.counters.moved(task.getTaskType(), from, State.COMPLETED, 1);
+            }
+            task.setStartedStamp(null);
+            task.setNodeId(null);
+            task.setCompletedStamp(cancelledStamp);
+            task.setVersion(task.getVersion() + 1);
+        }
+        MapSqlParameterSource params = new MapSqlParameterSource("stamp", toTimestamp(cancelledStamp));
+        params.addValue("ids", ids);
+        this.namedTemplate.update(UPDATE_CANCELLED, params);
+        return cancelled;
+    }
+
+    @Override
+    public int markRescheduled(Collection<String> taskIds, Calendar triggerStamp) {
+        if ( taskIds.isEmpty() ) {
+            return 0;
+        }
+        MapSqlParameterSource params = new MapSqlParameterSource("ids", taskIds);
+        params.addValue("trigger", toTimestamp(triggerStamp));
+        // Still counted as ready, whatever the trigger stamp
+        return this.namedTemplate.update(UPDATE_RESCHEDULED, params);
+    }
+
+    @Override
+    public List<QueueDepth> findQueueDepths() {
+        final Map<String, QueueDepth> depths = new LinkedHashMap<String, QueueDepth>();
+        this.jdbcTemplate.query(SELECT_DEPTHS, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                String taskType = rs.getString(1);
+                QueueDepth depth = depths.get(taskType);
+                if ( depth == null ) {
+                    depth = new QueueDepth(taskType);
+                    depths.put(taskType, depth);
+                }
+                // Delayed ones are counted as ready, also those counted as delayed before
+                State state = State.valueOf(rs.getString(2)) == State.DELAYED ? State.READY : State.valueOf(rs.getString(2));
+                depth.setCount(state, depth.getCount(state) + rs.getLong(3));
+            }
+        });
+
+        // Tell apart the ready ones still delayed, following the trigger stamp index
+        this.namedTemplate.query(COUNT_DELAYED, Collections.singletonMap("now", toTimestamp(Calendar.getInstance())), new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                String taskType = QueueDepthCounters.key(rs.getString(1));
+                QueueDepth depth = depths.get(taskType);
+                if ( depth == null ) {
+                    depth = new QueueDepth(taskType);
+                    depths.put(taskType, depth);
+                }
+                long delayed = rs.getLong(2);
+                depth.setCount(State.DELAYED, delayed);
+                depth.setCount(State.READY, Math.max(0, depth.getCount(State.READY) - delayed));
+            }
+        });
+
+        return new ArrayList<QueueDepth>(depths.values());
+    }
+
+    @Override
+    public List<QueuedTaskHolder> findTasks(String taskType, State state, QueuedTaskHolder after, int maxResults) {
+        MapSqlParameterSource params = new MapSqlParameterSource("type", taskType);
+        params.addValue("now", toTimestamp(Calendar.getInstance()));
+        if ( after != null ) {
+            params.addValue("stamp", toTimestamp(state == State.COMPLETED ? after.getCompletedStamp() : after.getCreationStamp()));
+            params.addValue("id", after.getId());
+        }
+        return limitedTemplate(maxResults).query(selectPage(state, after == null), params, new FirstRows(maxResults));
+    }
+
+    @Override
+    public void flushQueueDepths() {
+
+        Map<String, long[]> drained = this.counters.drain();
+        if ( drained.isEmpty() ) {
+            return;
+        }
+        this.counters.restoreOnRollback(drained);
+
+        boolean inTransaction = TransactionSynchronizationManager.isSynchronizationActive();
+        Map<String, long[]> pending = new HashMap<String, long[]>(drained);
+        try {
+            for ( Map.Entry<String, long[]> entry : drained.entrySet() ) {
+                for ( State state : State.values() ) {
+                    long delta = entry.getValue()[state.ordinal()];
+                    if ( delta != 0 ) {
+                        addToStripe(entry.getKey(), state, delta);
+                    }
+                }
+                pending.remove(entry.getKey());
+            }
+        } catch (RuntimeException e) {
+            if ( !inTransaction ) {
+                // Each statement committed on its own, keep only the unwritten ones
+                this.counters.restore(pending);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void recountQueueDepths() {
+        this.counters.drain();
+        this.jdbcTemplate.update(DELETE_DEPTHS);
+        for ( final State state : State.values() ) {
+            if ( state == State.DELAYED ) {
+                continue;
+            }
+            this.jdbcTemplate.query("SELECT TASK_TYPE, COUNT(*) FROM TASK_QUEUE WHERE " + countedIn(state) + " GROUP BY TASK_TYPE", new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    String taskType = QueueDepthCounters.key(rs.getString(1));
+                    jdbcTemplate.update(INSERT_DEPTH, QueuedTaskCounter.idFor(taskType, state, 0), taskType, state.name(), 0, rs.getLong(2));
+                }
+            });
+        }
+    }
+
+
+    // Queue depth counters ----------------------------------------------------
+
+    private final QueueDepthCounters counters = new QueueDepthCounters();
+
+    /**
+     * Counts the tasks about to be freed by a bulk update, from the grouped
+     * count of their types.
+     */
+    private final RowCallbackHandler freedCounter = new RowCallbackHandler() {
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            counters.moved(rs.getString(1), State.RUNNING, State.READY, rs.getLong(2));
+        }
+    };
+
+    /**
+     * @return The type of a task being completed or freed.
+     */
+    private String typeOf(String taskId) {
+        String taskType = this.counters.runningType(taskId);
+        if ( taskType == null ) {
+            taskType = first(this.jdbcTemplate.queryForList(SELECT_TYPE, String.class, taskId));
+        }
+        return taskType;
+    }
+
+    private void addToStripe(String taskType, State state, long delta) {
+        String counterId = QueuedTaskCounter.idFor(taskType, state, this.counters.getStripe());
+        if ( this.jdbcTemplate.update(UPDATE_DEPTH, delta, counterId) == 0 ) {
+            this.jdbcTemplate.update(INSERT_DEPTH, counterId, taskType, state.name(), this.counters.getStripe(), delta);
+        }
+    }
+
+
+    // Row mapping -------------------------------------------------------------
+
+    private static final RowMapper<QueuedTaskHolder> ROW_MAPPER = new RowMapper<QueuedTaskHolder>() {
+        @Override
+        public QueuedTaskHolder mapRow(ResultSet rs, int rowNum) throws SQLException {
+            QueuedTaskHolder qth = new QueuedTaskHolder();
+            qth.setId(rs.getString(1));
+            qth.setTaskType(rs.getString(2));
+            qth.setCreationStamp(toCalendar(rs.getTimestamp(3)));
+            qth.setTriggerStamp(toCalendar(rs.getTimestamp(4)));
+            qth.setStartedStamp(toCalendar(rs.getTimestamp(5)));
+            qth.setNodeId(rs.getString(6));
+            qth.setCompletedStamp(toCalendar(rs.getTimestamp(7)));
+            qth.setSerializedTask(rs.getBytes(8));
+            qth.setPayloadRef(rs.getString(9));
+            qth.setRecurrenceKey(rs.getString(10));
+            qth.setPendingParents(rs.getInt(11));
+            qth.setVersion(rs.getInt(12));
+            qth.setTenant(rs.getString(13));
+            qth.setTaskKey(rs.getString(14));
+            return qth;
+        }
+    };
+
+    /**
+     * Maps the first rows of a result set and stops reading, for the queries
+     * run through {@link #limitedTemplate(int)}, in case the driver ignores
+     * the limit.
+     */
+    private static class FirstRows implements ResultSetExtractor<List<QueuedTaskHolder>> {
+
+        private final int maxRows;
+
+        FirstRows(int maxRows) {
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        public List<QueuedTaskHolder> extractData(ResultSet rs) throws SQLException {
+            List<QueuedTaskHolder> results = new ArrayList<QueuedTaskHolder>(Math.min(this.maxRows, 100));
+            while ( results.size() < this.maxRows && rs.next() ) {
+                results.add(ROW_MAPPER.mapRow(rs, results.size()));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * @return The arguments of {@link #INSERT} for a new task, whose creation
+     *         stamp is set if missing.
+     */
+    private static Object[] insertArgs(QueuedTaskHolder queuedTask) {
+        if ( queuedTask.getCreationStamp() == null ) {
+            queuedTask.setCreationStamp(Calendar.getInstance(TimeZone.getTimeZone("Etc/UTC")));
+        }
+        return new Object[] {
+                queuedTask.getId(),
+                queuedTask.getTaskType(),
+                toTimestamp(queuedTask.getCreationStamp()),
+                toTimestamp(queuedTask.getTriggerStamp()),
+                toTimestamp(queuedTask.getStartedStamp()),
+                queuedTask.getNodeId(),
+                toTimestamp(queuedTask.getCompletedStamp()),
+                queuedTask.getSerializedTask(),
+                queuedTask.getPayloadRef(),
+                queuedTask.getRecurrenceKey(),
+                queuedTask.getPendingParents(),
+                queuedTask.getVersion(),
+                queuedTask.getTenant(),
+                queuedTask.getTaskKey() };
+    }
+
+    private static Timestamp toTimestamp(Calendar cal) {
+        return cal != null ? new Timestamp(cal.getTimeInMillis()) : null;
+    }
+
+    private static Calendar toCalendar(Timestamp ts) {
+        if ( ts == null ) {
+            return null;
+        }
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(ts.getTime());
+        return cal;
+    }
+
+    private static <T> T first(List<T> results) {
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    /**
+     * @return A template whose statements fetch up to the given number of
+     *         rows, so the database can stop there too.
+     */
+    private NamedParameterJdbcTemplate limitedTemplate(int maxRows) {
+        NamedParameterJdbcTemplate template = this.limitedTemplates.get(maxRows);
+        if ( template == null ) {
+            JdbcTemplate limited = new JdbcTemplate(this.jdbcTemplate.getDataSource());
+            limited.setMaxRows(maxRows);
+            this.limitedTemplates.putIfAbsent(maxRows, new NamedParameterJdbcTemplate(limited));
+            template = this.limitedTemplates.get(maxRows);
+        }
+        return template;
+    }
+
+
+    // Injected dependencies ---------------------------------------------------
+
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.namedTemplate = new NamedParameterJdbcTemplate(this.jdbcTemplate);
+        JdbcTemplate firstRowTemplate = new JdbcTemplate(dataSource);
+        firstRowTemplate.setMaxRows(1);
+        this.firstRowNamedTemplate = new NamedParameterJdbcTemplate(firstRowTemplate);
+    }
+
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Template for the statements with named and collection parameters.
+     */
+    private NamedParameterJdbcTemplate namedTemplate;
+
+    /**
+     * Template that only fetches the first row, for the claim query.
+     */
+    private NamedParameterJdbcTemplate firstRowNamedTemplate;
+
+    /**
+     * Templates limited to a number of rows, by that number, for the batch
+     * claims and the listings.
+     */
+    private final ConcurrentMap<Integer, NamedParameterJdbcTemplate> limitedTemplates = new ConcurrentHashMap<Integer, NamedParameterJdbcTemplate>();
+
+}
@@ -15,20 +15,36 @@
  */
 package net.carinae.dev.async.dao;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import net.carinae.dev.async.Constants;
+import net.carinae.dev.async.QueueDepth;
+import net.carinae.dev.async.QueueDepth.State;
+import net.carinae.dev.async.QueuedTaskCounter;
+import net.carinae.dev.async.QueuedTaskDependency;
 import net.carinae.dev.async.QueuedTaskHolder;
 import net.carinae.dev.async.QueuedTaskHolder_;
 import org.springframework.stereotype.Repository;
 
 /**
  * JPA2 implementation of {@link QueuedTaskHolderDao}.
+ * <p>
+ * The queue depth counters are {@link QueuedTaskCounter} entities. Every
+ * change of state is buffered in memory once committed, and added to the
+ * stripe of this node on each flush, which must run inside a transaction.
  * 
  * @author Carlos Vara
  */
@@ -41,6 +57,19 @@ public class QueuedTaskHolderDaoJPA2 implements QueuedTaskHolderDao {
     @Override
     public void persist(QueuedTaskHolder queuedTask) {
         this.entityManager.persist(queuedTask);
+        this.counters.added(queuedTask);
+    }
+    
+    /**
+     * Hibernate only sends the inserts in JDBC batches when
+     * <code>hibernate.jdbc.batch_size</code> is set.
+     */
+    @Override
+    public void persistAll(Collection<QueuedTaskHolder> queuedTasks) {
+        for ( QueuedTaskHolder queuedTask : queuedTasks ) {
+            persist(queuedTask);
+        }
+        this.entityManager.flush();
     }
     
     @Override
@@ -49,22 +78,31 @@ public class QueuedTaskHolderDaoJPA2 implements QueuedTaskHolderDao {
     }
     
     @Override
-    public QueuedTaskHolder findNextTaskForExecution() {
-        
-        Calendar NOW = Calendar.getInstance();
+    public QueuedTaskHolder findNextTaskForExecution(Collection<String> excludedTaskTypes, String tenant) {
         
         // select qt from QueuedTask where
         //      qt.startedStamp == null AND
-        //      (qth.triggerStamp == null || qth.triggerStamp < NOW)
+        //      qt.pendingParents == 0 AND
+        //      (qth.triggerStamp == null || qth.triggerStamp < NOW) AND
+        //      (qth.taskType == null || qth.taskType not in (excludedTaskTypes)) AND
+        //      qth.tenant == tenant
         // order by qth.version ASC, qt.creationStamp ASC
         CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
         CriteriaQuery<QueuedTaskHolder> cq = cb.createQuery(QueuedTaskHolder.class);
         Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        Predicate ready = ready(cb, qth);
+        if ( !excludedTaskTypes.isEmpty() ) {
+            ready = cb.and(ready, cb.or(
+                    cb.isNull(qth.get(QueuedTaskHolder_.taskType)),
+                    cb.not(qth.get(QueuedTaskHolder_.taskType).in(excludedTaskTypes))));
+        }
+        if ( tenant != null ) {
+            ready = cb.and(ready, DEFAULT_TENANT.equals(tenant)
+                    ? cb.isNull(qth.get(QueuedTaskHolder_.tenant))
+                    : cb.equal(qth.get(QueuedTaskHolder_.tenant), tenant));
+        }
         cq.select(qth)
-            .where(cb.and(cb.isNull(qth.get(QueuedTaskHolder_.startedStamp)), 
-                    cb.or(
-                            cb.isNull(qth.get(QueuedTaskHolder_.triggerStamp)),
-                            cb.lessThan(qth.get(QueuedTaskHolder_.triggerStamp), NOW))))
+            .where(ready)
             .orderBy(cb.asc(qth.get(QueuedTaskHolder_.version)), cb.asc(qth.get(QueuedTaskHolder_.creationStamp)));
         
         List<QueuedTaskHolder> results = this.entityManager.createQuery(cq).setMaxResults(1).getResultList();
@@ -77,11 +115,63 @@ public class QueuedTaskHolderDaoJPA2 implements QueuedTaskHolderDao {
 
     }
     
+    @Override
+    public List<QueuedTaskHolder> findNextTasksForExecution(String taskType, String tenant, int maxResults) {
+        
+        // select qt from QueuedTask where <ready> AND
+        //      qth.taskType == taskType AND
+        //      qth.tenant == tenant
+        // order by qth.version ASC, qt.creationStamp ASC
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<QueuedTaskHolder> cq = cb.createQuery(QueuedTaskHolder.class);
+        Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        cq.select(qth)
+            .where(ready(cb, qth),
+                    cb.equal(qth.get(QueuedTaskHolder_.taskType), taskType),
+                    DEFAULT_TENANT.equals(tenant)
+                        ? cb.isNull(qth.get(QueuedTaskHolder_.tenant))
+                        : cb.equal(qth.get(QueuedTaskHolder_.tenant), tenant))
+            .orderBy(cb.asc(qth.get(QueuedTaskHolder_.version)), cb.asc(qth.get(QueuedTaskHolder_.creationStamp)));
+        
+        return this.entityManager.createQuery(cq).setMaxResults(maxResults).getResultList();
+    }
+    
+    @Override
+    public List<String> findReadyTenants() {
+        
+        // select distinct qth.tenant from QueuedTask where <ready>
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<String> cq = cb.createQuery(String.class);
+        Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        cq.select(qth.get(QueuedTaskHolder_.tenant))
+            .distinct(true)
+            .where(ready(cb, qth));
+        
+        List<String> tenants = new ArrayList<String>();
+        for ( String tenant : this.entityManager.createQuery(cq).getResultList() ) {
+            tenants.add(tenant != null ? tenant : DEFAULT_TENANT);
+        }
+        return tenants;
+    }
+    
+    /**
+     * Tasks that can be claimed right now, whatever their type.
+     */
+    private static Predicate ready(CriteriaBuilder cb, Root<QueuedTaskHolder> qth) {
+        Calendar NOW = Calendar.getInstance();
+        return cb.and(cb.isNull(qth.get(QueuedTaskHolder_.startedStamp)), 
+                cb.isNull(qth.get(QueuedTaskHolder_.completedStamp)),
+                cb.equal(qth.get(QueuedTaskHolder_.pendingParents), 0),
+                cb.or(
+                        cb.isNull(qth.get(QueuedTaskHolder_.triggerStamp)),
+                        cb.lessThan(qth.get(QueuedTaskHolder_.triggerStamp), NOW)));
+    }
+    
     @Override
     public QueuedTaskHolder findRandomStalledTask() {
         
         Calendar TOO_LONG_AGO = Calendar.getInstance();
-        TOO_LONG_AGO.add(Calendar.SECOND, -7200);
+        TOO_LONG_AGO.add(Calendar.SECOND, -Constants.TASK_STALLED_THRESHOLD);
         
         // select qth from QueuedTask where 
         //      qth.startedStamp != null AND
@@ -106,6 +196,434 @@ public class QueuedTaskHolderDaoJPA2 implements QueuedTaskHolderDao {
         
     }
 
+    @Override
+    public List<String> findCompletedTaskIds(Collection<String> taskIds) {
+        
+        // select qth.id from QueuedTask where
+        //      qth.id in (taskIds) AND
+        //      qth.completedStamp != null AND
+        //      qth.startedStamp != null
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<String> cq = cb.createQuery(String.class);
+        Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        cq.select(qth.get(QueuedTaskHolder_.id)).where(
+                cb.and(
+                        qth.get(QueuedTaskHolder_.id).in(taskIds),
+                        cb.isNotNull(qth.get(QueuedTaskHolder_.completedStamp)),
+                        cb.isNotNull(qth.get(QueuedTaskHolder_.startedStamp))));
+        
+        return this.entityManager.createQuery(cq).getResultList();
+    }
+    
+    @Override
+    public List<String> findCancelledTaskIds(Collection<String> taskIds) {
+        
+        if ( taskIds.isEmpty() ) {
+            return new ArrayList<String>();
+        }
+        
+        // select qth.id from QueuedTask where
+        //      qth.id in (taskIds) AND
+        //      qth.completedStamp != null AND
+        //      qth.startedStamp == null
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<String> cq = cb.createQuery(String.class);
+        Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        cq.select(qth.get(QueuedTaskHolder_.id)).where(
+                cb.and(
+                        qth.get(QueuedTaskHolder_.id).in(taskIds),
+                        cb.isNotNull(qth.get(QueuedTaskHolder_.completedStamp)),
+                        cb.isNull(qth.get(QueuedTaskHolder_.startedStamp))));
+        
+        return this.entityManager.createQuery(cq).getResultList();
+    }
+    
+    @Override
+    public List<String> findExistingTaskIds(Collection<String> taskIds) {
+        
+        if ( taskIds.isEmpty() ) {
+            return new ArrayList<String>();
+        }
+        
+        // select qth.id from QueuedTask where
+        //      qth.id in (taskIds)
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<String> cq = cb.createQuery(String.class);
+        Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        cq.select(qth.get(QueuedTaskHolder_.id)).where(qth.get(QueuedTaskHolder_.id).in(taskIds));
+        
+        return this.entityManager.createQuery(cq).getResultList();
+    }
+    
+    @Override
+    public void persistDependencies(QueuedTaskHolder child, Collection<String> parentIds) {
+        
+        // select qth from QueuedTask where
+        //      qth.id in (parentIds)
+        // for update
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<QueuedTaskHolder> cq = cb.createQuery(QueuedTaskHolder.class);
+        Root<QueuedTaskHolder> qth = cq.from(QueuedTaskHolder.class);
+        cq.select(qth).where(qth.get(QueuedTaskHolder_.id).in(parentIds));
+        
+        List<QueuedTaskHolder> parents = this.entityManager.createQuery(cq).setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList();
+        
+        int pending = 0;
+        for ( QueuedTaskHolder parent : parents ) {
+            if ( parent.getCompletedStamp() == null ) {
+                this.entityManager.persist(new QueuedTaskDependency(parent.getId(), child.getId()));
+                pending++;
+            }
+        }
+        child.setPendingParents(pending);
+    }
+    
+    @Override
+    public int releaseDependents(String parentId) {
+        
+        int updated = this.entityManager.createQuery(
+                "update QueuedTaskHolder qth set qth.pendingParents = qth.pendingParents - 1 " +
+                "where qth.id in (select d.childId from QueuedTaskDependency d where d.parentId = :parentId)")
+            .setParameter("parentId", parentId)
+            .executeUpdate();
+        if ( updated == 0 ) {
+            return 0;
+        }
+        
+        List<Object[]> releasedByType = this.entityManager.createQuery(
+                "select qth.taskType, count(qth) from QueuedTaskHolder qth where qth.pendingParents = 0 and qth.completedStamp is null " +
+                "and qth.id in (select d.childId from QueuedTaskDependency d where d.parentId = :parentId) " +
+                "group by qth.taskType", Object[].class)
+            .setParameter("parentId", parentId)
+            .getResultList();
+        
+        this.entityManager.createQuery("delete from QueuedTaskDependency d where d.parentId = :parentId")
+            .setParameter("parentId", parentId)
+            .executeUpdate();
+        
+        int released = 0;
+        for ( Object[] row : releasedByType ) {
+            this.counters.moved((String)row[0], State.WAITING, State.READY, (Long)row[1]);
+            released += (Long)row[1];
+        }
+        return released;
+    }
+    
+    @Override
+    public boolean markStarted(QueuedTaskHolder queuedTask, Calendar startedStamp, String nodeId) {
+        // Conflicts are detected by the version check at commit time
+        this.counters.claimed(queuedTask);
+        queuedTask.setStartedStamp(startedStamp);
+        queuedTask.setNodeId(nodeId);
+        return true;
+    }
+    
+    @Override
+    public boolean markCompleted(String taskId, int version, Calendar completedStamp) {
+        boolean completed = this.entityManager.createQuery(
+                "update QueuedTaskHolder qth set qth.completedStamp = :completedStamp, qth.version = qth.version + 1 " +
+                "where qth.id = :id and qth.version = :version and qth.startedStamp is not null and qth.completedStamp is null")
+            .setParameter("completedStamp", completedStamp)
+            .setParameter("id", taskId)
+            .setParameter("version", version)
+            .executeUpdate() > 0;
+        if ( completed ) {
+            this.counters.finished(taskId, typeOf(taskId), State.COMPLETED);
+        }
+        return completed;
+    }
+    
+    @Override
+    public boolean markFree(String taskId, int version) {
+        boolean freed = this.entityManager.createQuery(
+                "update QueuedTaskHolder qth set qth.startedStamp = null, qth.nodeId = null, qth.version = qth.version + 1 " +
+                "where qth.id = :id and qth.version = :version and qth.startedStamp is not null and qth.completedStamp is null")
+            .setParameter("id", taskId)
+            .setParameter("version", version)
+            .executeUpdate() > 0;
+        if ( freed ) {
+            this.counters.finished(taskId, typeOf(taskId), State.READY);
+        }
+        return freed;
+    }
+    
+    @Override
+    public int markFree(Collection<String> taskIds) {
+        if ( taskIds.isEmpty() ) {
+            return 0;
+        }
+        countFreed(this.entityManager.createQuery(
+                "select qth.taskType, count(qth) from QueuedTaskHolder qth " +
+                "where qth.id in (:ids) and qth.startedStamp is not null and qth.completedStamp is null " +
+                "group by qth.taskType", Object[].class)
+            .setParameter("ids", taskIds)
+            .getResultList());
+        return this.entityManager.createQuery(
+                "update QueuedTaskHolder qth set qth.startedStamp = null, qth.nodeId = null, qth.version = qth.version + 1 " +
+                "where qth.id in (:ids) and qth.startedStamp is not null and qth.completedStamp is null")
+            .setParameter("ids", taskIds)
+            .executeUpdate();
+    }
+    
+    @Override
+    public int markFreeByNode(String nodeId) {
+        countFreed(this.entityManager.createQuery(
+                "select qth.taskType, count(qth) from QueuedTaskHolder qth " +
+                "where qth.nodeId = :nodeId and qth.startedStamp is not null and qth.completedStamp is null " +
+                "group by qth.taskType", Object[].class)
+            .setParameter("nodeId", nodeId)
+            .getResultList());
+        return this.entityManager.createQuery(
+                "update QueuedTaskHolder qth set qth.startedStamp = null, qth.nodeId = null, qth.version = qth.version + 1 " +
+                "where qth.nodeId = :nodeId and qth.startedStamp is not null and qth.completedStamp is null")
+            .setParameter("nodeId", nodeId)
+            .executeUpdate();
+    }
+    
+    @Override
+    public List<QueuedTaskHolder> markCancelled(Collection<String> taskIds, Calendar cancelledStamp) {
+        if ( taskIds.isEmpty() ) {
+            return new ArrayList<QueuedTaskHolder>();
+        }
+        return cancel(this.entityManager.createQuery(
+                "select qth from QueuedTaskHolder qth where qth.id in (:ids) and qth.completedStamp is null", QueuedTaskHolder.class)
+            .setParameter("ids", taskIds), cancelledStamp);
+    }
+    
+    @Override
+    public List<QueuedTaskHolder> markCancelledByKey(String taskKey, Calendar cancelledStamp) {
+        return cancel(this.entityManager.createQuery(
+                "select qth from QueuedTaskHolder qth where qth.taskKey = :taskKey and qth.completedStamp is null", QueuedTaskHolder.class)
+            .setParameter("taskKey", taskKey), cancelledStamp);
+    }
+    
+    /**
+     * Locks the tasks to cancel and marks them, so their version is checked
+     * and bumped at flush.
+     */
+    private List<QueuedTaskHolder> cancel(TypedQuery<QueuedTaskHolder> query, Calendar cancelledStamp) {
+        List<QueuedTaskHolder> cancelled = query.setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList();
+        for ( QueuedTaskHolder task : cancelled ) {
+            State from = State.counted(task);
+            if ( from == State.RUNNING ) {
+                this.counters.finished(task.getId(), task.getTaskType(), State.COMPLETED);
+            }
+            else {
+                this.counters.moved(task.getTaskType(), from, State.COMPLETED, 1);
+            }
+            task.setStartedStamp(null);
+            task.setNodeId(null);
+            task.setCompletedStamp(cancelledStamp);
+        }
+        return cancelled;
+    }
+    
+    @Override
+    public int markRescheduled(Collection<String> taskIds, Calendar triggerStamp) {
+        if ( taskIds.isEmpty() ) {
+            return 0;
+        }
+        
+        // Still counted as ready, whatever the trigger stamp
+        return this.entityManager.createQuery(
+                "update QueuedTaskHolder qth set qth.triggerStamp = :triggerStamp, qth.version = qth.version + 1 " +
+                "where qth.id in (:ids) and qth.startedStamp is null and qth.completedStamp is null")
+            .setParameter("triggerStamp", triggerStamp)
+            .setParameter("ids", taskIds)
+            .executeUpdate();
+    }
+    
+    @Override
+    public List<QueueDepth> findQueueDepths() {
+        
+        List<Object[]> rows = this.entityManager.createQuery(
+                "select c.taskType, c.state, sum(c.taskCount) from QueuedTaskCounter c " +
+                "group by c.taskType, c.state order by c.taskType", Object[].class)
+            .getResultList();
+        
+        Map<String, QueueDepth> depths = new LinkedHashMap<String, QueueDepth>();
+        for ( Object[] row : rows ) {
+            String taskType = (String)row[0];
+            QueueDepth depth = depths.get(taskType);
+            if ( depth == null ) {
+                depth = new QueueDepth(taskType);
+                depths.put(taskType, depth);
+            }
+            // Delayed ones are counted as ready, also those counted as delayed before
+            State state = (State)row[1] == State.DELAYED ? State.READY : (State)row[1];
+            depth.setCount(state, depth.getCount(state) + (Long)row[2]);
+        }
+        
+        // Tell apart the ready ones still delayed, following the trigger stamp index
+        List<Object[]> delayedByType = this.entityManager.createQuery(
+                "select qth.taskType, count(qth) from QueuedTaskHolder qth where " + inState(State.DELAYED) + " group by qth.taskType", Object[].class)
+            .setParameter("now", Calendar.getInstance())
+            .getResultList();
+        for ( Object[] row : delayedByType ) {
+            String taskType = QueueDepthCounters.key((String)row[0]);
+            QueueDepth depth = depths.get(taskType);
+            if ( depth == null ) {
+                depth = new QueueDepth(taskType);
+                depths.put(taskType, depth);
+            }
+            long delayed = (Long)row[1];
+            depth.setCount(State.DELAYED, delayed);
+            depth.setCount(State.READY, Math.max(0, depth.getCount(State.READY) - delayed));
+        }
+        
+        return new ArrayList<QueueDepth>(depths.values());
+    }
+    
+    @Override
+    public List<QueuedTaskHolder> findTasks(String taskType, State state, QueuedTaskHolder after, int maxResults) {
+        
+        // Follows the TASK_TYPE, COMPLETED_STAMP, CREATION_STAMP, ID index
+        String stamp = state == State.COMPLETED ? "qth.completedStamp" : "qth.creationStamp";
+        StringBuilder jpql = new StringBuilder("select qth from QueuedTaskHolder qth where qth.taskType = :type");
+        if ( state != State.COMPLETED ) {
+            jpql.append(" and qth.completedStamp is null");
+        }
+        jpql.append(" and ").append(inState(state));
+        if ( after != null ) {
+            jpql.append(" and (").append(stamp).append(" > :stamp or (").append(stamp).append(" = :stamp and qth.id > :id))");
+        }
+        jpql.append(" order by ").append(stamp).append(" asc, qth.id asc");
+        
+        TypedQuery<QueuedTaskHolder> query = this.entityManager.createQuery(jpql.toString(), QueuedTaskHolder.class)
+            .setParameter("type", taskType)
+            .setMaxResults(maxResults);
+        if ( state == State.READY || state == State.DELAYED ) {
+            query.setParameter("now", Calendar.getInstance());
+        }
+        if ( after != null ) {
+            query.setParameter("stamp", state == State.COMPLETED ? after.getCompletedStamp() : after.getCreationStamp())
+                .setParameter("id", after.getId());
+        }
+        return query.getResultList();
+    }
+    
+    @Override
+    public void flushQueueDepths() {
+        
+        Map<String, long[]> drained = this.counters.drain();
+        if ( drained.isEmpty() ) {
+            return;
+        }
+        this.counters.restoreOnRollback(drained);
+        
+        for ( Map.Entry<String, long[]> entry : drained.entrySet() ) {
+            for ( State state : State.values() ) {
+                long delta = entry.getValue()[state.ordinal()];
+                if ( delta != 0 ) {
+                    addToStripe(entry.getKey(), state, delta);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void recountQueueDepths() {
+        
+        this.counters.drain();
+        this.entityManager.createQuery("delete from QueuedTaskCounter c").executeUpdate();
+        
+        for ( State state : State.values() ) {
+            if ( state == State.DELAYED ) {
+                continue;
+            }
+            List<Object[]> rows = this.entityManager.createQuery(
+                    "select qth.taskType, count(qth) from QueuedTaskHolder qth where " + countedIn(state) + " group by qth.taskType", Object[].class)
+                .getResultList();
+            for ( Object[] row : rows ) {
+                QueuedTaskCounter counter = new QueuedTaskCounter(QueueDepthCounters.key((String)row[0]), state, 0);
+                counter.setTaskCount((Long)row[1]);
+                this.entityManager.persist(counter);
+            }
+        }
+    }
+    
+    
+    // Queue depth counters ----------------------------------------------------
+    
+    private final QueueDepthCounters counters = new QueueDepthCounters();
+    
+    private static final String PENDING =
+        "qth.startedStamp is null and qth.completedStamp is null and qth.pendingParents = 0";
+    
+    /**
+     * Conditions of the tasks in each state, see
+     * {@link QueueDepth.State#of(QueuedTaskHolder)}. Ready and delayed ones
+     * take the current time as the <code>now</code> parameter.
+     */
+    private static String inState(State state) {
+        switch (state) {
+            case READY:
+                return PENDING + " and (qth.triggerStamp is null or qth.triggerStamp < :now)";
+            case DELAYED:
+                return PENDING + " and qth.triggerStamp >= :now";
+            default:
+                return countedIn(state);
+        }
+    }
+    
+    /**
+     * Conditions of the tasks counted in each state but delayed, see
+     * {@link QueueDepth.State#counted(QueuedTaskHolder)}.
+     */
+    private static String countedIn(State state) {
+        switch (state) {
+            case READY:
+                return PENDING;
+            case WAITING:
+                return "qth.startedStamp is null and qth.completedStamp is null and qth.pendingParents > 0";
+            case RUNNING:
+                return "qth.startedStamp is not null and qth.completedStamp is null";
+            case COMPLETED:
+                return "qth.completedStamp is not null";
+            default:
+                throw new IllegalArgumentException("Not a counted state: " + state);
+        }
+    }
+    
+    /**
+     * Counts the tasks about to be freed by a bulk update, from the grouped
+     * count of their types.
+     */
+    private void countFreed(List<Object[]> freedByType) {
+        for ( Object[] row : freedByType ) {
+            this.counters.moved((String)row[0], State.RUNNING, State.READY, (Long)row[1]);
+        }
+    }
+    
+    /**
+     * @return The type of a task being completed or freed.
+     */
+    private String typeOf(String taskId) {
+        String taskType = this.counters.runningType(taskId);
+        if ( taskType == null ) {
+            List<String> types = this.entityManager.createQuery(
+                    "select qth.taskType from QueuedTaskHolder qth where qth.id = :id", String.class)
+                .setParameter("id", taskId)
+                .getResultList();
+            taskType = types.isEmpty() ? null : types.get(0);
+        }
+        return taskType;
+    }
+    
+    private void addToStripe(String taskType, State state, long delta) {
+        String counterId = QueuedTaskCounter.idFor(taskType, state, this.counters.getStripe());
+        int updated = this.entityManager.createQuery(
+                "update QueuedTaskCounter c set c.taskCount = c.taskCount + :delta where c.id = :id")
+            .setParameter("delta", delta)
+            .setParameter("id", counterId)
+            .executeUpdate();
+        if ( updated == 0 ) {
+            QueuedTaskCounter counter = new QueuedTaskCounter(taskType, state, this.counters.getStripe());
+            counter.setTaskCount(delta);
+            this.entityManager.persist(counter);
+        }
+    }
+
     
     // Injected dependencies ---------------------------------------------------
 
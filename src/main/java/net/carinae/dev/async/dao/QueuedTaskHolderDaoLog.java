@@ -0,0 +1,1870 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import net.carinae.dev.async.Constants;
+import net.carinae.dev.async.QueueDepth;
+import net.carinae.dev.async.QueueDepth.State;
+import net.carinae.dev.async.QueuedTaskHolder;
+import net.carinae.dev.async.util.AppendOnlyJournal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.Ordered;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Embedded, log-structured implementation of {@link QueuedTaskHolderDao}, for
+ * single-node deployments that don't want to pay for a database round trip
+ * on every queue operation.
+ * <p>
+ * The whole queue lives in memory: the tasks by id, an index of the ones
+ * ready for execution in claim order, overall and by tenant, and the pending
+ * dependencies. Every change is appended to a local {@link AppendOnlyJournal}
+ * before being applied, and the journal is replayed on startup. New tasks are
+ * logged in full, any later change only logs the state of the task, and
+ * completed tasks drop their serialized body. Once enough has been logged,
+ * the journal is compacted in the background by writing a snapshot of the
+ * current queue and discarding the segments it replaces. Completed tasks are
+ * kept for a retention period, and left out of the snapshots after it.
+ * <p>
+ * Changes made inside a transaction are only visible to that transaction
+ * until it commits. They are validated again before the commit, and a change
+ * that lost against a concurrent one (the same task claimed twice, a parent
+ * completed while a child was being enqueued...) makes the commit fail with
+ * an {@link OptimisticLockingFailureException}. Validated changes reserve the
+ * tasks they touch, so no other transaction can change them until they are
+ * applied, and are logged before the commit, so a journal failure fails it.
+ * They are applied right after the commit, so the queue never shows changes
+ * of a rolled back transaction. The queue lock is not held during the commit
+ * itself, where it could deadlock with the database locks.
+ * <p>
+ * A transaction rolled back after being logged is logged as such, and skipped
+ * when the journal is replayed. If that can't be logged, or the node crashes
+ * in between, its changes will be replayed on restart.
+ * <p>
+ * The queue depth counters are exact, as they are updated along with the
+ * committed state, so there is nothing to flush.
+ * <p>
+ * It is not picked up by the component scan. To use it instead of
+ * {@link QueuedTaskHolderDaoJPA2}, declare it as a primary bean:
+ *
+ * <pre>
+ * &lt;bean class="net.carinae.dev.async.dao.QueuedTaskHolderDaoLog" primary="true"&gt;
+ *     &lt;property name="directory" value="/var/lib/myapp/task-queue"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * The directory must not be shared with any other node or process.
+ *
+ * @author Carlos Vara
+ */
+public class QueuedTaskHolderDaoLog implements QueuedTaskHolderDao, InitializingBean, DisposableBean {
+
+    final static Logger logger = LoggerFactory.getLogger(QueuedTaskHolderDaoLog.class);
+
+    // Record types
+    private static final byte NEW_TASK = 'N';
+    private static final byte TASK_STATE = 'S';
+    private static final byte DEPENDENCY = 'D';
+    private static final byte RELEASE = 'R';
+    private static final byte RESCHEDULE = 'P';
+    private static final byte BEGIN = 'B';
+    private static final byte ABORT = 'A';
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    /**
+     * Less tried first, then older first.
+     */
+    private static final Comparator<QueuedTaskHolder> CLAIM_ORDER = new Comparator<QueuedTaskHolder>() {
+        @Override
+        public int compare(QueuedTaskHolder o1, QueuedTaskHolder o2) {
+            if ( o1.getVersion() != o2.getVersion() ) {
+                return o1.getVersion() < o2.getVersion() ? -1 : 1;
+            }
+            int byCreation = o1.getCreationStamp().compareTo(o2.getCreationStamp());
+            return byCreation != 0 ? byCreation : o1.getId().compareTo(o2.getId());
+        }
+    };
+
+
+    /**
+     * Order of the listings, as in the database ones.
+     */
+    private static final Comparator<QueuedTaskHolder> CREATION_ORDER = new Comparator<QueuedTaskHolder>() {
+        @Override
+        public int compare(QueuedTaskHolder o1, QueuedTaskHolder o2) {
+            int byCreation = o1.getCreationStamp().compareTo(o2.getCreationStamp());
+            return byCreation != 0 ? byCreation : o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    private static final Comparator<QueuedTaskHolder> COMPLETION_ORDER = new Comparator<QueuedTaskHolder>() {
+        @Override
+        public int compare(QueuedTaskHolder o1, QueuedTaskHolder o2) {
+            int byCompletion = o1.getCompletedStamp().compareTo(o2.getCompletedStamp());
+            return byCompletion != 0 ? byCompletion : o1.getId().compareTo(o2.getId());
+        }
+    };
+
+
+    // QueuedTaskDao methods ---------------------------------------------------
+
+    @Override
+    public void persist(QueuedTaskHolder queuedTask) {
+        if ( queuedTask.getCreationStamp() == null ) {
+            queuedTask.setCreationStamp(Calendar.getInstance(TimeZone.getTimeZone("Etc/UTC")));
+        }
+        if ( !submit(new NewTask(copy(queuedTask))) ) {
+            throw new DuplicateKeyException("Task already enqueued: " + queuedTask);
+        }
+    }
+
+    @Override
+    public void persistAll(Collection<QueuedTaskHolder> queuedTasks) {
+        for ( QueuedTaskHolder queuedTask : queuedTasks ) {
+            persist(queuedTask);
+        }
+    }
+
+    @Override
+    public QueuedTaskHolder findById(String taskId) {
+        this.lock.lock();
+        try {
+            return copy(view().task(taskId));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public QueuedTaskHolder findNextTaskForExecution(Collection<String> excludedTaskTypes, String tenant) {
+
+        Calendar now = Calendar.getInstance();
+
+        this.lock.lock();
+        try {
+            Set<QueuedTaskHolder> candidates = this.ready;
+            if ( tenant != null ) {
+                candidates = this.readyByTenant.get(tenant);
+                if ( candidates == null ) {
+                    return null;
+                }
+            }
+            ChangeSet changeSet = currentChangeSet();
+            for ( QueuedTaskHolder candidate : candidates ) {
+                if ( candidate.getTriggerStamp() != null && !candidate.getTriggerStamp().before(now) ) {
+                    continue;
+                }
+                if ( candidate.getTaskType() != null && excludedTaskTypes.contains(candidate.getTaskType()) ) {
+                    continue;
+                }
+                if ( changeSet != null && changeSet.view.touched.containsKey(candidate.getId()) ) {
+                    continue;
+                }
+                if ( this.reservations.containsKey(candidate.getId()) ) {
+                    // Being claimed by a committing transaction
+                    continue;
+                }
+                return copy(candidate);
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public List<QueuedTaskHolder> findNextTasksForExecution(String taskType, String tenant, int maxResults) {
+
+        Calendar now = Calendar.getInstance();
+
+        List<QueuedTaskHolder> found = new ArrayList<QueuedTaskHolder>();
+        this.lock.lock();
+        try {
+            TreeSet<QueuedTaskHolder> candidates = this.readyByTenant.get(tenant);
+            if ( candidates == null ) {
+                return found;
+            }
+            ChangeSet changeSet = currentChangeSet();
+            for ( QueuedTaskHolder candidate : candidates ) {
+                if ( found.size() >= maxResults ) {
+                    break;
+                }
+                if ( !taskType.equals(candidate.getTaskType()) ) {
+                    continue;
+                }
+                if ( candidate.getTriggerStamp() != null && !candidate.getTriggerStamp().before(now) ) {
+                    continue;
+                }
+                if ( changeSet != null && changeSet.view.touched.containsKey(candidate.getId()) ) {
+                    continue;
+                }
+                if ( this.reservations.containsKey(candidate.getId()) ) {
+                    // Being claimed by a committing transaction
+                    continue;
+                }
+                found.add(copy(candidate));
+            }
+            return found;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> findReadyTenants() {
+
+        Calendar now = Calendar.getInstance();
+
+        List<String> tenants = new ArrayList<String>();
+        this.lock.lock();
+        try {
+            for ( Map.Entry<String, TreeSet<QueuedTaskHolder>> entry : this.readyByTenant.entrySet() ) {
+                for ( QueuedTaskHolder candidate : entry.getValue() ) {
+                    if ( candidate.getTriggerStamp() == null || candidate.getTriggerStamp().before(now) ) {
+                        tenants.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+            return tenants;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public QueuedTaskHolder findRandomStalledTask() {
+
+        Calendar TOO_LONG_AGO = Calendar.getInstance();
+        TOO_LONG_AGO.add(Calendar.SECOND, -Constants.TASK_STALLED_THRESHOLD);
+
+        List<QueuedTaskHolder> stalledTasks = new ArrayList<QueuedTaskHolder>();
+        this.lock.lock();
+        try {
+            for ( QueuedTaskHolder task : this.tasks.values() ) {
+                if ( task.getCompletedStamp() == null && task.getStartedStamp() != null && task.getStartedStamp().before(TOO_LONG_AGO) ) {
+                    stalledTasks.add(task);
+                }
+            }
+            if ( stalledTasks.isEmpty() ) {
+                return null;
+            }
+            Random rand = new Random(System.currentTimeMillis());
+            return copy(stalledTasks.get(rand.nextInt(stalledTasks.size())));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> findCompletedTaskIds(Collection<String> taskIds) {
+        List<String> completed = new ArrayList<String>();
+        this.lock.lock();
+        try {
+            for ( String taskId : taskIds ) {
+                QueuedTaskHolder task = this.tasks.get(taskId);
+                if ( task != null && task.getCompletedStamp() != null && task.getStartedStamp() != null ) {
+                    completed.add(taskId);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return completed;
+    }
+
+    @Override
+    public List<String> findCancelledTaskIds(Collection<String> taskIds) {
+        List<String> cancelled = new ArrayList<String>();
+        this.lock.lock();
+        try {
+            for ( String taskId : taskIds ) {
+                QueuedTaskHolder task = this.tasks.get(taskId);
+                if ( task != null && task.getCompletedStamp() != null && task.getStartedStamp() == null ) {
+                    cancelled.add(taskId);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return cancelled;
+    }
+
+    @Override
+    public List<String> findExistingTaskIds(Collection<String> taskIds) {
+        List<String> existing = new ArrayList<String>();
+        this.lock.lock();
+        try {
+            Staging view = view();
+            for ( String taskId : taskIds ) {
+                if ( view.task(taskId) != null ) {
+                    existing.add(taskId);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return existing;
+    }
+
+    @Override
+    public void persistDependencies(QueuedTaskHolder child, Collection<String> parentIds) {
+        int pendingParents = 0;
+        for ( String parentId : new HashSet<String>(parentIds) ) {
+            if ( submit(new Dependency(parentId, child.getId())) ) {
+                pendingParents++;
+            }
+        }
+        child.setPendingParents(pendingParents);
+    }
+
+    @Override
+    public int releaseDependents(String parentId) {
+        Release release = new Release(parentId);
+        submit(release);
+        return release.affected;
+    }
+
+    @Override
+    public boolean markStarted(QueuedTaskHolder queuedTask, Calendar startedStamp, String nodeId) {
+        if ( !submit(new Claim(queuedTask.getId(), queuedTask.getVersion(), startedStamp, nodeId)) ) {
+            return false;
+        }
+        queuedTask.setStartedStamp(startedStamp);
+        queuedTask.setNodeId(nodeId);
+        queuedTask.setVersion(queuedTask.getVersion() + 1);
+        return true;
+    }
+
+    @Override
+    public boolean markCompleted(String taskId, int version, Calendar completedStamp) {
+        return submit(new Complete(taskId, version, completedStamp));
+    }
+
+    @Override
+    public boolean markFree(String taskId, int version) {
+        return submit(new Free(taskId, version));
+    }
+
+    @Override
+    public int markFree(Collection<String> taskIds) {
+        FreeAll freeAll = new FreeAll(taskIds);
+        submit(freeAll);
+        return freeAll.affected;
+    }
+
+    @Override
+    public int markFreeByNode(String nodeId) {
+        FreeAll freeAll = new FreeAll(nodeId);
+        submit(freeAll);
+        return freeAll.affected;
+    }
+
+    @Override
+    public List<QueuedTaskHolder> markCancelled(Collection<String> taskIds, Calendar cancelledStamp) {
+        CancelAll cancelAll = new CancelAll(taskIds, null, cancelledStamp);
+        submit(cancelAll);
+        return cancelAll.cancelled;
+    }
+
+    @Override
+    public List<QueuedTaskHolder> markCancelledByKey(String taskKey, Calendar cancelledStamp) {
+        CancelAll cancelAll = new CancelAll(null, taskKey, cancelledStamp);
+        submit(cancelAll);
+        return cancelAll.cancelled;
+    }
+
+    @Override
+    public int markRescheduled(Collection<String> taskIds, Calendar triggerStamp) {
+        RescheduleAll rescheduleAll = new RescheduleAll(taskIds, triggerStamp);
+        submit(rescheduleAll);
+        return rescheduleAll.affected;
+    }
+
+    @Override
+    public List<QueueDepth> findQueueDepths() {
+        Map<String, QueueDepth> depths = new HashMap<String, QueueDepth>();
+        this.lock.lock();
+        try {
+            for ( Map.Entry<String, long[]> entry : this.depths.entrySet() ) {
+                QueueDepth depth = new QueueDepth(entry.getKey());
+                for ( State state : State.values() ) {
+                    depth.setCount(state, entry.getValue()[state.ordinal()]);
+                }
+                depths.put(entry.getKey(), depth);
+            }
+
+            // Counted as ready, tell apart the ones still delayed
+            for ( QueuedTaskHolder task : this.ready ) {
+                if ( State.of(task) == State.DELAYED ) {
+                    QueueDepth depth = depths.get(task.getTaskType() != null ? task.getTaskType() : "");
+                    depth.setCount(State.DELAYED, depth.getCount(State.DELAYED) + 1);
+                    depth.setCount(State.READY, depth.getCount(State.READY) - 1);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return new ArrayList<QueueDepth>(depths.values());
+    }
+
+    @Override
+    public List<QueuedTaskHolder> findTasks(String taskType, State state, QueuedTaskHolder after, int maxResults) {
+
+        List<QueuedTaskHolder> page = new ArrayList<QueuedTaskHolder>();
+        this.lock.lock();
+        try {
+            // Delayed tasks are indexed along with the ready ones
+            TreeSet<QueuedTaskHolder> listed = listed(taskType, state == State.DELAYED ? State.READY : state, false);
+            if ( listed == null ) {
+                return page;
+            }
+            for ( QueuedTaskHolder task : after == null ? listed : listed.tailSet(after, false) ) {
+                if ( page.size() >= maxResults ) {
+                    break;
+                }
+                if ( State.of(task) == state ) {
+                    page.add(copy(task));
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return page;
+    }
+
+    @Override
+    public void flushQueueDepths() {
+        // Always up to date
+    }
+
+    @Override
+    public void recountQueueDepths() {
+        this.lock.lock();
+        try {
+            this.depths.clear();
+            for ( QueuedTaskHolder task : this.tasks.values() ) {
+                count(task, 1);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // Lifecycle ---------------------------------------------------------------
+
+    /**
+     * Rebuilds the queue from the journal, leaving out the transactions
+     * logged as rolled back and the batches logged twice around a snapshot.
+     */
+    @Override
+    public void afterPropertiesSet() throws IOException {
+
+        this.journal = new AppendOnlyJournal(this.directory, Constants.TASK_LOG_SEGMENT_SIZE);
+
+        Runnable compaction;
+        this.lock.lock();
+        try {
+            List<File> segments = this.journal.seal();
+
+            Set<String> aborted = new HashSet<String>();
+            for ( File segment : segments ) {
+                for ( byte[] batch : this.journal.read(segment) ) {
+                    if ( batch[0] == ABORT ) {
+                        aborted.add(batchId(batch));
+                    }
+                }
+            }
+
+            Set<String> applied = new HashSet<String>();
+            for ( File segment : segments ) {
+                for ( byte[] batch : this.journal.read(segment) ) {
+                    if ( batch[0] == ABORT ) {
+                        continue;
+                    }
+                    if ( batch[0] == BEGIN ) {
+                        String batchId = batchId(batch);
+                        if ( aborted.contains(batchId) || !applied.add(batchId) ) {
+                            continue;
+                        }
+                    }
+                    apply(batch);
+                    this.loggedSinceCompaction += batch.length;
+                }
+            }
+            logger.info("Loaded {} tasks from {}, {} ready for execution", new Object[] {this.tasks.size(), this.directory, this.ready.size()});
+            compaction = compaction();
+        } finally {
+            this.lock.unlock();
+        }
+
+        if ( compaction != null ) {
+            compaction.run();
+        }
+    }
+
+    /**
+     * Waits for a running compaction, and closes the journal.
+     */
+    @Override
+    public void destroy() throws IOException {
+        Thread compaction = this.compactionThread;
+        if ( compaction != null ) {
+            try {
+                compaction.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.journal.close();
+    }
+
+
+    // Configuration -----------------------------------------------------------
+
+    /**
+     * @param directory
+     *            The directory where the journal segments are kept. Created if
+     *            needed.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    private File directory;
+
+    /**
+     * @param compactionThreshold
+     *            The bytes logged since the last snapshot that trigger a new
+     *            one, {@link Constants#TASK_LOG_COMPACTION_THRESHOLD} by
+     *            default. It's still twice the size of the last snapshot at
+     *            least.
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    private long compactionThreshold = Constants.TASK_LOG_COMPACTION_THRESHOLD;
+
+    /**
+     * @param completedRetention
+     *            How long completed tasks are kept, in milliseconds,
+     *            {@link Constants#TASK_LOG_COMPLETED_RETENTION} by default.
+     *            Older ones are dropped on the next compaction, and no longer
+     *            found by id.
+     */
+    public void setCompletedRetention(long completedRetention) {
+        this.completedRetention = completedRetention;
+    }
+
+    private long completedRetention = Constants.TASK_LOG_COMPLETED_RETENTION;
+
+
+    // Committed state ---------------------------------------------------------
+
+    /**
+     * Guards all the committed state and the reservations. Never held while
+     * logging or writing a snapshot.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private AppendOnlyJournal journal;
+
+    private final Map<String, QueuedTaskHolder> tasks = new HashMap<String, QueuedTaskHolder>();
+
+    /**
+     * Tasks that are neither started nor waiting for a parent, in the order
+     * they are claimed: less tried first, then older first.
+     */
+    private final TreeSet<QueuedTaskHolder> ready = new TreeSet<QueuedTaskHolder>(CLAIM_ORDER);
+
+    /**
+     * The same tasks split by tenant, {@link #DEFAULT_TENANT} for those
+     * without.
+     */
+    private final Map<String, TreeSet<QueuedTaskHolder>> readyByTenant = new HashMap<String, TreeSet<QueuedTaskHolder>>();
+
+    /**
+     * Ids of the tasks not completed yet, by key.
+     */
+    private final Map<String, Set<String>> pendingByKey = new HashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> childrenByParent = new HashMap<String, Set<String>>();
+
+    private final Set<String> recurrenceKeys = new HashSet<String>();
+
+    /**
+     * Tasks by type and by the state they are counted in, sorted as they are
+     * listed: by completion the completed ones, by creation the rest.
+     */
+    private final Map<String, Map<State, TreeSet<QueuedTaskHolder>>> listings = new HashMap<String, Map<State, TreeSet<QueuedTaskHolder>>>();
+
+    /**
+     * Number of tasks in each state, indexed by state ordinal, by task type.
+     */
+    private final Map<String, long[]> depths = new TreeMap<String, long[]>();
+
+    /**
+     * Tasks reserved by the transactions being committed, from their
+     * validation until their changes are applied or dropped: -1 if changed,
+     * or else the number of transactions adding children to them.
+     */
+    private final Map<String, Integer> reservations = new HashMap<String, Integer>();
+
+    /**
+     * Recurrence keys of the tasks being enqueued by them.
+     */
+    private final Set<String> reservedKeys = new HashSet<String>();
+
+    /**
+     * Their batches, logged or about to be, by batch id.
+     */
+    private final Map<String, byte[]> pendingBatches = new LinkedHashMap<String, byte[]>();
+
+    private long loggedSinceCompaction = 0;
+    private long lastSnapshotSize = 0;
+    private boolean compacting = false;
+    private volatile Thread compactionThread;
+
+
+    // Transactions ------------------------------------------------------------
+
+    /**
+     * Stages an operation on the current transaction, or commits it right away
+     * if there is none.
+     *
+     * @return <code>false</code> if the operation doesn't apply to the queue
+     *         as seen by the caller.
+     */
+    private boolean submit(Op op) {
+
+        ChangeSet changeSet;
+        this.lock.lock();
+        try {
+            changeSet = currentChangeSet();
+            boolean inTransaction = changeSet != null || TransactionSynchronizationManager.isSynchronizationActive();
+            if ( changeSet == null ) {
+                changeSet = new ChangeSet();
+            }
+
+            if ( !op.stage(changeSet.view) ) {
+                return false;
+            }
+            changeSet.ops.add(op);
+
+            if ( inTransaction ) {
+                if ( changeSet.ops.size() == 1 ) {
+                    TransactionSynchronizationManager.registerSynchronization(changeSet);
+                }
+                return true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            changeSet.beforeCommit(false);
+        } catch (RuntimeException e) {
+            changeSet.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            throw e;
+        }
+        changeSet.afterCommit();
+        return true;
+    }
+
+    /**
+     * The change set of the current transaction, if it already changed
+     * anything. Looked up among the synchronizations rather than bound as a
+     * resource, so transactions suspended by a nested one are not seen.
+     */
+    private ChangeSet currentChangeSet() {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            return null;
+        }
+        for ( TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations() ) {
+            if ( synchronization instanceof ChangeSet && ((ChangeSet)synchronization).owner() == this ) {
+                return (ChangeSet)synchronization;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The queue as seen by the caller: the committed state plus the changes of
+     * its transaction.
+     */
+    private Staging view() {
+        ChangeSet changeSet = currentChangeSet();
+        return changeSet != null ? changeSet.view : new Staging(false);
+    }
+
+    /**
+     * Replays the operations of a transaction against the committed state,
+     * and reserves the tasks it changes until it is applied or abandoned.
+     * Called with the lock held.
+     *
+     * @return The staged changes, with the records to log.
+     * @throws OptimisticLockingFailureException
+     *             If any operation no longer applies, or touches a task
+     *             reserved by another transaction being committed.
+     */
+    private Staging prepare(List<Op> ops) {
+
+        Staging staging = new Staging(true);
+        for ( Op op : ops ) {
+            if ( !op.stage(staging) ) {
+                throw new OptimisticLockingFailureException("Task changed concurrently: " + op.taskId);
+            }
+        }
+
+        if ( staging.records.size() > Constants.TASK_LOG_SEGMENT_SIZE / 2 ) {
+            throw new IllegalArgumentException("Queue changes of " + staging.records.size() + " bytes are too big for the task log");
+        }
+
+        for ( String taskId : staging.exclusive() ) {
+            if ( this.reservations.containsKey(taskId) ) {
+                throw new OptimisticLockingFailureException("Task being changed by a committing transaction: " + taskId);
+            }
+        }
+        for ( String parentId : staging.shared() ) {
+            Integer sharing = this.reservations.get(parentId);
+            if ( sharing != null && sharing < 0 ) {
+                throw new OptimisticLockingFailureException("Task being changed by a committing transaction: " + parentId);
+            }
+        }
+        for ( String recurrenceKey : staging.addedKeys ) {
+            if ( this.reservedKeys.contains(recurrenceKey) ) {
+                throw new OptimisticLockingFailureException("Recurrence key being enqueued by a committing transaction: " + recurrenceKey);
+            }
+        }
+
+        for ( String taskId : staging.exclusive() ) {
+            this.reservations.put(taskId, -1);
+        }
+        for ( String parentId : staging.shared() ) {
+            Integer sharing = this.reservations.get(parentId);
+            this.reservations.put(parentId, sharing != null ? sharing + 1 : 1);
+        }
+        this.reservedKeys.addAll(staging.addedKeys);
+
+        return staging;
+    }
+
+    /**
+     * Drops the reservations of a prepared transaction. Called with the lock
+     * held.
+     */
+    private void release(Staging staging) {
+        for ( String taskId : staging.exclusive() ) {
+            this.reservations.remove(taskId);
+        }
+        for ( String parentId : staging.shared() ) {
+            int sharing = this.reservations.get(parentId);
+            if ( sharing > 1 ) {
+                this.reservations.put(parentId, sharing - 1);
+            }
+            else {
+                this.reservations.remove(parentId);
+            }
+        }
+        this.reservedKeys.removeAll(staging.addedKeys);
+    }
+
+
+    /**
+     * The changes of a transaction. Validated and logged before the commit,
+     * applied right after it, before any other synchronization sees the
+     * transaction as committed. The queue lock is only held to validate and
+     * to apply them, never during the commit itself.
+     */
+    private class ChangeSet extends TransactionSynchronizationAdapter {
+
+        final List<Op> ops = new ArrayList<Op>();
+        final Staging view = new Staging(false);
+
+        private Staging prepared;
+        private String batchId;
+        private byte[] batch;
+
+        QueuedTaskHolderDaoLog owner() {
+            return QueuedTaskHolderDaoLog.this;
+        }
+
+        @Override
+        public int getOrder() {
+            return Ordered.HIGHEST_PRECEDENCE;
+        }
+
+        /**
+         * Validates the changes and logs them, so a journal failure makes the
+         * commit fail.
+         */
+        @Override
+        public void beforeCommit(boolean readOnly) {
+
+            lock.lock();
+            try {
+                this.prepared = prepare(this.ops);
+                if ( this.prepared.records.size() == 0 ) {
+                    return;
+                }
+                this.batchId = UUID.randomUUID().toString();
+                this.batch = marked(BEGIN, this.batchId, this.prepared.records.toByteArray());
+                pendingBatches.put(this.batchId, this.batch);
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                journal.append(this.batch);
+            } catch (IOException e) {
+                throw new DataAccessResourceFailureException("Couldn't log the queue changes", e);
+            }
+        }
+
+        @Override
+        public void afterCommit() {
+
+            if ( this.prepared == null ) {
+                return;
+            }
+
+            Runnable compaction = null;
+            lock.lock();
+            try {
+                release(this.prepared);
+                if ( this.batch != null ) {
+                    pendingBatches.remove(this.batchId);
+                    try {
+                        apply(this.batch);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Corrupt queue changes", e);
+                    }
+                    loggedSinceCompaction += this.batch.length;
+                    compaction = compaction();
+                }
+            } finally {
+                this.prepared = null;
+                lock.unlock();
+            }
+
+            if ( compaction != null ) {
+                Thread thread = new Thread(compaction, "task-log-compaction");
+                thread.setDaemon(true);
+                compactionThread = thread;
+                thread.start();
+            }
+        }
+
+        /**
+         * Drops the reservations of a transaction that didn't commit, and if
+         * it was already logged, logs that it must not be replayed.
+         */
+        @Override
+        public void afterCompletion(int status) {
+
+            if ( this.prepared == null ) {
+                return;
+            }
+
+            lock.lock();
+            try {
+                release(this.prepared);
+                if ( this.batch != null ) {
+                    pendingBatches.remove(this.batchId);
+                }
+            } finally {
+                this.prepared = null;
+                lock.unlock();
+            }
+
+            if ( this.batch != null ) {
+                try {
+                    journal.append(marked(ABORT, this.batchId, NO_BODY));
+                } catch (IOException e) {
+                    logger.error("Couldn't log the rollback of queue changes " + this.batchId + ", they will be replayed on restart", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Copy-on-write overlay of the committed state, where operations are
+     * checked and applied. Optionally writes the records of the changes.
+     */
+    private class Staging {
+
+        final Map<String, QueuedTaskHolder> touched = new HashMap<String, QueuedTaskHolder>();
+        final Map<String, Set<String>> addedChildren = new HashMap<String, Set<String>>();
+        final Set<String> releasedParents = new HashSet<String>();
+        final Set<String> addedKeys = new HashSet<String>();
+
+        final ByteArrayOutputStream records;
+        final DataOutputStream out;
+
+        Staging(boolean logging) {
+            this.records = logging ? new ByteArrayOutputStream() : null;
+            this.out = logging ? new DataOutputStream(this.records) : null;
+        }
+
+        /**
+         * @return The task as seen by this staging, not to be modified.
+         */
+        QueuedTaskHolder task(String taskId) {
+            QueuedTaskHolder task = this.touched.get(taskId);
+            return task != null ? task : tasks.get(taskId);
+        }
+
+        /**
+         * @return The private copy of an existing task, to be modified.
+         */
+        QueuedTaskHolder modify(String taskId) {
+            QueuedTaskHolder task = this.touched.get(taskId);
+            if ( task == null ) {
+                task = copy(tasks.get(taskId));
+                this.touched.put(taskId, task);
+            }
+            return task;
+        }
+
+        Set<String> children(String parentId) {
+            Set<String> children = new HashSet<String>();
+            if ( !this.releasedParents.contains(parentId) && childrenByParent.containsKey(parentId) ) {
+                children.addAll(childrenByParent.get(parentId));
+            }
+            if ( this.addedChildren.containsKey(parentId) ) {
+                children.addAll(this.addedChildren.get(parentId));
+            }
+            return children;
+        }
+
+        /**
+         * @return The tasks changed, and the parents whose children are
+         *         released.
+         */
+        Set<String> exclusive() {
+            Set<String> exclusive = new HashSet<String>(this.touched.keySet());
+            exclusive.addAll(this.releasedParents);
+            return exclusive;
+        }
+
+        /**
+         * @return The parents that only get new children, which can be shared
+         *         with other transactions doing the same.
+         */
+        Set<String> shared() {
+            Set<String> shared = new HashSet<String>(this.addedChildren.keySet());
+            shared.removeAll(exclusive());
+            return shared;
+        }
+
+        boolean isKeyTaken(String recurrenceKey) {
+            return recurrenceKeys.contains(recurrenceKey) || this.addedKeys.contains(recurrenceKey);
+        }
+
+        void added(QueuedTaskHolder task) {
+            this.touched.put(task.getId(), task);
+            if ( task.getRecurrenceKey() != null ) {
+                this.addedKeys.add(task.getRecurrenceKey());
+            }
+            if ( this.out != null ) {
+                write(task);
+            }
+        }
+
+        void changed(QueuedTaskHolder task) {
+            if ( this.out != null ) {
+                write(task.getId(), task);
+            }
+        }
+
+        void rescheduled(QueuedTaskHolder task) {
+            if ( this.out != null ) {
+                try {
+                    this.out.writeByte(RESCHEDULE);
+                    this.out.writeUTF(task.getId());
+                    writeCalendar(this.out, task.getTriggerStamp());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        void dependency(String parentId, String childId) {
+            Set<String> children = this.addedChildren.get(parentId);
+            if ( children == null ) {
+                children = new HashSet<String>();
+                this.addedChildren.put(parentId, children);
+            }
+            children.add(childId);
+            if ( this.out != null ) {
+                write(DEPENDENCY, parentId, childId);
+            }
+        }
+
+        void released(String parentId) {
+            this.releasedParents.add(parentId);
+            this.addedChildren.remove(parentId);
+            if ( this.out != null ) {
+                write(RELEASE, parentId, null);
+            }
+        }
+
+        private void write(QueuedTaskHolder task) {
+            try {
+                writeNewTask(this.out, task);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void write(String taskId, QueuedTaskHolder task) {
+            try {
+                this.out.writeByte(TASK_STATE);
+                this.out.writeUTF(taskId);
+                writeState(this.out, task);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void write(byte type, String parentId, String childId) {
+            try {
+                this.out.writeByte(type);
+                this.out.writeUTF(parentId);
+                if ( childId != null ) {
+                    this.out.writeUTF(childId);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+
+    // Operations --------------------------------------------------------------
+
+    /**
+     * A change to the queue, staged once when requested and again when its
+     * transaction commits.
+     */
+    private static abstract class Op {
+
+        final String taskId;
+
+        Op(String taskId) {
+            this.taskId = taskId;
+        }
+
+        /**
+         * @return <code>false</code> if the operation doesn't apply.
+         */
+        abstract boolean stage(Staging staging);
+    }
+
+    private static class NewTask extends Op {
+
+        final QueuedTaskHolder task;
+
+        NewTask(QueuedTaskHolder task) {
+            super(task.getId());
+            this.task = task;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+            if ( staging.task(this.taskId) != null ) {
+                return false;
+            }
+            if ( this.task.getRecurrenceKey() != null && staging.isKeyTaken(this.task.getRecurrenceKey()) ) {
+                return false;
+            }
+            staging.added(copy(this.task));
+            return true;
+        }
+    }
+
+    private static class Claim extends Op {
+
+        final int version;
+        final Calendar startedStamp;
+        final String nodeId;
+
+        Claim(String taskId, int version, Calendar startedStamp, String nodeId) {
+            super(taskId);
+            this.version = version;
+            this.startedStamp = startedStamp;
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+            QueuedTaskHolder task = staging.task(this.taskId);
+            if ( task == null || task.getVersion() != this.version || task.getStartedStamp() != null ) {
+                return false;
+            }
+            task = staging.modify(this.taskId);
+            task.setStartedStamp(this.startedStamp);
+            task.setNodeId(this.nodeId);
+            task.setVersion(task.getVersion() + 1);
+            staging.changed(task);
+            return true;
+        }
+    }
+
+    private static class Complete extends Op {
+
+        final int version;
+        final Calendar completedStamp;
+
+        Complete(String taskId, int version, Calendar completedStamp) {
+            super(taskId);
+            this.version = version;
+            this.completedStamp = completedStamp;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+            QueuedTaskHolder task = staging.task(this.taskId);
+            if ( task == null || task.getVersion() != this.version || task.getStartedStamp() == null || task.getCompletedStamp() != null ) {
+                return false;
+            }
+            task = staging.modify(this.taskId);
+            task.setCompletedStamp(this.completedStamp);
+            task.setVersion(task.getVersion() + 1);
+            staging.changed(task);
+            return true;
+        }
+    }
+
+    private static class Free extends Op {
+
+        final int version;
+
+        Free(String taskId, int version) {
+            super(taskId);
+            this.version = version;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+            QueuedTaskHolder task = staging.task(this.taskId);
+            if ( task == null || task.getVersion() != this.version || task.getStartedStamp() == null || task.getCompletedStamp() != null ) {
+                return false;
+            }
+            task = staging.modify(this.taskId);
+            free(task);
+            staging.changed(task);
+            return true;
+        }
+    }
+
+    /**
+     * Frees a group of tasks, or all the tasks of a node, whatever their
+     * version. Never conflicts; the count is the one seen when requested.
+     */
+    private class FreeAll extends Op {
+
+        final Collection<String> taskIds;
+        final String nodeId;
+        int affected = -1;
+
+        FreeAll(Collection<String> taskIds) {
+            super(null);
+            this.taskIds = taskIds;
+            this.nodeId = null;
+        }
+
+        FreeAll(String nodeId) {
+            super(null);
+            this.taskIds = null;
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+
+            Collection<String> candidates = this.taskIds;
+            if ( candidates == null ) {
+                candidates = new HashSet<String>(staging.touched.keySet());
+                for ( QueuedTaskHolder task : tasks.values() ) {
+                    if ( this.nodeId.equals(task.getNodeId()) ) {
+                        candidates.add(task.getId());
+                    }
+                }
+            }
+
+            int freed = 0;
+            for ( String candidate : candidates ) {
+                QueuedTaskHolder task = staging.task(candidate);
+                if ( task == null || task.getStartedStamp() == null || task.getCompletedStamp() != null ) {
+                    continue;
+                }
+                if ( this.nodeId != null && !this.nodeId.equals(task.getNodeId()) ) {
+                    continue;
+                }
+                task = staging.modify(candidate);
+                free(task);
+                staging.changed(task);
+                freed++;
+            }
+
+            if ( this.affected < 0 ) {
+                this.affected = freed;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Cancels a group of tasks, or all the tasks with a key, whatever their
+     * state. Never conflicts; the cancelled tasks are the ones seen when
+     * requested.
+     */
+    private class CancelAll extends Op {
+
+        final Collection<String> taskIds;
+        final String taskKey;
+        final Calendar cancelledStamp;
+        List<QueuedTaskHolder> cancelled = null;
+
+        CancelAll(Collection<String> taskIds, String taskKey, Calendar cancelledStamp) {
+            super(null);
+            this.taskIds = taskIds;
+            this.taskKey = taskKey;
+            this.cancelledStamp = cancelledStamp;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+
+            Collection<String> candidates = this.taskIds;
+            if ( candidates == null ) {
+                candidates = new HashSet<String>();
+                for ( QueuedTaskHolder task : staging.touched.values() ) {
+                    if ( this.taskKey.equals(task.getTaskKey()) ) {
+                        candidates.add(task.getId());
+                    }
+                }
+                if ( pendingByKey.containsKey(this.taskKey) ) {
+                    candidates.addAll(pendingByKey.get(this.taskKey));
+                }
+            }
+
+            List<QueuedTaskHolder> cancelled = new ArrayList<QueuedTaskHolder>();
+            for ( String candidate : candidates ) {
+                QueuedTaskHolder task = staging.task(candidate);
+                if ( task == null || task.getCompletedStamp() != null ) {
+                    continue;
+                }
+                if ( this.taskKey != null && !this.taskKey.equals(task.getTaskKey()) ) {
+                    continue;
+                }
+                task = staging.modify(candidate);
+                task.setStartedStamp(null);
+                task.setNodeId(null);
+                task.setCompletedStamp(this.cancelledStamp);
+                task.setVersion(task.getVersion() + 1);
+                staging.changed(task);
+                cancelled.add(copy(task));
+            }
+
+            if ( this.cancelled == null ) {
+                this.cancelled = cancelled;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Moves the trigger stamp of a group of tasks not started yet. Never
+     * conflicts; the count is the one seen when requested.
+     */
+    private static class RescheduleAll extends Op {
+
+        final Collection<String> taskIds;
+        final Calendar triggerStamp;
+        int affected = -1;
+
+        RescheduleAll(Collection<String> taskIds, Calendar triggerStamp) {
+            super(null);
+            this.taskIds = taskIds;
+            this.triggerStamp = triggerStamp;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+
+            int rescheduled = 0;
+            for ( String candidate : this.taskIds ) {
+                QueuedTaskHolder task = staging.task(candidate);
+                if ( task == null || task.getStartedStamp() != null || task.getCompletedStamp() != null ) {
+                    continue;
+                }
+                task = staging.modify(candidate);
+                task.setTriggerStamp(this.triggerStamp);
+                task.setVersion(task.getVersion() + 1);
+                staging.rescheduled(task);
+                rescheduled++;
+            }
+
+            if ( this.affected < 0 ) {
+                this.affected = rescheduled;
+            }
+            return true;
+        }
+    }
+
+    private static class Dependency extends Op {
+
+        final String childId;
+
+        Dependency(String parentId, String childId) {
+            super(parentId);
+            this.childId = childId;
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+            QueuedTaskHolder parent = staging.task(this.taskId);
+            if ( parent == null || parent.getCompletedStamp() != null ) {
+                return false;
+            }
+            staging.dependency(this.taskId, this.childId);
+            return true;
+        }
+    }
+
+    /**
+     * Releases the children of a parent. Never conflicts, as it only
+     * decrements their pending parents; the count is the one seen when
+     * requested.
+     */
+    private static class Release extends Op {
+
+        int affected = -1;
+
+        Release(String parentId) {
+            super(parentId);
+        }
+
+        @Override
+        boolean stage(Staging staging) {
+
+            Set<String> children = staging.children(this.taskId);
+
+            int released = 0;
+            for ( String childId : children ) {
+                if ( staging.task(childId) == null ) {
+                    continue;
+                }
+                QueuedTaskHolder child = staging.modify(childId);
+                child.setPendingParents(child.getPendingParents() - 1);
+                staging.changed(child);
+                if ( child.getPendingParents() == 0 && child.getCompletedStamp() == null ) {
+                    released++;
+                }
+            }
+            if ( !children.isEmpty() ) {
+                staging.released(this.taskId);
+            }
+
+            if ( this.affected < 0 ) {
+                this.affected = released;
+            }
+            return true;
+        }
+    }
+
+    private static void free(QueuedTaskHolder task) {
+        task.setStartedStamp(null);
+        task.setNodeId(null);
+        task.setVersion(task.getVersion() + 1);
+    }
+
+
+    // Applying records --------------------------------------------------------
+
+    /**
+     * Applies a batch of records to the committed state. Called with the lock
+     * held.
+     */
+    private void apply(byte[] batch) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        while ( in.available() > 0 ) {
+            byte type = in.readByte();
+            switch (type) {
+                case BEGIN: {
+                    in.readUTF();
+                    break;
+                }
+                case NEW_TASK: {
+                    QueuedTaskHolder task = readTask(in);
+                    unindex(this.tasks.put(task.getId(), task));
+                    index(task);
+                    break;
+                }
+                case TASK_STATE: {
+                    String taskId = in.readUTF();
+                    QueuedTaskHolder task = this.tasks.get(taskId);
+                    if ( task == null ) {
+                        logger.warn("State change logged for unknown task {}", taskId);
+                        readState(in, new QueuedTaskHolder());
+                        break;
+                    }
+                    unindex(task);
+                    readState(in, task);
+                    index(task);
+                    break;
+                }
+                case DEPENDENCY: {
+                    String parentId = in.readUTF();
+                    String childId = in.readUTF();
+                    Set<String> children = this.childrenByParent.get(parentId);
+                    if ( children == null ) {
+                        children = new HashSet<String>();
+                        this.childrenByParent.put(parentId, children);
+                    }
+                    children.add(childId);
+                    break;
+                }
+                case RELEASE: {
+                    this.childrenByParent.remove(in.readUTF());
+                    break;
+                }
+                case RESCHEDULE: {
+                    String taskId = in.readUTF();
+                    Calendar triggerStamp = readCalendar(in);
+                    QueuedTaskHolder task = this.tasks.get(taskId);
+                    if ( task != null ) {
+                        unindex(task);
+                        task.setTriggerStamp(triggerStamp);
+                        task.setVersion(task.getVersion() + 1);
+                        index(task);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown record type: " + type);
+            }
+        }
+    }
+
+    private void unindex(QueuedTaskHolder task) {
+        if ( task != null ) {
+            if ( this.ready.remove(task) ) {
+                String tenant = tenantOf(task);
+                TreeSet<QueuedTaskHolder> tenantReady = this.readyByTenant.get(tenant);
+                tenantReady.remove(task);
+                if ( tenantReady.isEmpty() ) {
+                    this.readyByTenant.remove(tenant);
+                }
+            }
+            if ( task.getTaskKey() != null && task.getCompletedStamp() == null ) {
+                Set<String> keyed = this.pendingByKey.get(task.getTaskKey());
+                keyed.remove(task.getId());
+                if ( keyed.isEmpty() ) {
+                    this.pendingByKey.remove(task.getTaskKey());
+                }
+            }
+            count(task, -1);
+            listed(task.getTaskType(), State.counted(task), false).remove(task);
+        }
+    }
+
+    private void index(QueuedTaskHolder task) {
+        count(task, 1);
+        listed(task.getTaskType(), State.counted(task), true).add(task);
+        if ( task.getRecurrenceKey() != null ) {
+            this.recurrenceKeys.add(task.getRecurrenceKey());
+        }
+        if ( task.getTaskKey() != null && task.getCompletedStamp() == null ) {
+            Set<String> keyed = this.pendingByKey.get(task.getTaskKey());
+            if ( keyed == null ) {
+                keyed = new HashSet<String>();
+                this.pendingByKey.put(task.getTaskKey(), keyed);
+            }
+            keyed.add(task.getId());
+        }
+        if ( task.getCompletedStamp() != null ) {
+            // Completed tasks only keep their state
+            task.setSerializedTask(NO_BODY);
+        }
+        else if ( task.getStartedStamp() == null && task.getPendingParents() == 0 ) {
+            this.ready.add(task);
+            String tenant = tenantOf(task);
+            TreeSet<QueuedTaskHolder> tenantReady = this.readyByTenant.get(tenant);
+            if ( tenantReady == null ) {
+                tenantReady = new TreeSet<QueuedTaskHolder>(CLAIM_ORDER);
+                this.readyByTenant.put(tenant, tenantReady);
+            }
+            tenantReady.add(task);
+        }
+    }
+
+    /**
+     * @return The listing of a type and counted state, <code>null</code> if
+     *         there is none and it wasn't asked to be created.
+     */
+    private TreeSet<QueuedTaskHolder> listed(String taskType, State state, boolean create) {
+        taskType = taskType != null ? taskType : "";
+        Map<State, TreeSet<QueuedTaskHolder>> byState = this.listings.get(taskType);
+        if ( byState == null ) {
+            if ( !create ) {
+                return null;
+            }
+            byState = new EnumMap<State, TreeSet<QueuedTaskHolder>>(State.class);
+            this.listings.put(taskType, byState);
+        }
+        TreeSet<QueuedTaskHolder> listed = byState.get(state);
+        if ( listed == null && create ) {
+            listed = new TreeSet<QueuedTaskHolder>(state == State.COMPLETED ? COMPLETION_ORDER : CREATION_ORDER);
+            byState.put(state, listed);
+        }
+        return listed;
+    }
+
+    private static String tenantOf(QueuedTaskHolder task) {
+        return task.getTenant() != null ? task.getTenant() : DEFAULT_TENANT;
+    }
+
+
+    private void count(QueuedTaskHolder task, int delta) {
+        String taskType = task.getTaskType() != null ? task.getTaskType() : "";
+        long[] counts = this.depths.get(taskType);
+        if ( counts == null ) {
+            counts = new long[State.values().length];
+            this.depths.put(taskType, counts);
+        }
+        counts[State.counted(task).ordinal()] += delta;
+    }
+
+
+    // Compaction --------------------------------------------------------------
+
+    /**
+     * Starts a snapshot of the queue once the log has grown enough since the
+     * last one, dropping first the tasks completed before the retention
+     * period. Called with the lock held.
+     *
+     * @return The writing of the snapshot, to be run without the lock, or
+     *         <code>null</code> if none is due.
+     */
+    private Runnable compaction() {
+
+        if ( this.compacting || this.loggedSinceCompaction < Math.max(this.compactionThreshold, 2*this.lastSnapshotSize) ) {
+            return null;
+        }
+
+        final AppendOnlyJournal.Snapshot snapshot;
+        try {
+            snapshot = this.journal.startSnapshot();
+        } catch (IOException e) {
+            logger.error("Couldn't start a snapshot of the task log", e);
+            return null;
+        }
+
+        purgeCompleted();
+
+        final List<QueuedTaskHolder> snapshotTasks = new ArrayList<QueuedTaskHolder>(this.tasks.size());
+        for ( QueuedTaskHolder task : this.tasks.values() ) {
+            snapshotTasks.add(copy(task));
+        }
+        final Map<String, Set<String>> snapshotChildren = new HashMap<String, Set<String>>();
+        for ( Map.Entry<String, Set<String>> entry : this.childrenByParent.entrySet() ) {
+            snapshotChildren.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+        }
+        // Could have been logged before the snapshot, but won't be applied until later
+        final List<byte[]> snapshotPending = new ArrayList<byte[]>(this.pendingBatches.values());
+
+        this.compacting = true;
+        this.loggedSinceCompaction = 0;
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(snapshot, snapshotTasks, snapshotChildren, snapshotPending);
+            }
+        };
+    }
+
+    /**
+     * Drops the completed tasks older than the retention period, unless
+     * reserved. Called with the lock held.
+     */
+    private void purgeCompleted() {
+
+        long oldest = System.currentTimeMillis() - this.completedRetention;
+
+        int purged = 0;
+        Iterator<QueuedTaskHolder> it = this.tasks.values().iterator();
+        while ( it.hasNext() ) {
+            QueuedTaskHolder task = it.next();
+            if ( task.getCompletedStamp() == null || task.getCompletedStamp().getTimeInMillis() >= oldest
+                    || this.reservations.containsKey(task.getId()) ) {
+                continue;
+            }
+            it.remove();
+            unindex(task);
+            if ( task.getRecurrenceKey() != null ) {
+                this.recurrenceKeys.remove(task.getRecurrenceKey());
+            }
+            purged++;
+        }
+
+        if ( purged > 0 ) {
+            logger.info("Dropped {} tasks completed before the retention period from the task log", purged);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the tasks and their dependencies, followed by the
+     * batches pending when it was started, and replaces the log it covers.
+     */
+    private void writeSnapshot(AppendOnlyJournal.Snapshot snapshot, List<QueuedTaskHolder> snapshotTasks,
+            Map<String, Set<String>> snapshotChildren, List<byte[]> snapshotPending) {
+
+        long snapshotSize = 0;
+        boolean completed = false;
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(records);
+            for ( QueuedTaskHolder task : snapshotTasks ) {
+                writeNewTask(out, task);
+                snapshotSize += flushIfFull(snapshot, records);
+            }
+            for ( Map.Entry<String, Set<String>> entry : snapshotChildren.entrySet() ) {
+                for ( String childId : entry.getValue() ) {
+                    out.writeByte(DEPENDENCY);
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(childId);
+                    snapshotSize += flushIfFull(snapshot, records);
+                }
+            }
+            if ( records.size() > 0 ) {
+                snapshotSize += records.size();
+                snapshot.write(records.toByteArray());
+            }
+            for ( byte[] batch : snapshotPending ) {
+                snapshotSize += batch.length;
+                snapshot.write(batch);
+            }
+
+            snapshot.complete();
+            completed = true;
+            logger.info("Compacted task log into a snapshot of {} tasks, {} bytes", snapshotTasks.size(), snapshotSize);
+
+        } catch (IOException e) {
+            logger.error("Couldn't compact the task log", e);
+            snapshot.abandon();
+        } finally {
+            this.lock.lock();
+            try {
+                this.compacting = false;
+                if ( completed ) {
+                    this.loggedSinceCompaction += snapshotSize;
+                    this.lastSnapshotSize = snapshotSize;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    private static long flushIfFull(AppendOnlyJournal.Snapshot snapshot, ByteArrayOutputStream records) throws IOException {
+        if ( records.size() < Constants.TASK_LOG_SEGMENT_SIZE / 4 ) {
+            return 0;
+        }
+        int size = records.size();
+        snapshot.write(records.toByteArray());
+        records.reset();
+        return size;
+    }
+
+
+    // Record format -----------------------------------------------------------
+
+    /**
+     * Prefixes a batch with a record marking it with an id.
+     */
+    private static byte[] marked(byte type, String batchId, byte[] records) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.length + 40);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(batchId);
+            out.write(records);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The id of a batch marked by {@link #marked(byte, String, byte[])}.
+     */
+    private static String batchId(byte[] batch) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        in.readByte();
+        return in.readUTF();
+    }
+
+
+    private static void writeNewTask(DataOutputStream out, QueuedTaskHolder task) throws IOException {
+        out.writeByte(NEW_TASK);
+        writeTask(out, task);
+    }
+
+    private static void writeTask(DataOutputStream out, QueuedTaskHolder task) throws IOException {
+        out.writeUTF(task.getId());
+        writeString(out, task.getTaskType());
+        writeCalendar(out, task.getCreationStamp());
+        writeCalendar(out, task.getTriggerStamp());
+        byte[] serializedTask = task.getSerializedTask() != null ? task.getSerializedTask() : NO_BODY;
+        out.writeInt(serializedTask.length);
+        out.write(serializedTask);
+        writeString(out, task.getPayloadRef());
+        writeString(out, task.getRecurrenceKey());
+        writeString(out, task.getTenant());
+        writeString(out, task.getTaskKey());
+        writeState(out, task);
+    }
+
+    private static QueuedTaskHolder readTask(DataInputStream in) throws IOException {
+        QueuedTaskHolder task = new QueuedTaskHolder();
+        task.setId(in.readUTF());
+        task.setTaskType(readString(in));
+        task.setCreationStamp(readCalendar(in));
+        task.setTriggerStamp(readCalendar(in));
+        byte[] serializedTask = new byte[in.readInt()];
+        in.readFully(serializedTask);
+        task.setSerializedTask(serializedTask);
+        task.setPayloadRef(readString(in));
+        task.setRecurrenceKey(readString(in));
+        task.setTenant(readString(in));
+        task.setTaskKey(readString(in));
+        readState(in, task);
+        return task;
+    }
+
+    /**
+     * Writes the fields that change once a task is enqueued.
+     */
+    private static void writeState(DataOutputStream out, QueuedTaskHolder task) throws IOException {
+        out.writeInt(task.getVersion());
+        writeCalendar(out, task.getStartedStamp());
+        writeString(out, task.getNodeId());
+        writeCalendar(out, task.getCompletedStamp());
+        out.writeInt(task.getPendingParents());
+    }
+
+    private static void readState(DataInputStream in, QueuedTaskHolder task) throws IOException {
+        task.setVersion(in.readInt());
+        task.setStartedStamp(readCalendar(in));
+        task.setNodeId(readString(in));
+        task.setCompletedStamp(readCalendar(in));
+        task.setPendingParents(in.readInt());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if ( value != null ) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeCalendar(DataOutputStream out, Calendar value) throws IOException {
+        out.writeBoolean(value != null);
+        if ( value != null ) {
+            out.writeLong(value.getTimeInMillis());
+        }
+    }
+
+    private static Calendar readCalendar(DataInputStream in) throws IOException {
+        if ( !in.readBoolean() ) {
+            return null;
+        }
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("Etc/UTC"));
+        cal.setTimeInMillis(in.readLong());
+        return cal;
+    }
+
+    /**
+     * Tasks are never shared with the callers, who may modify them.
+     */
+    private static QueuedTaskHolder copy(QueuedTaskHolder task) {
+        if ( task == null ) {
+            return null;
+        }
+        QueuedTaskHolder copy = new QueuedTaskHolder();
+        copy.setId(task.getId());
+        copy.setTaskType(task.getTaskType());
+        copy.setCreationStamp(task.getCreationStamp());
+        copy.setTriggerStamp(task.getTriggerStamp());
+        copy.setStartedStamp(task.getStartedStamp());
+        copy.setNodeId(task.getNodeId());
+        copy.setCompletedStamp(task.getCompletedStamp());
+        copy.setSerializedTask(task.getSerializedTask());
+        copy.setPayloadRef(task.getPayloadRef());
+        copy.setRecurrenceKey(task.getRecurrenceKey());
+        copy.setTenant(task.getTenant());
+        copy.setTaskKey(task.getTaskKey());
+        copy.setPendingParents(task.getPendingParents());
+        copy.setVersion(task.getVersion());
+        return copy;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import java.util.Calendar;
+import java.util.List;
+import net.carinae.dev.async.RecurringTaskDefinition;
+
+
+/**
+ * DAO operations for the {@link RecurringTaskDefinition} entities.
+ * 
+ * @author Carlos Vara
+ */
+public interface RecurringTaskDefinitionDao {
+
+    /**
+     * Adds a new definition to the current persistence context.
+     * 
+     * @param definition
+     *            The definition to be saved.
+     */
+    void persist(RecurringTaskDefinition definition);
+    
+    
+    /**
+     * Finder that retrieves a definition by its name.
+     * 
+     * @param definitionId
+     *            The name of the requested definition.
+     * @return The definition, or <code>null</code> if no such definition
+     *         exists.
+     */
+    RecurringTaskDefinition findById(String definitionId);
+    
+    
+    /**
+     * @param now
+     *            The current moment.
+     * @return The names of the definitions whose next occurrence is due.
+     */
+    List<String> findDueDefinitionIds(Calendar now);
+    
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.dao;
+
+import java.util.Calendar;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import net.carinae.dev.async.RecurringTaskDefinition;
+import net.carinae.dev.async.RecurringTaskDefinition_;
+import org.springframework.stereotype.Repository;
+
+/**
+ * JPA2 implementation of {@link RecurringTaskDefinitionDao}.
+ * 
+ * @author Carlos Vara
+ */
+@Repository
+public class RecurringTaskDefinitionDaoJPA2 implements RecurringTaskDefinitionDao {
+
+    
+    // RecurringTaskDefinitionDao methods --------------------------------------
+    
+    @Override
+    public void persist(RecurringTaskDefinition definition) {
+        this.entityManager.persist(definition);
+    }
+    
+    @Override
+    public RecurringTaskDefinition findById(String definitionId) {
+        return this.entityManager.find(RecurringTaskDefinition.class, definitionId);
+    }
+    
+    @Override
+    public List<String> findDueDefinitionIds(Calendar now) {
+        
+        // select rtd.id from RecurringTaskDefinition where
+        //      rtd.nextFireStamp <= NOW
+        CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<String> cq = cb.createQuery(String.class);
+        Root<RecurringTaskDefinition> rtd = cq.from(RecurringTaskDefinition.class);
+        cq.select(rtd.get(RecurringTaskDefinition_.id))
+            .where(cb.lessThanOrEqualTo(rtd.get(RecurringTaskDefinition_.nextFireStamp), now));
+        
+        return this.entityManager.createQuery(cq).getResultList();
+    }
+
+    
+    // Injected dependencies ---------------------------------------------------
+
+    @PersistenceContext
+    private EntityManager entityManager;
+    
+}
@@ -17,8 +17,13 @@ package net.carinae.dev.async.task;
 
 import java.io.Serializable;
 import java.util.Calendar;
-import net.carinae.dev.async.QueuedTaskHolder;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import net.carinae.dev.async.dao.PayloadStore;
 import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.util.TaskEventRecorder;
+import net.carinae.dev.async.util.TaskEventRecorder.Phase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -41,8 +46,17 @@ public abstract class AbstractBaseTask implements Runnable, Serializable {
     // Common data -------------------------------------------------------------
     
     private transient String queuedTaskId;
-    private transient QueuedTaskHolder qth;
+    private transient int queuedTaskVersion;
     private transient Calendar triggerStamp;
+    private transient String tenant;
+    private transient String taskKey;
+    private transient boolean completed = false;
+    private transient Set<String> parentTaskIds;
+    private transient int releasedDependents = 0;
+    private transient String payloadRef;
+    private transient int payloadSize;
+    private transient boolean nonDurable = false; // Negated, so deserialized tasks are durable
+    private transient volatile boolean timedOut = false;
     
     
     public void setQueuedTaskId(String queuedTaskId) {
@@ -53,6 +67,81 @@ public abstract class AbstractBaseTask implements Runnable, Serializable {
         return queuedTaskId;
     }
     
+    /**
+     * Version of the queued task once claimed. Together with the id, it acts
+     * as the claim token that the completion is checked against.
+     */
+    public void setQueuedTaskVersion(int queuedTaskVersion) {
+        this.queuedTaskVersion = queuedTaskVersion;
+    }
+
+    public int getQueuedTaskVersion() {
+        return queuedTaskVersion;
+    }
+    
+    /**
+     * Reference of the serialized task in the payload store, if it was too
+     * big to be kept in the queue. Discarded once the task is completed.
+     */
+    public void setPayloadRef(String payloadRef) {
+        this.payloadRef = payloadRef;
+    }
+
+    public String getPayloadRef() {
+        return payloadRef;
+    }
+    
+    /**
+     * Non-durable tasks are kept in memory instead of in the queue: they skip
+     * serialization and the database, but are lost if the node dies before
+     * running them, and are not retried if they fail. They can't have a
+     * trigger stamp nor parents, and can't be parents either. Tasks are
+     * durable by default.
+     */
+    public void setDurable(boolean durable) {
+        this.nonDurable = !durable;
+    }
+
+    public boolean isDurable() {
+        return !nonDurable;
+    }
+    
+    /**
+     * Size of the serialized task, as reported in its lifecycle events.
+     */
+    public void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+    
+    /**
+     * Owner of the task, so one tenant's backlog doesn't hold back the tasks
+     * of the others. Tasks without tenant share the default one.
+     */
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+    
+    /**
+     * Key of the business entity the task works on, so all the pending tasks
+     * on it can be cancelled at once when it changes. Many tasks may share
+     * it.
+     */
+    public void setTaskKey(String taskKey) {
+        this.taskKey = taskKey;
+    }
+
+    public String getTaskKey() {
+        return taskKey;
+    }
+    
     public void setTriggerStamp(Calendar triggerStamp) {
         this.triggerStamp = triggerStamp;
     }
@@ -61,20 +150,81 @@ public abstract class AbstractBaseTask implements Runnable, Serializable {
         return triggerStamp;
     }
     
+    /**
+     * Makes this task wait until the given one is completed. Must be called
+     * before enqueueing it.
+     * <p>
+     * If the parent runs on a local worker, the node that completes it claims
+     * the released tasks right away. Otherwise they wait for the next runner
+     * of any node, up to {@link net.carinae.dev.async.Constants#TASK_RUNNER_RATE}.
+     * 
+     * @param parentTaskId
+     *            The queued task id of the parent, as set by the executor
+     *            when enqueueing it.
+     */
+    public void addParentTaskId(String parentTaskId) {
+        if ( this.parentTaskIds == null ) {
+            this.parentTaskIds = new HashSet<String>();
+        }
+        this.parentTaskIds.add(parentTaskId);
+    }
+    
+    public Set<String> getParentTaskIds() {
+        return parentTaskIds != null ? parentTaskIds : Collections.<String>emptySet();
+    }
+    
+    /**
+     * @return The number of tasks that became ready when this one was
+     *         completed.
+     */
+    public int getReleasedDependents() {
+        return releasedDependents;
+    }
+    
+    /**
+     * @return <code>true</code> once this task has run and its completion has
+     *         been committed.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+    
+    void setCompleted() {
+        this.completed = true;
+    }
+    
+    /**
+     * Marks this task as over its timeout, so its transaction is rolled back
+     * even if it ends up returning.
+     */
+    public void timeOut() {
+        this.timedOut = true;
+    }
+    
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+    
     
     // Injected components -----------------------------------------------------
     
     @Autowired(required=true)
     protected transient QueuedTaskHolderDao queuedTaskHolderDao;
     
+    @Autowired(required=false)
+    protected transient PayloadStore payloadStore;
+    
+    @Autowired(required=false)
+    protected transient TaskEventRecorder eventRecorder;
+    
 
     // Lifecycle methods -------------------------------------------------------
     
     /**
      * Entrance point of the task.
      * <ul>
-     *  <li>Ensures that the associated task in the queue exists.</li>
-     *  <li>Marks the queued task as finished upon tx commit.</li>
+     *  <li>Marks the queued task as finished upon tx commit, as long as it is
+     *  still in the state it was claimed.</li>
      *  <li>In case of tx rollback, frees the task.</li>
      * </ul>
      * 
@@ -84,40 +234,38 @@ public abstract class AbstractBaseTask implements Runnable, Serializable {
     final public void run() {
         
         try {
-            transactionalOps();
+            Object completeEvent = transactionalOps();
+            this.completed = true;
+            recordEvent(completeEvent);
         } catch (RuntimeException e) {
-            // Free the task, so it doesn't stall
             logger.warn("Exception forced task tx rollback: {}", e);
-            freeTask();
+            if ( isDurable() ) {
+                // Free the task, so it doesn't stall
+                freeTask();
+            }
         }
         
     }
 
+    /**
+     * @return The completion event, which ends once the transaction commits.
+     */
     @Transactional
-    private void transactionalOps() {
-        doInTxBeforeTask();
+    private Object transactionalOps() {
+        Object executeEvent = beginEvent(Phase.EXECUTE);
         doTaskInTransaction();
+        recordEvent(executeEvent);
+        if ( this.timedOut ) {
+            throw new IllegalStateException("Task timed out: " + this.getQueuedTaskId());
+        }
+        Object completeEvent = beginEvent(Phase.COMPLETE);
         doInTxAfterTask();
+        return completeEvent;
     }
     
     @Transactional
     private void freeTask() {
-        QueuedTaskHolder task = this.queuedTaskHolderDao.findById(this.queuedTaskId);
-        task.setStartedStamp(null);
-    }
-    
-    
-    /**
-     * Ensures that there is an associated task and that its state is valid.
-     */
-    private void doInTxBeforeTask() {
-        this.qth = this.queuedTaskHolderDao.findById(this.queuedTaskId);
-        if ( this.qth == null ) {
-            throw new IllegalArgumentException("Not executing: no associated task exists: " + this.getQueuedTaskId());
-        }
-        if ( this.qth.getStartedStamp() == null || this.qth.getCompletedStamp() != null ) {
-            throw new IllegalArgumentException("Illegal queued task status: " + this.qth);
-        }
+        this.queuedTaskHolderDao.markFree(this.queuedTaskId, this.queuedTaskVersion);
     }
     
     
@@ -129,10 +277,34 @@ public abstract class AbstractBaseTask implements Runnable, Serializable {
     
     
     /**
-     * Marks the associated task as finished.
+     * Marks the associated task as finished. The update only succeeds if the
+     * task still has the claimed version, so it also validates that nobody
+     * else freed, re-claimed or completed it meanwhile. The tasks depending on
+     * it are released, and its payload discarded, in the same transaction.
      */
-    private void doInTxAfterTask() {
-        this.qth.setCompletedStamp(Calendar.getInstance());
+    void doInTxAfterTask() {
+        if ( !isDurable() ) {
+            // Never was in the queue
+            return;
+        }
+        if ( !this.queuedTaskHolderDao.markCompleted(this.queuedTaskId, this.queuedTaskVersion, Calendar.getInstance()) ) {
+            throw new IllegalStateException("Illegal queued task status, not the claimed one: " + this.getQueuedTaskId());
+        }
+        this.releasedDependents = this.queuedTaskHolderDao.releaseDependents(this.queuedTaskId);
+        if ( this.payloadRef != null ) {
+            this.payloadStore.delete(this.payloadRef);
+        }
+    }
+
+
+    Object beginEvent(Phase phase) {
+        return this.eventRecorder != null ? this.eventRecorder.begin(phase) : null;
+    }
+    
+    void recordEvent(Object event) {
+        if ( event != null ) {
+            this.eventRecorder.commit(event, getClass().getName(), this.queuedTaskId, this.payloadSize, 0);
+        }
     }
 
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.carinae.dev.async.Constants;
+import net.carinae.dev.async.util.TaskEventRecorder.Phase;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Superclass for tasks that can be executed together with other ready tasks
+ * of the same type, for downstreams that support bulk calls.
+ * <p>
+ * Once the executor claims one of these tasks, it claims up to
+ * {@link #getMaxBatchSize()} ready tasks of the same type and tenant, and
+ * passes them all to {@link #doBatchInTransaction(List)} in a single
+ * transaction. A task run on its own is a batch of one.
+ * <ul>
+ *  <li>Tasks the handler can't process are marked with
+ *  {@link #fail(RuntimeException)}. They are freed to be retried, and the rest
+ *  are completed in the same transaction, so the handler must not leave
+ *  changes of a failed task behind.</li>
+ *  <li>Tasks that can't be completed because they no longer hold their
+ *  claimed version, as they were cancelled or freed while the batch ran,
+ *  are skipped and count as failed. The rest are still completed, along with
+ *  the changes the handler made for all of them.</li>
+ *  <li>If the handler throws, the whole batch is rolled back and freed.</li>
+ * </ul>
+ * A batch counts as one running task for the concurrency limit of its type,
+ * but each of its tasks takes a token of the rate limit, so a batch is cut
+ * short when the rate runs out. Its timeout applies to the whole batch.
+ *
+ * @param <T>
+ *            The concrete task class.
+ * @author Carlos Vara
+ */
+public abstract class BatchableTask<T extends BatchableTask<T>> extends AbstractBaseTask {
+
+    private transient RuntimeException failure;
+
+
+    /**
+     * @return Max tasks to run in one batch, one to disable batching.
+     */
+    public int getMaxBatchSize() {
+        return Constants.TASK_BATCH_SIZE;
+    }
+
+
+    /**
+     * Method to be implemented by concrete tasks where the operations of a
+     * whole batch are performed.
+     *
+     * @param batch
+     *            The tasks of the batch, all of the same class.
+     */
+    protected abstract void doBatchInTransaction(List<T> batch);
+
+
+    /**
+     * Marks this task as failed within its batch, so it is freed instead of
+     * completed.
+     */
+    public void fail(RuntimeException cause) {
+        this.failure = cause;
+    }
+
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public final void doTaskInTransaction() {
+        this.failure = null;
+        doBatchInTransaction(Collections.singletonList((T)this));
+        if ( this.failure != null ) {
+            throw this.failure;
+        }
+    }
+
+
+    /**
+     * Entrance point of a batch, called on its first task.
+     * <ul>
+     *  <li>Marks the tasks that didn't fail as finished upon tx commit, and
+     *  frees the failed ones.</li>
+     *  <li>In case of tx rollback, frees all the tasks.</li>
+     * </ul>
+     *
+     * @param tasks
+     *            The claimed tasks of the batch, this one first.
+     */
+    @SuppressWarnings("unchecked")
+    public final void runBatch(List<? extends AbstractBaseTask> tasks) {
+
+        List<T> batch = (List<T>)tasks;
+        for ( T task : batch ) {
+            task.fail(null);
+        }
+
+        try {
+            List<Object> completeEvents = transactionalBatchOps(batch);
+            for ( int i = 0; i < batch.size(); i++ ) {
+                T task = batch.get(i);
+                if ( task.getFailure() == null ) {
+                    task.setCompleted();
+                    task.recordEvent(completeEvents.get(i));
+                }
+                else {
+                    logger.warn("Task {} failed in its batch: {}", task.getQueuedTaskId(), task.getFailure());
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Exception forced batch tx rollback: {}", e);
+            freeBatch(batch);
+        }
+    }
+
+    /**
+     * @return The completion events, <code>null</code> for the failed tasks
+     *         and those that couldn't be completed.
+     */
+    @Transactional
+    private List<Object> transactionalBatchOps(List<T> batch) {
+        Object executeEvent = beginEvent(Phase.EXECUTE);
+        doBatchInTransaction(batch);
+        recordEvent(executeEvent);
+        if ( isTimedOut() ) {
+            throw new IllegalStateException("Batch timed out: " + this.getQueuedTaskId());
+        }
+        List<Object> completeEvents = new ArrayList<Object>(batch.size());
+        for ( T task : batch ) {
+            if ( task.getFailure() == null ) {
+                Object completeEvent = task.beginEvent(Phase.COMPLETE);
+                try {
+                    task.doInTxAfterTask();
+                    completeEvents.add(completeEvent);
+                } catch (IllegalStateException e) {
+                    // Cancelled or freed meanwhile, no longer ours to complete
+                    task.fail(e);
+                    completeEvents.add(null);
+                }
+            }
+            else {
+                completeEvents.add(null);
+                this.queuedTaskHolderDao.markFree(task.getQueuedTaskId(), task.getQueuedTaskVersion());
+            }
+        }
+        return completeEvents;
+    }
+
+    @Transactional
+    private void freeBatch(List<T> batch) {
+        for ( T task : batch ) {
+            this.queuedTaskHolderDao.markFree(task.getQueuedTaskId(), task.getQueuedTaskVersion());
+        }
+    }
+
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.task;
+
+import java.util.Arrays;
+import net.carinae.dev.async.PersistentAsync;
+import net.carinae.dev.async.PersistentAsyncAnnotationBeanPostProcessor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.core.style.ToStringCreator;
+
+/**
+ * Task that calls a {@link PersistentAsync} method of a bean. Only the bean
+ * name, the method signature id and the arguments are serialized.
+ * 
+ * @author Carlos Vara
+ */
+@Configurable
+public class MethodInvocationTask extends AbstractBaseTask {
+
+    public MethodInvocationTask(String beanName, String signatureId, Object[] arguments) {
+        super();
+        this.beanName = beanName;
+        this.signatureId = signatureId;
+        this.arguments = arguments;
+    }
+    
+    
+    private final String beanName;
+    private final String signatureId;
+    private final Object[] arguments;
+    
+    @Autowired
+    private transient PersistentAsyncAnnotationBeanPostProcessor invoker;
+    
+    
+    @Override
+    public void doTaskInTransaction() {
+        this.invoker.invoke(this.beanName, this.signatureId, this.arguments);
+    }
+    
+    @Override
+    public String toString() {
+        return new ToStringCreator(this).append("beanName", this.beanName)
+            .append("signatureId", this.signatureId)
+            .append("arguments", Arrays.toString(this.arguments))
+            .toString();
+    }
+    
+    
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.task;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits how many tasks of the annotated type a node executes. Tasks over the
+ * limits are not claimed, so they stay available for other nodes and don't
+ * hold a runner thread.
+ * 
+ * @author Carlos Vara
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface TaskLimits {
+
+    /**
+     * @return Max number of tasks of this type running at the same time in
+     *         this node. Zero or less means unlimited.
+     */
+    int maxConcurrency() default 0;
+    
+    /**
+     * @return Max number of tasks of this type started per second in this
+     *         node. Zero or less means unlimited.
+     */
+    double maxPerSecond() default 0;
+    
+}
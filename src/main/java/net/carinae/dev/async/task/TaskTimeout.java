@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.task;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Bounds how long a task of the annotated type may run. Once over it, its
+ * thread is interrupted and its transaction rolled back, and the task is
+ * freed to be retried.
+ * <p>
+ * A task that ignores the interruption is freed while its thread is still
+ * running, so the retry may start, on this or another node, before it exits.
+ * Its transaction can't commit anymore, as freeing bumps the version it
+ * claimed, but anything it does outside the transaction overlaps with the
+ * retry, and the locks it holds may delay it. Tasks with a timeout should
+ * either check for interruption, or keep their side effects transactional or
+ * idempotent.
+ * 
+ * @author Carlos Vara
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface TaskTimeout {
+
+    /**
+     * @return Max milliseconds a task of this type may run.
+     */
+    long value();
+    
+}
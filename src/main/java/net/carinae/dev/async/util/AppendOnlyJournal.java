@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local append-only journal of opaque records, kept in fixed size memory
+ * mapped segment files.
+ * <p>
+ * Each record is written as its length, its CRC32 and its bytes. Appending
+ * returns once the record is synced to disk, but concurrent appenders share
+ * the syncs: whoever syncs first covers everything written so far, and the
+ * rest find their records already synced.
+ * <p>
+ * Readers work on sealed segments only. {@link #seal()} closes the active
+ * segment, so its records can be consumed and the segment discarded.
+ * Segments left by a previous run are sealed on startup; a record torn by a
+ * crash is detected by its CRC and ends the segment.
+ * <p>
+ * The sealed segments can be replaced by a {@link Snapshot} of what they
+ * hold. Its place in the journal is reserved when started, so appends go on
+ * in later segments while it is written, and it only replaces them once
+ * fully synced.
+ * 
+ * @author Carlos Vara
+ */
+public class AppendOnlyJournal {
+
+    final static Logger logger = LoggerFactory.getLogger(AppendOnlyJournal.class);
+    
+    private static final String SUFFIX = ".journal";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String FAILED_SUFFIX = ".failed";
+    private static final int HEADER_SIZE = 8; // length + crc
+    
+    private final File directory;
+    private final int segmentSize;
+    
+    private final List<File> sealed = new LinkedList<File>();
+    private Segment active;
+    private long nextSequence;
+    
+    
+    /**
+     * Opens the journal kept in a directory, creating it if needed.
+     * 
+     * @param directory
+     *            Directory of the segment files, not shared with anyone else.
+     * @param segmentSize
+     *            Size of each segment file, in bytes.
+     */
+    public AppendOnlyJournal(File directory, int segmentSize) throws IOException {
+        
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Can't create journal directory: " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        
+        File[] previous = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(previous);
+        
+        // Snapshots interrupted by a crash
+        File[] unfinished = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SUFFIX + TEMPORARY_SUFFIX);
+            }
+        });
+        for ( File file : unfinished ) {
+            logger.warn("Removing unfinished journal snapshot {}", file);
+            file.delete();
+        }
+        
+        this.sealed.addAll(Arrays.asList(previous));
+        if ( previous.length > 0 ) {
+            logger.info("Found {} journal segments from a previous run in {}", previous.length, directory);
+            String last = previous[previous.length-1].getName();
+            this.nextSequence = Long.parseLong(last.substring(0, last.length() - SUFFIX.length())) + 1;
+        }
+        
+        this.active = newSegment();
+    }
+    
+    
+    /**
+     * Appends a record, and returns once it is synced to disk.
+     * 
+     * @param record
+     *            The record bytes.
+     */
+    public void append(byte[] record) throws IOException {
+        
+        if ( record.length + HEADER_SIZE > this.segmentSize ) {
+            throw new IllegalArgumentException("Record of " + record.length + " bytes doesn't fit in a journal segment");
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        
+        Segment segment;
+        int end;
+        synchronized (this) {
+            if ( this.active.buffer.remaining() < record.length + HEADER_SIZE ) {
+                roll();
+            }
+            segment = this.active;
+            segment.buffer.putInt(record.length);
+            segment.buffer.putInt((int)crc.getValue());
+            segment.buffer.put(record);
+            end = segment.buffer.position();
+            segment.written = end;
+        }
+        
+        segment.sync(end);
+    }
+    
+    
+    /**
+     * Seals the active segment, if it has any record, and returns all the
+     * sealed segments, oldest first.
+     */
+    public synchronized List<File> seal() throws IOException {
+        if ( this.active.written > 0 ) {
+            roll();
+        }
+        return new ArrayList<File>(this.sealed);
+    }
+    
+    
+    /**
+     * Reads the records of a sealed segment.
+     */
+    public List<byte[]> read(File segmentFile) throws IOException {
+        
+        List<byte[]> records = new ArrayList<byte[]>();
+        
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            while ( buffer.remaining() >= HEADER_SIZE ) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if ( length <= 0 || length > buffer.remaining() ) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ( (int)crc.getValue() != checksum ) {
+                    logger.warn("Torn record found in journal segment {}, ignoring the rest of it", segmentFile);
+                    break;
+                }
+                records.add(record);
+            }
+        } finally {
+            raf.close();
+        }
+        
+        return records;
+    }
+    
+    
+    /**
+     * Deletes a sealed segment whose records have been consumed.
+     */
+    public synchronized void discard(File segmentFile) {
+        this.sealed.remove(segmentFile);
+        if ( !segmentFile.delete() ) {
+            logger.warn("Couldn't delete journal segment {}", segmentFile);
+        }
+    }
+    
+    
+    /**
+     * Sets aside a sealed segment whose records can't be consumed, renaming it
+     * so it is kept for inspection but never read again.
+     */
+    public synchronized void quarantine(File segmentFile) {
+        this.sealed.remove(segmentFile);
+        File failed = new File(segmentFile.getPath() + FAILED_SUFFIX);
+        if ( !segmentFile.renameTo(failed) ) {
+            logger.warn("Couldn't rename journal segment {} to {}", segmentFile, failed);
+        }
+    }
+    
+    
+    /**
+     * Seals the active segment, and reserves the place right after it for a
+     * snapshot that will replace all the sealed segments.
+     */
+    public synchronized Snapshot startSnapshot() throws IOException {
+        if ( this.active.written > 0 ) {
+            roll();
+        }
+        List<File> replaced = new ArrayList<File>(this.sealed);
+        
+        // The (still empty) active segment is moved after the snapshot
+        this.active.close();
+        this.active.file.delete();
+        File file = new File(this.directory, String.format("%019d%s", this.nextSequence - 1, SUFFIX));
+        this.active = newSegment();
+        
+        return new Snapshot(file, replaced);
+    }
+    
+    
+    /**
+     * Syncs and closes the active segment. Empty segments are removed.
+     */
+    public synchronized void close() throws IOException {
+        this.active.close();
+        if ( this.active.written == 0 ) {
+            this.active.file.delete();
+        }
+    }
+    
+    
+    /**
+     * A snapshot being written to a temporary file, which takes the place of
+     * the segments it replaces when completed.
+     */
+    public class Snapshot {
+        
+        private final File file;
+        private final File temporary;
+        private final List<File> replaced;
+        private final FileOutputStream stream;
+        private final DataOutputStream out;
+        
+        private Snapshot(File file, List<File> replaced) throws IOException {
+            this.file = file;
+            this.temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+            this.replaced = replaced;
+            this.stream = new FileOutputStream(this.temporary);
+            this.out = new DataOutputStream(new BufferedOutputStream(this.stream));
+        }
+        
+        /**
+         * Adds a record to the snapshot, in the same format as appended ones.
+         */
+        public void write(byte[] record) throws IOException {
+            if ( record.length + HEADER_SIZE > segmentSize ) {
+                throw new IllegalArgumentException("Record of " + record.length + " bytes doesn't fit in a journal segment");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            this.out.writeInt(record.length);
+            this.out.writeInt((int)crc.getValue());
+            this.out.write(record);
+        }
+        
+        /**
+         * Syncs the snapshot, and replaces the segments sealed when it was
+         * started with it.
+         */
+        public void complete() throws IOException {
+            
+            this.out.flush();
+            this.stream.getFD().sync();
+            this.out.close();
+            if ( !this.temporary.renameTo(this.file) ) {
+                throw new IOException("Can't rename journal snapshot to " + this.file);
+            }
+            
+            synchronized (AppendOnlyJournal.this) {
+                sealed.add(this.file);
+                Collections.sort(sealed);
+            }
+            for ( File segment : this.replaced ) {
+                discard(segment);
+            }
+        }
+        
+        /**
+         * Drops an unfinished snapshot, keeping the segments it would replace.
+         */
+        public void abandon() {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                logger.warn("Couldn't close journal snapshot {}", this.temporary);
+            }
+            this.temporary.delete();
+        }
+    }
+    
+    
+    // Segments ----------------------------------------------------------------
+    
+    private void roll() throws IOException {
+        this.active.close();
+        this.sealed.add(this.active.file);
+        this.active = newSegment();
+    }
+    
+    private Segment newSegment() throws IOException {
+        File file = new File(this.directory, String.format("%019d%s", this.nextSequence++, SUFFIX));
+        return new Segment(file, this.segmentSize);
+    }
+    
+    
+    /**
+     * A memory mapped segment file.
+     */
+    private static class Segment {
+        
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        
+        /**
+         * Bytes written, updated by the appenders.
+         */
+        volatile int written = 0;
+        
+        /**
+         * Bytes already synced to disk, guarded by the segment itself.
+         */
+        int synced = 0;
+        
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.raf.setLength(size);
+            this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        
+        /**
+         * Makes sure the segment is synced at least up to the given position.
+         */
+        synchronized void sync(int position) {
+            if ( this.synced < position ) {
+                int target = this.written;
+                this.buffer.force();
+                this.synced = target;
+            }
+        }
+        
+        void close() throws IOException {
+            sync(this.written);
+            this.raf.close();
+        }
+    }
+    
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.util;
+
+/**
+ * Contract for recorders of timed events along the lifecycle of a task, for
+ * profiling where its time goes.
+ * <p>
+ * Recording is split in two calls around the timed phase. Implementations
+ * must be cheap, especially when not recording, as they are always on.
+ *
+ * @author Carlos Vara
+ */
+public interface TaskEventRecorder {
+
+    /**
+     * The recorded phases of a task.
+     */
+    enum Phase {
+        /** Serializing and storing a new task. */
+        ENQUEUE,
+        /** Finding and locking the next task to run, conflicts included. */
+        CLAIM,
+        /** Loading and deserializing a claimed task. */
+        DESERIALIZE,
+        /** Running the body of the task. */
+        EXECUTE,
+        /** Marking the task as completed, up to its commit. */
+        COMPLETE
+    }
+
+
+    /**
+     * Starts timing a phase.
+     *
+     * @param phase
+     *            The phase about to start.
+     * @return A handle for {@link #commit}, or <code>null</code> if the phase
+     *         is not being recorded right now.
+     */
+    Object begin(Phase phase);
+
+
+    /**
+     * Ends timing a phase and records it.
+     *
+     * @param event
+     *            The handle returned by {@link #begin(Phase)}, may be
+     *            <code>null</code>.
+     * @param taskType
+     *            The class name of the task.
+     * @param taskId
+     *            The queued task id, if already known.
+     * @param payloadSize
+     *            The size of the serialized task, in bytes, or -1 if not
+     *            known.
+     * @param conflicts
+     *            The number of lock conflicts found while claiming.
+     */
+    void commit(Object event, String taskType, String taskId, int payloadSize, int conflicts);
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Implementation of {@link TaskEventRecorder} that emits Java Flight Recorder
+ * events, so the queue can be profiled with the standard JDK tooling.
+ * <p>
+ * As the code is compiled for Java 6, the JFR API (JDK 9 and later) is
+ * reached through reflection: one event type is defined per phase with
+ * <code>jdk.jfr.EventFactory</code>, named
+ * <code>net.carinae.dev.async.&lt;Phase&gt;</code>, with the task class, id,
+ * payload size and claim conflicts as fields, and no stack trace. When JFR
+ * isn't available nothing is recorded. When it is but the event is
+ * disabled, the cost is creating the event and checking it.
+ *
+ * @author Carlos Vara
+ */
+@Component
+public class TaskEventRecorderJfrImpl implements TaskEventRecorder {
+
+    final static Logger logger = LoggerFactory.getLogger(TaskEventRecorderJfrImpl.class);
+
+    private static final String EVENT_PREFIX = "net.carinae.dev.async.";
+    private static final String CATEGORY = "Persistent Executor";
+
+
+    public TaskEventRecorderJfrImpl() {
+        this(TaskEventRecorderJfrImpl.class.getClassLoader());
+    }
+
+    /**
+     * @param classLoader
+     *            The class loader the JFR API is looked up in.
+     */
+    TaskEventRecorderJfrImpl(ClassLoader classLoader) {
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event", true, classLoader);
+            this.eventBegin = eventClass.getMethod("begin");
+            this.eventEnd = eventClass.getMethod("end");
+            this.eventCommit = eventClass.getMethod("commit");
+            this.eventIsEnabled = eventClass.getMethod("isEnabled");
+            this.eventSet = eventClass.getMethod("set", int.class, Object.class);
+
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory", true, classLoader);
+            this.newEvent = factoryClass.getMethod("newEvent");
+            Method create = factoryClass.getMethod("create", List.class, List.class);
+
+            for ( Phase phase : Phase.values() ) {
+                this.factories.put(phase, create.invoke(null, eventAnnotations(phase), eventFields()));
+            }
+            logger.info("Recording task lifecycle events in Java Flight Recorder");
+
+        } catch (ClassNotFoundException e) {
+            logger.info("Java Flight Recorder not available, task lifecycle events won't be recorded");
+            this.factories.clear();
+        } catch (Exception e) {
+            logger.warn("Couldn't define the task lifecycle events, they won't be recorded", e);
+            this.factories.clear();
+        }
+    }
+
+
+    // TaskEventRecorder methods -----------------------------------------------
+
+    @Override
+    public Object begin(Phase phase) {
+        Object factory = this.factories.get(phase);
+        if ( factory == null ) {
+            return null;
+        }
+        try {
+            Object event = this.newEvent.invoke(factory);
+            if ( !(Boolean)this.eventIsEnabled.invoke(event) ) {
+                return null;
+            }
+            this.eventBegin.invoke(event);
+            return event;
+        } catch (Exception e) {
+            logger.debug("Couldn't begin event", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void commit(Object event, String taskType, String taskId, int payloadSize, int conflicts) {
+        if ( event == null ) {
+            return;
+        }
+        try {
+            this.eventEnd.invoke(event);
+            this.eventSet.invoke(event, 0, taskType);
+            this.eventSet.invoke(event, 1, taskId);
+            this.eventSet.invoke(event, 2, payloadSize);
+            this.eventSet.invoke(event, 3, conflicts);
+            this.eventCommit.invoke(event);
+        } catch (Exception e) {
+            logger.debug("Couldn't commit event", e);
+        }
+    }
+
+
+    // Event definitions -------------------------------------------------------
+
+    private final Map<Phase, Object> factories = new EnumMap<Phase, Object>(Phase.class);
+
+    private Method newEvent;
+    private Method eventBegin;
+    private Method eventEnd;
+    private Method eventCommit;
+    private Method eventIsEnabled;
+    private Method eventSet;
+
+    private static List<Object> eventAnnotations(Phase phase) throws Exception {
+        String name = phase.name().charAt(0) + phase.name().substring(1).toLowerCase();
+        return Arrays.asList(
+                annotation("jdk.jfr.Name", EVENT_PREFIX + name),
+                annotation("jdk.jfr.Label", "Task " + name),
+                annotation("jdk.jfr.Category", new String[] {CATEGORY}),
+                annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+    }
+
+    /**
+     * The fields of every event, in the order they are set on commit.
+     */
+    private static List<Object> eventFields() throws Exception {
+        List<Object> fields = new ArrayList<Object>();
+        fields.add(field(String.class, "taskClass", "Task Class"));
+        fields.add(field(String.class, "taskId", "Task Id"));
+        fields.add(field(int.class, "payloadSize", "Payload Size"));
+        fields.add(field(int.class, "conflicts", "Claim Conflicts"));
+        return fields;
+    }
+
+    private static Object annotation(String type, Object value) throws Exception {
+        Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> constructor = annotationElement.getConstructor(Class.class, Object.class);
+        return constructor.newInstance(Class.forName(type).asSubclass(Annotation.class), value);
+    }
+
+    private static Object field(Class<?> type, String name, String label) throws Exception {
+        Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+        Constructor<?> constructor = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+        return constructor.newInstance(type, name, Arrays.asList(annotation("jdk.jfr.Label", label)));
+    }
+
+}
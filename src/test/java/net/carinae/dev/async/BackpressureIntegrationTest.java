@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks the backpressure policies with the watermarks set in the test
+ * context: over capacity at 3 pending tasks, back under at 1.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTestBackpressure.xml"} )
+public class BackpressureIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private EnqueueBackpressure enqueueBackpressure;
+    
+    @Autowired
+    private QueueDepthMonitor queueDepthMonitor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    
+    /**
+     * Fills the queue with tasks delayed for an hour, and checks that further
+     * tasks are rejected, deferred or blocked as their policy says, until the
+     * queue drains.
+     */
+    @Test
+    public void testPolicies() {
+        
+        List<String> taskIds = new ArrayList<String>();
+        for ( int i = 0; i < 3; i++ ) {
+            taskIds.add(enqueueTask(delayedTask("backpressure-" + i), null));
+        }
+        
+        // Rejected by the default policy
+        try {
+            enqueueTask(delayedTask("backpressure-rejected"), null);
+            Assert.fail("Task accepted over capacity");
+        } catch (QueueFullException e) {
+            // Expected
+        }
+        
+        // Blocked for a second, then rejected
+        long start = System.currentTimeMillis();
+        try {
+            this.persistentTaskExecutor.awaitCapacity(BackpressurePolicy.block(1000));
+            Assert.fail("Didn't block over capacity");
+        } catch (QueueFullException e) {
+            Assert.assertTrue("Didn't wait for the timeout", System.currentTimeMillis() - start >= 1000);
+        }
+        
+        // Blocking policy without waiting first, rejected in the transaction
+        try {
+            enqueueTask(delayedTask("backpressure-blocked"), BackpressurePolicy.block(1000));
+            Assert.fail("Task accepted over capacity");
+        } catch (QueueFullException e) {
+            // Expected
+        }
+        
+        // Deferred for two hours
+        Calendar before = Calendar.getInstance();
+        before.add(Calendar.HOUR, 2);
+        String deferredId = enqueueTask(new SimpleTask("backpressure-deferred"), BackpressurePolicy.defer(2 * 60 * 60 * 1000L));
+        taskIds.add(deferredId);
+        Assert.assertFalse("Deferred task not moved", findTask(deferredId).getTriggerStamp().before(before));
+        
+        // Drained: accepted again once the cached depth is refreshed
+        Assert.assertEquals(taskIds.size(), this.persistentTaskExecutor.cancel(taskIds));
+        this.queueDepthMonitor.flusher();
+        Assert.assertEquals(0, this.queueDepthMonitor.getPendingDepth());
+        this.persistentTaskExecutor.awaitCapacity(BackpressurePolicy.block(1000));
+        taskIds.add(enqueueTask(delayedTask("backpressure-accepted"), null));
+        
+        this.persistentTaskExecutor.cancel(taskIds);
+        this.queueDepthMonitor.flusher();
+    }
+    
+    
+    /**
+     * Checks that waiting for capacity is refused inside a transaction, where
+     * it would hold a connection meanwhile.
+     */
+    @Test(expected=IllegalStateException.class)
+    public void testAwaitCapacityInTransaction() {
+        awaitCapacityInTransaction();
+    }
+    
+    
+    private static AbstractBaseTask delayedTask(String data) {
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.HOUR, 1);
+        SimpleTask task = new SimpleTask(data);
+        task.setTriggerStamp(trigger);
+        return task;
+    }
+    
+    @Transactional
+    public String enqueueTask(AbstractBaseTask task, BackpressurePolicy policy) {
+        this.persistentTaskExecutor.execute(task, policy);
+        return task.getQueuedTaskId();
+    }
+    
+    @Transactional
+    public void awaitCapacityInTransaction() {
+        this.enqueueBackpressure.awaitCapacity(BackpressurePolicy.block(1000));
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+}
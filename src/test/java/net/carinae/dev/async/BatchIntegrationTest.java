@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.BatchableTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that a batch still completes its tasks when one of them can't be
+ * completed anymore.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class BatchIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Largest batch run so far.
+     */
+    private static volatile int maxBatch = 0;
+    
+    
+    /**
+     * Persists an entity per task. Within a batch, a task whose data ends with
+     * "victim" is cancelled by the handler instead, as if another node
+     * cancelled it while the batch ran.
+     */
+    public static class BatchedTask extends BatchableTask<BatchedTask> {
+
+        @Autowired
+        private transient DummyEntityDao dummyEntityDao;
+        
+        @Autowired
+        private transient PersistentTaskExecutor persistentTaskExecutor;
+        
+        public BatchedTask(String data) {
+            super();
+            this.data = data;
+        }
+        
+        private final String data;
+        
+        @Override
+        protected void doBatchInTransaction(List<BatchedTask> batch) {
+            maxBatch = Math.max(maxBatch, batch.size());
+            for ( BatchedTask task : batch ) {
+                if ( batch.size() > 1 && task.data.endsWith("victim") ) {
+                    persistentTaskExecutor.cancel(task.getQueuedTaskId());
+                }
+                else {
+                    DummyEntity de = new DummyEntity();
+                    de.setData(task.data);
+                    dummyEntityDao.persist(de);
+                }
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues five batchable tasks, one of them cancelled while its batch
+     * runs. The other four must be completed.
+     */
+    @Test
+    public void testPartialCompletion() throws InterruptedException {
+        
+        String prefix = "" + System.nanoTime();
+        
+        // Due in a second, so they aren't run locally when enqueued
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.SECOND, 1);
+        List<BatchedTask> tasks = new ArrayList<BatchedTask>();
+        for ( int i = 0; i < 5; i++ ) {
+            BatchedTask task = new BatchedTask(prefix + "-" + (i == 2 ? "victim" : "" + i));
+            task.setTriggerStamp(trigger);
+            tasks.add(task);
+        }
+        enqueueTasks(tasks);
+        Thread.sleep(trigger.getTimeInMillis() - System.currentTimeMillis() + 500);
+        
+        this.persistentTaskExecutor.runner();
+        
+        int tries = 0;
+        while (tries < 180 && !allCompleted(tasks)) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Tasks not completed in 3 minutes time", tries < 180);
+        Assert.assertTrue("Tasks not run in a batch", maxBatch > 1);
+        
+        for ( int i = 0; i < 5; i++ ) {
+            if ( i != 2 ) {
+                Assert.assertTrue("Batch changes of task " + i + " not committed", pollDummyEntity(prefix + "-" + i));
+            }
+        }
+        Assert.assertFalse("Cancelled task run", pollDummyEntity(prefix + "-victim"));
+    }
+    
+    
+    @Transactional
+    public void enqueueTasks(List<BatchedTask> tasks) {
+        for ( BatchedTask task : tasks ) {
+            persistentTaskExecutor.execute(task);
+        }
+    }
+    
+    @Transactional(readOnly=true)
+    public boolean allCompleted(List<BatchedTask> tasks) {
+        for ( BatchedTask task : tasks ) {
+            if ( this.queuedTaskDao.findById(task.getQueuedTaskId()).getCompletedStamp() == null ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks cancelling and rescheduling enqueued tasks.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class CancellationIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Cancels a submitted task delayed for an hour, with a dependent. Its
+     * handle must be cancelled, it must not be reported as completed, and its
+     * dependent must keep waiting.
+     */
+    @Test
+    public void testCancel() throws InterruptedException, ExecutionException, TimeoutException {
+        
+        String data = "" + System.nanoTime();
+        SimpleTask parent = delayedTask(data, 1);
+        SimpleTask child = new SimpleTask(data + "-child");
+        Future<Void> future = submitParentAndChild(parent, child);
+        
+        Assert.assertTrue(this.persistentTaskExecutor.cancel(parent.getQueuedTaskId()));
+        Assert.assertFalse("Cancelled twice", this.persistentTaskExecutor.cancel(parent.getQueuedTaskId()));
+        
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Handle of a cancelled task completed");
+        } catch (CancellationException e) {
+            // Expected
+        }
+        Assert.assertTrue(future.isCancelled());
+        
+        Assert.assertTrue("Cancelled task reported as completed", findCompleted(parent.getQueuedTaskId()).isEmpty());
+        Assert.assertEquals(1, findCancelled(parent.getQueuedTaskId()).size());
+        
+        Thread.sleep(5000);
+        QueuedTaskHolder dependent = findTask(child.getQueuedTaskId());
+        Assert.assertEquals("Dependent released", 1, dependent.getPendingParents());
+        Assert.assertNull(dependent.getStartedStamp());
+        Assert.assertFalse("Dependent run", pollDummyEntity(data + "-child"));
+        Assert.assertFalse("Cancelled task run", pollDummyEntity(data));
+        
+        this.persistentTaskExecutor.cancel(child.getQueuedTaskId());
+    }
+    
+    
+    /**
+     * Checks that a claim is fenced by its version: once the claimed task is
+     * cancelled by someone else, completing it with the claimed version
+     * fails, so its transaction rolls back.
+     */
+    @Test
+    public void testStaleClaim() {
+        
+        SimpleTask task = delayedTask("" + System.nanoTime(), 1);
+        enqueueTask(task);
+        
+        QueuedTaskHolder before = findTask(task.getQueuedTaskId());
+        Calendar later = Calendar.getInstance();
+        later.add(Calendar.HOUR, 2);
+        Assert.assertTrue(this.persistentTaskExecutor.reschedule(task.getQueuedTaskId(), later));
+        Assert.assertEquals("Version not bumped by reschedule", before.getVersion() + 1, findTask(task.getQueuedTaskId()).getVersion());
+        
+        claimTask(task.getQueuedTaskId());
+        int claimedVersion = findTask(task.getQueuedTaskId()).getVersion();
+        
+        Assert.assertTrue(this.persistentTaskExecutor.cancel(task.getQueuedTaskId()));
+        Assert.assertFalse("Cancelled claim completed", completeTask(task.getQueuedTaskId(), claimedVersion));
+        Assert.assertEquals(1, findCancelled(task.getQueuedTaskId()).size());
+    }
+    
+    
+    /**
+     * Reschedules a task delayed for an hour to right away, and waits for 3
+     * minutes for it to be executed and reported as completed.
+     */
+    @Test
+    public void testRescheduleToNow() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        SimpleTask task = delayedTask(data, 1);
+        enqueueTask(task);
+        
+        Assert.assertTrue(this.persistentTaskExecutor.reschedule(task.getQueuedTaskId(), null));
+        
+        int tries = 0;
+        while (tries < 180 && findCompleted(task.getQueuedTaskId()).isEmpty()) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Task didn't execute in 3 minutes time", tries < 180);
+        Assert.assertTrue(pollDummyEntity(data));
+        Assert.assertFalse("Started task rescheduled", this.persistentTaskExecutor.reschedule(task.getQueuedTaskId(), null));
+    }
+    
+    
+    private static SimpleTask delayedTask(String data, int hours) {
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.HOUR, hours);
+        SimpleTask task = new SimpleTask(data);
+        task.setTriggerStamp(trigger);
+        return task;
+    }
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+    }
+    
+    @Transactional
+    public Future<Void> submitParentAndChild(AbstractBaseTask parent, AbstractBaseTask child) {
+        Future<Void> future = persistentTaskExecutor.submit(parent);
+        child.addParentTaskId(parent.getQueuedTaskId());
+        persistentTaskExecutor.execute(child);
+        return future;
+    }
+    
+    /**
+     * Claims a task for another node, as the runner would.
+     */
+    @Transactional
+    public void claimTask(String taskId) {
+        Assert.assertTrue(this.queuedTaskDao.markStarted(this.queuedTaskDao.findById(taskId), Calendar.getInstance(), "other-node"));
+    }
+    
+    @Transactional
+    public boolean completeTask(String taskId, int version) {
+        return this.queuedTaskDao.markCompleted(taskId, version, Calendar.getInstance());
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+    
+    @Transactional(readOnly=true)
+    public List<String> findCompleted(String taskId) {
+        return this.queuedTaskDao.findCompletedTaskIds(Collections.singleton(taskId));
+    }
+    
+    @Transactional(readOnly=true)
+    public List<String> findCancelled(String taskId) {
+        return this.queuedTaskDao.findCancelledTaskIds(Collections.singleton(taskId));
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+
+/**
+ * Drives the control loop of a {@link ConcurrencyController} with reported
+ * claims and executions, and checks how it sizes its worker pool. It uses
+ * its own controller and pool, so the executor of the context isn't
+ * resized under the other tests.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class ConcurrencyControllerIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    private ThreadPoolTaskExecutor workers;
+    
+    private ConcurrencyController controller;
+    
+    
+    @Before
+    public void createController() {
+        this.workers = new ThreadPoolTaskExecutor();
+        this.workers.setCorePoolSize(2);
+        this.workers.setMaxPoolSize(2);
+        this.workers.setQueueCapacity(0);
+        this.workers.afterPropertiesSet();
+        
+        this.controller = new ConcurrencyController();
+        this.controller.localWorkers = this.workers;
+    }
+    
+    @After
+    public void destroyWorkers() {
+        this.workers.shutdown();
+    }
+    
+    
+    /**
+     * Checks that it stays disabled until bounds are set.
+     */
+    @Test
+    public void testDisabledByDefault() {
+        
+        reportPeriod(1, 0, 1, true);
+        Assert.assertEquals(0, this.controller.getConcurrencyLimit());
+        Assert.assertEquals(Constants.TASK_PIPELINE_DEPTH, this.controller.getPrefetchDepth());
+        Assert.assertEquals(2, this.workers.getMaxPoolSize());
+    }
+    
+    
+    /**
+     * Checks that saturated workers grow the pool by one per period, up to
+     * the max bound, and that the prefetch depth follows.
+     */
+    @Test
+    public void testAdditiveIncrease() {
+        
+        this.controller.setBounds(1, 4);
+        Assert.assertEquals(2, this.controller.getConcurrencyLimit());
+        
+        reportPeriod(1, 0, 1, true);
+        Assert.assertEquals(3, this.controller.getConcurrencyLimit());
+        Assert.assertEquals(3, this.workers.getMaxPoolSize());
+        Assert.assertEquals(3, this.workers.getCorePoolSize());
+        Assert.assertEquals(3, this.controller.getPrefetchDepth());
+        
+        reportPeriod(1, 0, 1, true);
+        reportPeriod(1, 0, 1, true);
+        Assert.assertEquals("Grew over its max bound", 4, this.controller.getConcurrencyLimit());
+        Assert.assertEquals(4, this.workers.getMaxPoolSize());
+        
+        // Not saturated, stays
+        this.controller.setBounds(1, 8);
+        reportPeriod(1, 0, 1, false);
+        Assert.assertEquals(4, this.controller.getConcurrencyLimit());
+    }
+    
+    
+    /**
+     * Checks that conflicting claims cut the pool by a quarter, down to the
+     * min bound, even if the workers are saturated.
+     */
+    @Test
+    public void testMultiplicativeDecreaseOnConflicts() {
+        
+        this.workers.setMaxPoolSize(8);
+        this.workers.setCorePoolSize(8);
+        this.controller.setBounds(3, 8);
+        Assert.assertEquals(8, this.controller.getConcurrencyLimit());
+        
+        reportPeriod(1, 5, 1, true);
+        Assert.assertEquals(0.5, this.controller.getConflictRate(), 0.001);
+        Assert.assertEquals(6, this.controller.getConcurrencyLimit());
+        Assert.assertEquals(6, this.workers.getMaxPoolSize());
+        
+        for ( int i = 0; i < 4; i++ ) {
+            reportPeriod(1, 5, 1, true);
+        }
+        Assert.assertEquals("Shrank under its min bound", 3, this.controller.getConcurrencyLimit());
+        Assert.assertEquals(3, this.workers.getMaxPoolSize());
+    }
+    
+    
+    /**
+     * Checks that claims much slower than the best seen lately back off, as
+     * the database is contended.
+     */
+    @Test
+    public void testDecreaseOnClaimLatency() {
+        
+        this.workers.setMaxPoolSize(4);
+        this.workers.setCorePoolSize(4);
+        this.controller.setBounds(1, 8);
+        
+        reportPeriod(1, 0, 1, false);
+        Assert.assertEquals(4, this.controller.getConcurrencyLimit());
+        
+        reportPeriod(10, 0, 1, true);
+        Assert.assertEquals(10.0, this.controller.getClaimLatency(), 0.001);
+        Assert.assertEquals(3, this.controller.getConcurrencyLimit());
+    }
+    
+    
+    /**
+     * Reports ten claims and ten executions, and runs the control loop.
+     */
+    private void reportPeriod(long claimMillis, int conflicts, long taskMillis, boolean saturated) {
+        for ( int i = 0; i < 10; i++ ) {
+            this.controller.claimed(claimMillis * 1000000l, 1, i < conflicts ? 1 : 0);
+            this.controller.taskExecuted(taskMillis * 1000000l);
+        }
+        if ( saturated ) {
+            this.controller.workersSaturated();
+        }
+        this.controller.controller();
+    }
+}
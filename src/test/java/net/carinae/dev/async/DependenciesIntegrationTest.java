@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that tasks with parents wait for them.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class DependenciesIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Qualifier("PersistentExecutor")
+    @Autowired
+    private TaskExecutor taskExecutor;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Stores a {@link DummyEntity} with the given data, flagged if its parent
+     * hadn't stored its own yet.
+     */
+    @Configurable
+    public static class ChildTask extends AbstractBaseTask {
+
+        @Autowired
+        private transient DummyEntityDao dummyEntityDao;
+        
+        public ChildTask(String parentData, String data) {
+            super();
+            this.parentData = parentData;
+            this.data = data;
+        }
+        
+        private final String parentData;
+        private final String data;
+        
+        @Override
+        public void doTaskInTransaction() {
+            DummyEntity de = new DummyEntity();
+            de.setData(dummyEntityDao.findByData(parentData).isEmpty() ? data + "-early" : data);
+            dummyEntityDao.persist(de);
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues a parent delayed by 10 seconds along with its child, and waits
+     * for 3 minutes for the child to be executed after it.
+     */
+    @Test
+    public void testChildWaitsForParent() throws InterruptedException {
+        
+        String parentData = "" + System.nanoTime();
+        String childData = parentData + "-child";
+        
+        enqueueParentAndChild(parentData, childData);
+        
+        Thread.sleep(5000);
+        Assert.assertFalse("Child executed before its parent", pollDummyEntity(childData + "-early"));
+        
+        int tries = 0;
+        while (tries < 180 && !pollDummyEntity(childData) && !pollDummyEntity(childData + "-early")) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Child didn't execute in 3 minutes time", tries < 180);
+        Assert.assertTrue("Child executed before its parent", pollDummyEntity(childData));
+    }
+    
+    
+    @Transactional
+    public void enqueueParentAndChild(String parentData, String childData) {
+        SimpleTask parent = new SimpleTask(parentData);
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.SECOND, 10);
+        parent.setTriggerStamp(trigger);
+        taskExecutor.execute(parent);
+        
+        ChildTask child = new ChildTask(parentData, childData);
+        child.addParentTaskId(parent.getQueuedTaskId());
+        taskExecutor.execute(child);
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
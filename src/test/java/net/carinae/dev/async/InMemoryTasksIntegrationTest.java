@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that non-durable tasks run from memory once their enqueuing
+ * transaction commits, without going through the task queue.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class InMemoryTasksIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Enqueues a non-durable task, waits for 1 minute for it to be executed
+     * and checks it never was in the queue.
+     */
+    @Test
+    public void testNonDurableTask() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        SimpleTask task = new SimpleTask(data);
+        task.setDurable(false);
+        enqueueTask(task);
+        
+        int tries = 0;
+        while (tries < 60 && !pollDummyEntity(data)) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Non-durable task didn't execute in 1 minute time", tries < 60);
+        Assert.assertNull("Non-durable task was queued", findTask(task.getQueuedTaskId()));
+    }
+    
+    /**
+     * Enqueues a non-durable task in a transaction that is rolled back, and
+     * checks that it isn't executed.
+     */
+    @Test
+    public void testRolledBackNonDurableTask() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        SimpleTask task = new SimpleTask(data);
+        task.setDurable(false);
+        try {
+            enqueueTaskAndRollback(task);
+            Assert.fail("Enqueuing transaction wasn't rolled back");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        Thread.sleep(5000);
+        Assert.assertFalse("Rolled back non-durable task was executed", pollDummyEntity(data));
+    }
+    
+    /**
+     * Checks that non-durable tasks can't be scheduled for later.
+     */
+    @Test
+    public void testNonDurableTaskWithTrigger() {
+        
+        SimpleTask task = new SimpleTask("" + System.nanoTime());
+        task.setDurable(false);
+        task.setTriggerStamp(Calendar.getInstance());
+        try {
+            enqueueTask(task);
+            Assert.fail("Non-durable task with a trigger stamp was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+    
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+    }
+    
+    @Transactional
+    public void enqueueTaskAndRollback(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+        throw new IllegalStateException("Rolling back the enqueue");
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.util.AppendOnlyJournal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that journaled tasks are loaded into the task queue with their
+ * tenant and key, only once, and executed.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class JournalIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    private JournaledTaskExecutor journaledExecutor;
+    
+    
+    @Before
+    public void createJournaledExecutor() throws Exception {
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        directory.mkdirs();
+        this.journaledExecutor = new JournaledTaskExecutor();
+        this.journaledExecutor.setDirectory(directory);
+        applicationContext.getAutowireCapableBeanFactory().autowireBean(this.journaledExecutor);
+        this.journaledExecutor.afterPropertiesSet();
+    }
+    
+    @After
+    public void destroyJournaledExecutor() throws Exception {
+        this.journaledExecutor.destroy();
+    }
+    
+    
+    /**
+     * Journals a task with tenant and key, pumps the journal and waits for 3
+     * minutes for it to be executed.
+     */
+    @Test
+    public void testJournaledTask() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        SimpleTask task = new SimpleTask(data);
+        task.setTenant("journal-tenant");
+        task.setTaskKey("journal-key-" + data);
+        this.journaledExecutor.execute(task);
+        this.journaledExecutor.pump();
+        
+        QueuedTaskHolder queuedTask = findTask(task.getQueuedTaskId());
+        Assert.assertNotNull("Journaled task wasn't loaded", queuedTask);
+        Assert.assertEquals("journal-tenant", queuedTask.getTenant());
+        Assert.assertEquals("journal-key-" + data, queuedTask.getTaskKey());
+        
+        int tries = 0;
+        while (tries < 180 && !pollDummyEntity(data)) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Journaled task didn't execute in 3 minutes time", tries < 180);
+    }
+    
+    /**
+     * Loads the same records twice, as after a crash before discarding their
+     * segment, and checks that each task is only enqueued once.
+     */
+    @Test
+    public void testReplayedRecords() throws Exception {
+        
+        String queuedTaskId = UUID.randomUUID().toString();
+        byte[] record = this.journaledExecutor.toRecord(queuedTaskId, new SimpleTask("" + System.nanoTime()));
+        
+        Assert.assertEquals(1, this.journaledExecutor.loadRecords(Arrays.asList(record, record)));
+        Assert.assertEquals(0, this.journaledExecutor.loadRecords(Arrays.asList(record)));
+        Assert.assertNotNull(findTask(queuedTaskId));
+    }
+    
+    /**
+     * Checks that a record without the current version is rejected, and
+     * nothing of its segment enqueued.
+     */
+    @Test
+    public void testUnknownRecordVersion() throws Exception {
+        
+        String queuedTaskId = UUID.randomUUID().toString();
+        byte[] record = this.journaledExecutor.toRecord(queuedTaskId, new SimpleTask("" + System.nanoTime()));
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF(UUID.randomUUID().toString());
+        out.writeUTF(SimpleTask.class.getName());
+        out.writeLong(-1);
+        out.close();
+        
+        try {
+            this.journaledExecutor.loadRecords(Arrays.asList(record, bos.toByteArray()));
+            Assert.fail("Record of an unknown version loaded");
+        } catch (IOException e) {
+            // Expected
+        }
+        Assert.assertNull("Part of a rejected segment enqueued", findTask(queuedTaskId));
+    }
+    
+    /**
+     * Leaves an unreadable segment in a journal, and checks that pumping it
+     * sets that segment aside and still loads the next ones.
+     */
+    @Test
+    public void testUnreadableSegment() throws Exception {
+        
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        AppendOnlyJournal previous = new AppendOnlyJournal(directory, Constants.TASK_JOURNAL_SEGMENT_SIZE);
+        previous.append(new byte[] {42, 1, 2, 3});
+        previous.close();
+        File unreadable = directory.listFiles()[0];
+        
+        JournaledTaskExecutor executor = new JournaledTaskExecutor();
+        executor.setDirectory(directory);
+        applicationContext.getAutowireCapableBeanFactory().autowireBean(executor);
+        executor.afterPropertiesSet();
+        try {
+            SimpleTask task = new SimpleTask("" + System.nanoTime());
+            executor.execute(task);
+            executor.pump();
+            
+            Assert.assertNotNull("Segment after the unreadable one wasn't loaded", findTask(task.getQueuedTaskId()));
+            Assert.assertFalse(unreadable.exists());
+            Assert.assertTrue("Unreadable segment not kept aside", new File(unreadable.getPath() + ".failed").exists());
+        } finally {
+            executor.destroy();
+        }
+    }
+    
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
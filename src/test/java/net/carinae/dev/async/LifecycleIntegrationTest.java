@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.File;
+import java.util.Calendar;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.util.Serializer;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that a node gives up its claimed tasks when it stops, and gets
+ * back the ones it left when it died.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class LifecycleIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    @Autowired
+    private NodeIdentity nodeIdentity;
+    
+    @Autowired
+    private Serializer serializer;
+    
+    
+    /**
+     * Sleeps for the given time.
+     */
+    public static class SleepingTask extends AbstractBaseTask {
+
+        public SleepingTask(long millis) {
+            super();
+            this.millis = millis;
+        }
+        
+        private final long millis;
+        
+        @Override
+        public void doTaskInTransaction() {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues a task that outlives the shutdown timeout, stops the executor
+     * and checks that the task was freed.
+     */
+    @Test
+    public void testStopFreesUnfinishedTasks() throws InterruptedException {
+        
+        String taskId = enqueueTask(new SleepingTask(Constants.TASK_SHUTDOWN_TIMEOUT + 10000));
+        
+        int tries = 0;
+        while (tries < 90 && findTask(taskId).getStartedStamp() == null) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Task didn't start in 90 seconds time", tries < 90);
+        
+        persistentTaskExecutor.stop();
+        try {
+            QueuedTaskHolder task = findTask(taskId);
+            Assert.assertNull("Unfinished task still claimed after stopping", task.getStartedStamp());
+            Assert.assertNull("Unfinished task still claimed after stopping", task.getNodeId());
+            Assert.assertNull("Unfinished task completed", task.getCompletedStamp());
+        } finally {
+            persistentTaskExecutor.start();
+        }
+    }
+    
+    
+    /**
+     * Leaves a task claimed by this node as if it had died running it, and
+     * checks that recovering frees it.
+     */
+    @Test
+    public void testRecoverClaimedTasks() {
+        
+        String taskId = persistClaimedTask(nodeIdentity.getNodeId());
+        
+        Assert.assertTrue("No task recovered", persistentTaskExecutor.recoverClaimedTasks() > 0);
+        
+        QueuedTaskHolder task = findTask(taskId);
+        Assert.assertNull("Task left by this node still claimed", task.getStartedStamp());
+        Assert.assertNull("Task left by this node still claimed", task.getNodeId());
+    }
+    
+    /**
+     * Checks that a node id file is only reused once released by the node
+     * that had it.
+     */
+    @Test
+    public void testNodeIdFileIsExclusive() throws Exception {
+        
+        File idFile = File.createTempFile("persistent-executor", ".node");
+        idFile.delete();
+        
+        NodeIdentity first = new NodeIdentity();
+        NodeIdentity second = new NodeIdentity();
+        NodeIdentity restarted = new NodeIdentity();
+        try {
+            first.setIdFile(idFile);
+            Assert.assertNotNull(first.getNodeId());
+            Assert.assertFalse("New node id restored", first.isRestored());
+            
+            second.setIdFile(idFile);
+            Assert.assertFalse("Node id of a live node reused", first.getNodeId().equals(second.getNodeId()));
+            Assert.assertFalse("Node id of a live node restored", second.isRestored());
+            
+            first.destroy();
+            restarted.setIdFile(idFile);
+            Assert.assertEquals("Node id not restored after restart", first.getNodeId(), restarted.getNodeId());
+            Assert.assertTrue("Node id not restored after restart", restarted.isRestored());
+        } finally {
+            first.destroy();
+            second.destroy();
+            restarted.destroy();
+            idFile.delete();
+        }
+    }
+    
+    
+    @Transactional
+    public String persistClaimedTask(String nodeId) {
+        QueuedTaskHolder task = new QueuedTaskHolder();
+        task.setTaskType(SimpleTask.class.getName());
+        task.setSerializedTask(serializer.serializeObject(new SimpleTask("" + System.nanoTime())));
+        task.setStartedStamp(Calendar.getInstance());
+        task.setNodeId(nodeId);
+        queuedTaskDao.persist(task);
+        return task.getId();
+    }
+    
+    @Transactional
+    public String enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+        return task.getQueuedTaskId();
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks the local fast path: a task enqueued while the local workers have
+ * idle threads runs on this node right after its transaction commits, and
+ * never if it rolls back.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class LocalExecutionIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    
+    /**
+     * The task instances that ran, by their data.
+     */
+    private static final Map<String, LocalTask> executed = new ConcurrentHashMap<String, LocalTask>();
+    
+    
+    public static class LocalTask extends AbstractBaseTask {
+
+        public LocalTask(String data) {
+            super();
+            this.data = data;
+        }
+        
+        private final String data;
+        
+        @Override
+        public void doTaskInTransaction() {
+            executed.put(this.data, this);
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues a task and checks that it runs well before the next runner
+     * poll, and that the instance run is the enqueued one: the runners would
+     * have deserialized a copy from the queue.
+     */
+    @Test
+    public void testLocalExecution() throws InterruptedException {
+        
+        String data = "local-" + System.nanoTime();
+        LocalTask task = new LocalTask(data);
+        
+        enqueueTask(task);
+        
+        int tries = 0;
+        while (tries < 100 && !executed.containsKey(data)) {
+            Thread.sleep(100); // 0.1 seconds
+            tries++;
+        }
+        Assert.assertTrue("Task didn't execute in 10 seconds time", tries < 100);
+        Assert.assertSame("Task not run by the enqueuing node", task, executed.get(data));
+    }
+    
+    
+    /**
+     * Enqueues a task in a transaction that is rolled back, and checks that
+     * it never runs nor is left in the queue.
+     */
+    @Test
+    public void testRolledBackLocalExecution() throws InterruptedException {
+        
+        String data = "local-" + System.nanoTime();
+        LocalTask task = new LocalTask(data);
+        
+        try {
+            enqueueTaskAndRollback(task);
+            Assert.fail("Enqueuing transaction wasn't rolled back");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        Thread.sleep(5000);
+        Assert.assertFalse("Rolled back task was executed", executed.containsKey(data));
+        Assert.assertNull("Rolled back task left in the queue", findTask(task.getQueuedTaskId()));
+    }
+    
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+    }
+    
+    @Transactional
+    public void enqueueTaskAndRollback(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+        throw new IllegalStateException("Rolling back the enqueue");
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.PayloadStoreFileSystem;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that tasks bigger than {@link Constants#TASK_PAYLOAD_THRESHOLD} are
+ * run from the payload store, and the behavior of the file system store.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class PayloadStoreIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Stores a {@link DummyEntity} with the given data, carrying a padding
+     * that doesn't fit in the queue row.
+     */
+    @Configurable
+    public static class BigTask extends AbstractBaseTask {
+
+        @Autowired
+        private transient DummyEntityDao dummyEntityDao;
+        
+        public BigTask(String data) {
+            super();
+            this.data = data;
+            this.padding = new byte[2 * Constants.TASK_PAYLOAD_THRESHOLD];
+            Arrays.fill(this.padding, (byte)7);
+        }
+        
+        private final String data;
+        private final byte[] padding;
+        
+        @Override
+        public void doTaskInTransaction() {
+            for ( byte b : this.padding ) {
+                if ( b != 7 ) {
+                    throw new IllegalStateException("Corrupted payload");
+                }
+            }
+            DummyEntity de = new DummyEntity();
+            de.setData(data);
+            dummyEntityDao.persist(de);
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues a big task and waits for 3 minutes for it to be executed.
+     */
+    @Test
+    public void testBigTask() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        enqueueTask(new BigTask(data));
+        
+        int tries = 0;
+        while (tries < 180 && !pollDummyEntity(data)) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Big task didn't execute in 3 minutes time", tries < 180);
+    }
+    
+    /**
+     * Stores, loads and deletes a payload in a file system store.
+     */
+    @Test
+    public void testFileSystemStore() throws Exception {
+        
+        PayloadStoreFileSystem store = new PayloadStoreFileSystem();
+        store.setDirectory(newPayloadDirectory());
+        byte[] payload = new byte[3 * Constants.TASK_PAYLOAD_THRESHOLD + 1];
+        Arrays.fill(payload, (byte)3);
+        
+        String reference = store.store(payload);
+        Assert.assertTrue("Payload loaded with different contents", Arrays.equals(payload, store.load(reference)));
+        
+        store.delete(reference);
+        try {
+            store.load(reference);
+            Assert.fail("Deleted payload could still be loaded");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Stores a payload in a transaction that is rolled back, and checks that
+     * its file is removed.
+     */
+    @Test
+    public void testFileSystemStoreRollback() throws Exception {
+        
+        File directory = newPayloadDirectory();
+        PayloadStoreFileSystem store = new PayloadStoreFileSystem();
+        store.setDirectory(directory);
+        
+        try {
+            storeAndRollback(store, new byte[] { 1, 2, 3 });
+            Assert.fail("Storing transaction wasn't rolled back");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        Assert.assertEquals("Rolled back payload was kept", 0, directory.listFiles().length);
+    }
+    
+    
+    private File newPayloadDirectory() throws Exception {
+        File directory = File.createTempFile("payloads", "");
+        directory.delete();
+        return directory;
+    }
+    
+    @Transactional
+    public void storeAndRollback(PayloadStoreFileSystem store, byte[] payload) {
+        store.store(payload);
+        throw new IllegalStateException("Rolling back the store");
+    }
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.DummyEntityDao;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that calls to {@link PersistentAsync} methods are enqueued, and that
+ * the worker later invokes them, also on beans that were already proxied.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class PersistentAsyncIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    private static final String RECORDER_BEAN = "jdkProxiedRecorder";
+    
+    @Autowired
+    private PersistentAsyncAnnotationBeanPostProcessor postProcessor;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Stores {@link DummyEntity}s.
+     */
+    public static interface Recorder {
+        void record(String data);
+    }
+    
+    /**
+     * Stores the data asynchronously.
+     */
+    public static class AsyncRecorder implements Recorder {
+
+        private final DummyEntityDao dummyEntityDao;
+        
+        public AsyncRecorder(DummyEntityDao dummyEntityDao) {
+            this.dummyEntityDao = dummyEntityDao;
+        }
+        
+        @Override
+        @PersistentAsync
+        public void record(String data) {
+            DummyEntity de = new DummyEntity();
+            de.setData(data);
+            this.dummyEntityDao.persist(de);
+        }
+        
+    }
+    
+    
+    /**
+     * Registers a recorder that is a JDK proxy before being post processed,
+     * as happens to beans advised by interface.
+     */
+    @Before
+    public void registerRecorder() {
+        ConfigurableListableBeanFactory beanFactory = ((ConfigurableApplicationContext)applicationContext).getBeanFactory();
+        if ( beanFactory.containsBean(RECORDER_BEAN) ) {
+            return;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(new AsyncRecorder(this.dummyEntityDao));
+        proxyFactory.addInterface(Recorder.class);
+        Object recorder = proxyFactory.getProxy();
+        Assert.assertTrue(AopUtils.isJdkDynamicProxy(recorder));
+        beanFactory.registerSingleton(RECORDER_BEAN, this.postProcessor.postProcessAfterInitialization(recorder, RECORDER_BEAN));
+    }
+    
+    
+    /**
+     * Calls a persistent async method of a JDK proxied bean, checks that it
+     * didn't run in the calling transaction and waits for 3 minutes for it to
+     * be executed.
+     */
+    @Test
+    public void testProxiedBeanMethod() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        Assert.assertFalse("Persistent async method ran in the caller", recordAndPoll(data));
+        
+        int tries = 0;
+        while (tries < 180 && !pollDummyEntity(data)) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Persistent async method didn't execute in 3 minutes time", tries < 180);
+    }
+    
+    
+    @Transactional
+    public boolean recordAndPoll(String data) {
+        ((Recorder)applicationContext.getBean(RECORDER_BEAN)).record(data);
+        return pollDummyEntity(data);
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that the tasks claimed by a runner are handed to the local workers
+ * through the prefetch queue, and run exactly once.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class PipelineIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    
+    /**
+     * Executions of each task, by its data.
+     */
+    private static final Map<String, AtomicInteger> executions = new ConcurrentHashMap<String, AtomicInteger>();
+    
+    /**
+     * Threads that ran each task, by its data.
+     */
+    private static final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+    
+    
+    /**
+     * Takes a while, so the local workers get busy and the prefetch queue
+     * fills up.
+     */
+    public static class PipelinedTask extends AbstractBaseTask {
+
+        public PipelinedTask(String data) {
+            super();
+            this.data = data;
+        }
+        
+        private final String data;
+        
+        @Override
+        public void doTaskInTransaction() {
+            executions.get(this.data).incrementAndGet();
+            threads.put(this.data, Thread.currentThread().getName());
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues more tasks than the local workers and the prefetch queue can
+     * hold, so they skip the local fast path, and runs a runner on this
+     * thread. Checks that the workers executed some of them, and that each
+     * ran once.
+     */
+    @Test
+    public void testPipelinedExecution() throws InterruptedException {
+        
+        int numTasks = Constants.TASK_PIPELINE_DEPTH * 2;
+        
+        // Due in a second, so they aren't run locally when enqueued
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.SECOND, 1);
+        for ( int i = 0; i < numTasks; i++ ) {
+            String data = "pipelined-" + i;
+            executions.put(data, new AtomicInteger());
+            PipelinedTask task = new PipelinedTask(data);
+            task.setTriggerStamp(trigger);
+            enqueueTask(task);
+        }
+        Thread.sleep(trigger.getTimeInMillis() - System.currentTimeMillis() + 500);
+        
+        this.persistentTaskExecutor.runner();
+        
+        int tries = 0;
+        while (tries < 180 && threads.size() < numTasks) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Tasks didn't execute in 3 minutes time", tries < 180);
+        
+        // Let any duplicate execution show up
+        Thread.sleep(1000);
+        
+        String runnerThread = Thread.currentThread().getName();
+        int onWorkers = 0;
+        for ( int i = 0; i < numTasks; i++ ) {
+            String data = "pipelined-" + i;
+            Assert.assertEquals("Task " + data + " not run once", 1, executions.get(data).get());
+            if ( !runnerThread.equals(threads.get(data)) ) {
+                onWorkers++;
+            }
+        }
+        Assert.assertTrue("No task handed off to the local workers", onWorkers > 0);
+    }
+    
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.Calendar;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.QueueDepth.State;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that the queue depths follow a task as it goes from delayed to
+ * ready and completed.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class QueueDepthIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueueDepthMonitor queueDepthMonitor;
+    
+    
+    /**
+     * Does nothing, only enqueued by this test so its depths are its own.
+     */
+    public static class CountedTask extends AbstractBaseTask {
+
+        @Override
+        public void doTaskInTransaction() {
+            // Nothing to do
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues a task for 10 seconds in the future, and checks that it's
+     * counted as delayed until then, and as completed once run.
+     */
+    @Test
+    public void testDelayedTaskDepth() throws InterruptedException {
+        
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.SECOND, 10);
+        CountedTask task = new CountedTask();
+        task.setTriggerStamp(trigger);
+        enqueueTask(task);
+        
+        QueueDepth depth = currentDepth();
+        Assert.assertEquals("Task not counted as delayed: " + depth, 1, depth.getCount(State.DELAYED));
+        Assert.assertEquals(0, depth.getCount(State.READY));
+        Assert.assertEquals(1, depth.getPending());
+        
+        Thread.sleep(trigger.getTimeInMillis() - System.currentTimeMillis() + 1000);
+        
+        depth = currentDepth();
+        Assert.assertEquals("Due task still counted as delayed: " + depth, 0, depth.getCount(State.DELAYED));
+        Assert.assertEquals(1, depth.getCount(State.READY) + depth.getCount(State.RUNNING) + depth.getCount(State.COMPLETED));
+        
+        int tries = 0;
+        while (tries < 180 && currentDepth().getCount(State.COMPLETED) == 0) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Task didn't execute in 3 minutes time", tries < 180);
+        
+        depth = currentDepth();
+        Assert.assertEquals("Completed task still counted as pending: " + depth, 0, depth.getPending());
+    }
+    
+    
+    /**
+     * @return The depth of the tasks of this test, once the counter changes
+     *         of this node are written.
+     */
+    private QueueDepth currentDepth() {
+        this.queueDepthMonitor.flush();
+        for ( QueueDepth depth : this.queueDepthMonitor.getQueueDepths() ) {
+            if ( CountedTask.class.getName().equals(depth.getTaskType()) ) {
+                return depth;
+            }
+        }
+        return new QueueDepth(CountedTask.class.getName());
+    }
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+    }
+}
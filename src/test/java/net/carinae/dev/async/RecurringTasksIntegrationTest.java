@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.TasksIntegrationTest.SimpleTask;
+import net.carinae.dev.async.dao.DummyEntityDao;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that recurring tasks are enqueued on each occurrence.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class RecurringTasksIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private RecurringTaskScheduler recurringTaskScheduler;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    /**
+     * Schedules a simple task every 20 seconds and waits for 4 minutes for
+     * two of its occurrences to be executed.
+     */
+    @Test
+    public void testFixedRateTask() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        recurringTaskScheduler.scheduleAtFixedRate("test-" + data, new SimpleTask(data), 20000);
+        
+        int tries = 0;
+        while (tries < 240 && countDummyEntities(data) < 2) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Recurring task didn't execute twice in 4 minutes time", tries < 240);
+    }
+    
+    
+    @Transactional
+    public int countDummyEntities(String data) {
+        return this.dummyEntityDao.findByData(data).size();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.task.TaskLimits;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that the per type limits are enforced.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class TaskLimitsIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Qualifier("PersistentExecutor")
+    @Autowired
+    private TaskExecutor taskExecutor;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    protected static final AtomicInteger running = new AtomicInteger();
+    protected static final AtomicInteger maxRunning = new AtomicInteger();
+    
+    
+    /**
+     * Stores a {@link DummyEntity} with the given data after a while, keeping
+     * track of how many of them run at the same time.
+     */
+    @Configurable
+    @TaskLimits(maxConcurrency=1)
+    public static class SerialTask extends AbstractBaseTask {
+
+        @Autowired
+        private transient DummyEntityDao dummyEntityDao;
+        
+        public SerialTask(String data) {
+            super();
+            this.data = data;
+        }
+        
+        private final String data;
+        
+        @Override
+        public void doTaskInTransaction() {
+            int now = running.incrementAndGet();
+            try {
+                int max;
+                while ( (max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now) );
+                Thread.sleep(2000);
+                DummyEntity de = new DummyEntity();
+                de.setData(data);
+                dummyEntityDao.persist(de);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues two tasks of a type limited to one at a time, and waits for 3
+     * minutes for both to be executed, one after the other.
+     */
+    @Test
+    public void testMaxConcurrency() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        
+        enqueueSerialTasks(data, 2);
+        
+        int tries = 0;
+        while (tries < 180 && !(pollDummyEntity(data + "-0") && pollDummyEntity(data + "-1"))) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        
+        Assert.assertTrue("Limited tasks didn't execute in 3 minutes time", tries < 180);
+        Assert.assertEquals("Limited tasks ran concurrently", 1, maxRunning.get());
+    }
+    
+    
+    /**
+     * Sets limits for a type with tasks already running, and checks that they
+     * count against the new limits.
+     */
+    @Test
+    public void testSetLimitsKeepsRunning() {
+        
+        TaskTypeLimiter limiter = new TaskTypeLimiter();
+        String taskType = SimpleRunnable.class.getName();
+        
+        Assert.assertTrue(limiter.tryAcquire(taskType));
+        Assert.assertTrue(limiter.tryAcquire(taskType));
+        
+        limiter.setLimits(SimpleRunnable.class, 2, 0);
+        Assert.assertFalse("Running tasks lost by the new limits", limiter.tryAcquire(taskType));
+        limiter.release(taskType);
+        Assert.assertTrue(limiter.tryAcquire(taskType));
+        
+        limiter.setLimits(SimpleRunnable.class, 3, 0);
+        Assert.assertTrue(limiter.tryAcquire(taskType));
+        Assert.assertFalse(limiter.tryAcquire(taskType));
+    }
+    
+    
+    /**
+     * Checks that a batch gets no more rate tokens than available, and that
+     * the unused ones can be given back.
+     */
+    @Test
+    public void testBatchRate() {
+        
+        TaskTypeLimiter limiter = new TaskTypeLimiter();
+        String taskType = SimpleRunnable.class.getName();
+        limiter.setLimits(SimpleRunnable.class, 0, 5);
+        
+        Assert.assertEquals(5, limiter.tryAcquireRate(taskType, 100));
+        Assert.assertTrue(limiter.getSaturatedTypes().contains(taskType));
+        limiter.returnRate(taskType, 2);
+        Assert.assertEquals(2, limiter.tryAcquireRate(taskType, 100));
+    }
+    
+    
+    /**
+     * A type without annotated limits.
+     */
+    public static class SimpleRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+    
+    
+    @Transactional
+    public void enqueueSerialTasks(String data, int count) {
+        for ( int i = 0; i < count; i++ ) {
+            taskExecutor.execute(new SerialTask(data + "-" + i));
+        }
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDaoJDBC;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Runs the task scheduling checks of {@link TasksIntegrationTest} on top of
+ * the plain JDBC queue DAO.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTestJdbc.xml"}, inheritLocations=false )
+public class TasksIntegrationJdbcTest extends TasksIntegrationTest {
+
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    
+    /**
+     * Checks that the JDBC DAO is the one in use.
+     */
+    @Test
+    public void testJdbcDaoSelected() {
+        Assert.assertTrue("Not using the JDBC DAO: " + queuedTaskDao.getClass(), queuedTaskDao instanceof QueuedTaskHolderDaoJDBC);
+    }
+    
+}
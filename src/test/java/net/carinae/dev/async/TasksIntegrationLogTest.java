@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDaoLog;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Runs the task scheduling checks of {@link TasksIntegrationTest} on top of
+ * the embedded log queue DAO, and checks that its queue survives a restart
+ * and a compaction.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTestLog.xml"}, inheritLocations=false )
+public class TasksIntegrationLogTest extends TasksIntegrationTest {
+
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    
+    /**
+     * Checks that the log DAO is the one in use.
+     */
+    @Test
+    public void testLogDaoSelected() {
+        Assert.assertTrue("Not using the log DAO: " + queuedTaskDao.getClass(), queuedTaskDao instanceof QueuedTaskHolderDaoLog);
+    }
+    
+    /**
+     * Leaves a ready, a claimed, a completed and a waiting task in a log, and
+     * checks that a new DAO on the same directory recovers them.
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        
+        File directory = newLogDirectory();
+        QueuedTaskHolderDaoLog dao = openLog(directory, Constants.TASK_LOG_COMPACTION_THRESHOLD);
+        
+        QueuedTaskHolder ready = newTask();
+        dao.persist(ready);
+        
+        QueuedTaskHolder claimed = newTask();
+        dao.persist(claimed);
+        Assert.assertTrue(dao.markStarted(claimed, Calendar.getInstance(), "other-node"));
+        
+        QueuedTaskHolder completed = newTask();
+        dao.persist(completed);
+        Assert.assertTrue(dao.markStarted(completed, Calendar.getInstance(), "other-node"));
+        Assert.assertTrue(dao.markCompleted(completed.getId(), completed.getVersion(), Calendar.getInstance()));
+        
+        QueuedTaskHolder waiting = newTask();
+        dao.persistDependencies(waiting, Collections.singleton(ready.getId()));
+        dao.persist(waiting);
+        
+        dao.destroy();
+        
+        QueuedTaskHolderDaoLog recovered = openLog(directory, Constants.TASK_LOG_COMPACTION_THRESHOLD);
+        try {
+            Assert.assertNotNull(recovered.findById(ready.getId()));
+            Assert.assertEquals("other-node", recovered.findById(claimed.getId()).getNodeId());
+            Assert.assertNotNull(recovered.findById(completed.getId()).getCompletedStamp());
+            Assert.assertEquals(1, recovered.findById(waiting.getId()).getPendingParents());
+            Assert.assertEquals("Only the ready task can be claimed", ready.getId(),
+                    recovered.findNextTaskForExecution(Collections.<String>emptyList(), null).getId());
+        } finally {
+            recovered.destroy();
+        }
+    }
+    
+    /**
+     * Completes most of the tasks of a log that compacts on every change, and
+     * checks that the first segment was replaced and the queue recovered from
+     * the snapshot.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        
+        File directory = newLogDirectory();
+        QueuedTaskHolderDaoLog dao = openLog(directory, 1);
+        
+        List<QueuedTaskHolder> tasks = new ArrayList<QueuedTaskHolder>();
+        for ( int i = 0; i < 50; i++ ) {
+            QueuedTaskHolder task = newTask();
+            dao.persist(task);
+            tasks.add(task);
+        }
+        for ( QueuedTaskHolder task : tasks.subList(0, 40) ) {
+            Assert.assertTrue(dao.markStarted(task, Calendar.getInstance(), "other-node"));
+            Assert.assertTrue(dao.markCompleted(task.getId(), task.getVersion(), Calendar.getInstance()));
+        }
+        dao.destroy();
+        
+        Assert.assertFalse("First log segment wasn't compacted", new File(directory, String.format("%019d.journal", 0)).exists());
+        
+        QueuedTaskHolderDaoLog recovered = openLog(directory, 1);
+        try {
+            for ( QueuedTaskHolder task : tasks.subList(0, 40) ) {
+                Assert.assertNotNull(recovered.findById(task.getId()).getCompletedStamp());
+            }
+            for ( QueuedTaskHolder task : tasks.subList(40, 50) ) {
+                QueuedTaskHolder pending = recovered.findById(task.getId());
+                Assert.assertNull(pending.getStartedStamp());
+                Assert.assertEquals("ready-" + task.getId(), new String(pending.getSerializedTask(), "UTF-8"));
+            }
+        } finally {
+            recovered.destroy();
+        }
+    }
+    
+    
+    /**
+     * Completes some tasks long before the retention period, and checks that
+     * compacting the log drops them and keeps the rest.
+     */
+    @Test
+    public void testCompletedRetention() throws Exception {
+        
+        File directory = newLogDirectory();
+        QueuedTaskHolderDaoLog dao = openLog(directory, 1);
+        
+        Calendar longAgo = Calendar.getInstance();
+        longAgo.add(Calendar.DAY_OF_MONTH, -2);
+        
+        QueuedTaskHolder old = newTask();
+        dao.persist(old);
+        Assert.assertTrue(dao.markStarted(old, Calendar.getInstance(), "other-node"));
+        Assert.assertTrue(dao.markCompleted(old.getId(), old.getVersion(), longAgo));
+        
+        QueuedTaskHolder recent = newTask();
+        dao.persist(recent);
+        Assert.assertTrue(dao.markStarted(recent, Calendar.getInstance(), "other-node"));
+        Assert.assertTrue(dao.markCompleted(recent.getId(), recent.getVersion(), Calendar.getInstance()));
+        
+        QueuedTaskHolder pending = newTask();
+        dao.persist(pending);
+        dao.destroy();
+        
+        // Compacts on startup
+        QueuedTaskHolderDaoLog recovered = openLog(directory, 1);
+        try {
+            Assert.assertNull("Task completed before the retention period was kept", recovered.findById(old.getId()));
+            Assert.assertNotNull(recovered.findById(recent.getId()).getCompletedStamp());
+            Assert.assertNotNull(recovered.findById(pending.getId()));
+        } finally {
+            recovered.destroy();
+        }
+    }
+    
+    
+    private File newLogDirectory() throws Exception {
+        File directory = File.createTempFile("task-log", "");
+        directory.delete();
+        return directory;
+    }
+    
+    private QueuedTaskHolderDaoLog openLog(File directory, long compactionThreshold) throws Exception {
+        QueuedTaskHolderDaoLog dao = new QueuedTaskHolderDaoLog();
+        dao.setDirectory(directory);
+        dao.setCompactionThreshold(compactionThreshold);
+        dao.afterPropertiesSet();
+        return dao;
+    }
+    
+    private QueuedTaskHolder newTask() throws Exception {
+        QueuedTaskHolder task = new QueuedTaskHolder();
+        task.setTaskType("test.LoggedTask");
+        task.setSerializedTask(("ready-" + task.getId()).getBytes("UTF-8"));
+        return task;
+    }
+}
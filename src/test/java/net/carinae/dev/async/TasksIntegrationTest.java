@@ -15,10 +15,16 @@
  */
 package net.carinae.dev.async;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
 import net.carinae.dev.async.task.AbstractBaseTask;
 
 import org.junit.Test;
@@ -44,9 +50,15 @@ public class TasksIntegrationTest extends AbstractJUnit4SpringContextTests {
     @Autowired
     private TaskExecutor taskExecutor;
     
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
     @Autowired
     private DummyEntityDao dummyEntityDao;
     
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
     protected static volatile boolean simpleTaskCompleted = false;
     
     
@@ -116,7 +128,114 @@ public class TasksIntegrationTest extends AbstractJUnit4SpringContextTests {
         
         Assert.assertTrue("Scheduled task didn't execute in 5 minutes time", tries < 300);
     }
+
+    /**
+     * Submits a simple task and waits for 3 minutes for its handle to be
+     * done.
+     */
+    @Test
+    public void testSubmittedSimpleTask() throws Exception {
+        
+        String data = "" + System.nanoTime();
+        
+        Future<Void> future = submitSimpleTask(data);
+        future.get(3, TimeUnit.MINUTES);
+        
+        Assert.assertTrue("Task completed but its data is not there", pollDummyEntity(data));
+    }
+    
+    /**
+     * Submits a simple task in a transaction that is rolled back, and checks
+     * that its handle fails instead of waiting forever.
+     */
+    @Test
+    public void testRolledBackSubmittedTask() throws Exception {
+        
+        String data = "" + System.nanoTime();
+        
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            submitSimpleTaskAndRollback(data, futures);
+            Assert.fail("Enqueuing transaction wasn't rolled back");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        try {
+            futures.get(0).get(10, TimeUnit.SECONDS);
+            Assert.fail("Handle of a rolled back task didn't fail");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        Assert.assertFalse("Rolled back task was executed", pollDummyEntity(data));
+    }
+    
+    
+    /**
+     * Claims a delayed task, frees it and claims it again, as another node
+     * would, and checks that the first claim can't complete it anymore: its
+     * completion fails and the task transaction is rolled back.
+     */
+    @Test
+    public void testCompletionFence() {
+        
+        String data = "" + System.nanoTime();
+        SimpleTask task = new SimpleTask(data);
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.HOUR, 1);
+        task.setTriggerStamp(trigger);
+        enqueueTask(task);
+        
+        claimTask(task.getQueuedTaskId());
+        int claimedVersion = findTask(task.getQueuedTaskId()).getVersion();
+        Assert.assertTrue(freeTask(task.getQueuedTaskId(), claimedVersion));
+        claimTask(task.getQueuedTaskId());
+        int reclaimedVersion = findTask(task.getQueuedTaskId()).getVersion();
+        Assert.assertTrue("Version not bumped", reclaimedVersion != claimedVersion);
+        
+        Assert.assertFalse("Completed with a stale claim", completeTask(task.getQueuedTaskId(), claimedVersion));
+        
+        task.setQueuedTaskVersion(claimedVersion);
+        task.run();
+        Assert.assertFalse("Task with a stale claim completed", task.isCompleted());
+        Assert.assertFalse("Transaction of a task with a stale claim committed", pollDummyEntity(data));
+        
+        QueuedTaskHolder current = findTask(task.getQueuedTaskId());
+        Assert.assertNull(current.getCompletedStamp());
+        Assert.assertEquals("Current claim changed", reclaimedVersion, current.getVersion());
+        
+        Assert.assertTrue(completeTask(task.getQueuedTaskId(), reclaimedVersion));
+    }
+    
+    
+    @Transactional
+    public void enqueueTask(AbstractBaseTask task) {
+        taskExecutor.execute(task);
+    }
+    
+    /**
+     * Claims a task for another node, as the runner would.
+     */
+    @Transactional
+    public void claimTask(String taskId) {
+        QueuedTaskHolder queuedTask = this.queuedTaskDao.findById(taskId);
+        Assert.assertTrue(this.queuedTaskDao.markStarted(queuedTask, Calendar.getInstance(), "other-node"));
+    }
     
+    @Transactional
+    public boolean freeTask(String taskId, int version) {
+        return this.queuedTaskDao.markFree(taskId, version);
+    }
+    
+    @Transactional
+    public boolean completeTask(String taskId, int version) {
+        return this.queuedTaskDao.markCompleted(taskId, version, Calendar.getInstance());
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
     
     @Transactional
     public void enqueueSimpleTask(String data) {
@@ -132,6 +251,17 @@ public class TasksIntegrationTest extends AbstractJUnit4SpringContextTests {
         taskExecutor.execute(st);
     }
     
+    @Transactional
+    public Future<Void> submitSimpleTask(String data) {
+        return persistentTaskExecutor.submit(new SimpleTask(data));
+    }
+    
+    @Transactional
+    public void submitSimpleTaskAndRollback(String data, List<Future<Void>> futures) {
+        futures.add(persistentTaskExecutor.submit(new SimpleTask(data)));
+        throw new IllegalStateException("Rolling back the enqueue");
+    }
+    
     @Transactional
     public boolean pollDummyEntity(String data) {
         return !this.dummyEntityDao.findByData(data).isEmpty();
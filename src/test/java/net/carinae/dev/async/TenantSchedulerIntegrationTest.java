@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that the claims are shared among the tenants with ready tasks, so
+ * a big backlog doesn't hold back the tasks of a small tenant.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class TenantSchedulerIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private TenantScheduler tenantScheduler;
+    
+    
+    /**
+     * Tenants of the tasks, in the order they started.
+     */
+    private static final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    
+    
+    /**
+     * Records its tenant when it starts, and takes a while.
+     */
+    public static class TenantTask extends AbstractBaseTask {
+
+        @Override
+        public void doTaskInTransaction() {
+            started.add(getTenant());
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Checks the turns of a scheduler of its own: each tenant claims as many
+     * tasks as its weight, and a drained one loses its turns.
+     */
+    @Test
+    public void testTurns() {
+        
+        TenantScheduler scheduler = new TenantScheduler();
+        Assert.assertNull("Restricted without tenants", scheduler.nextTenant());
+        
+        scheduler.claimed("a");
+        Assert.assertNull("Restricted with a single tenant", scheduler.nextTenant());
+        
+        scheduler.claimed("b");
+        scheduler.setWeight("a", 2);
+        
+        Assert.assertEquals("a", scheduler.nextTenant());
+        scheduler.claimed("a");
+        Assert.assertEquals("a", scheduler.nextTenant());
+        scheduler.claimed("a");
+        Assert.assertEquals("b", scheduler.nextTenant());
+        scheduler.claimed("b");
+        Assert.assertEquals("a", scheduler.nextTenant());
+        scheduler.claimed("a");
+        
+        scheduler.drained("a");
+        Assert.assertNull("Restricted after the other tenant drained", scheduler.nextTenant());
+        
+        // Tasks without tenant take turns as the default one
+        scheduler.claimed(null);
+        Assert.assertEquals("b", scheduler.nextTenant());
+        scheduler.claimed("b");
+        Assert.assertEquals(QueuedTaskHolderDao.DEFAULT_TENANT, scheduler.nextTenant());
+    }
+    
+    
+    /**
+     * Enqueues a backlog of 10 tasks for a tenant, and then 2 tasks for
+     * another. Both tasks of the small tenant must start among the first
+     * ones, instead of after the whole backlog.
+     */
+    @Test
+    public void testSmallTenantNotHeldBack() throws InterruptedException {
+        
+        // Due in a second, so they aren't run locally when enqueued
+        Calendar trigger = Calendar.getInstance();
+        trigger.add(Calendar.SECOND, 1);
+        List<AbstractBaseTask> tasks = new ArrayList<AbstractBaseTask>();
+        for ( int i = 0; i < 12; i++ ) {
+            TenantTask task = new TenantTask();
+            task.setTenant(i < 10 ? "big" : "small");
+            task.setTriggerStamp(trigger);
+            tasks.add(task);
+        }
+        enqueueTasks(tasks);
+        Thread.sleep(trigger.getTimeInMillis() - System.currentTimeMillis() + 500);
+        
+        this.tenantScheduler.refresher();
+        this.persistentTaskExecutor.runner();
+        
+        int tries = 0;
+        while (tries < 180 && started.size() < 12) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Tasks didn't execute in 3 minutes time", tries < 180);
+        
+        List<String> first = new ArrayList<String>(started.subList(0, 6));
+        Assert.assertEquals("Small tenant held back: " + started, 2, Collections.frequency(first, "small"));
+    }
+    
+    
+    @Transactional
+    public void enqueueTasks(List<AbstractBaseTask> tasks) {
+        for ( AbstractBaseTask task : tasks ) {
+            persistentTaskExecutor.execute(task);
+        }
+    }
+}
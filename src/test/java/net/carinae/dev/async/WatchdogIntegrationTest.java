@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.dao.DummyEntityDao;
+import net.carinae.dev.async.dao.QueuedTaskHolderDao;
+import net.carinae.dev.async.task.AbstractBaseTask;
+import net.carinae.dev.async.task.TaskTimeout;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Checks that a task ignoring its timeout is freed and retried, and that the
+ * hung execution can't complete it once freed.
+ * 
+ * @author Carlos Vara
+ */
+@ContextConfiguration( locations={"classpath:META-INF/spring/applicationContextTest.xml"} )
+public class WatchdogIntegrationTest extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    private PersistentTaskExecutor persistentTaskExecutor;
+    
+    @Autowired
+    private QueuedTaskHolderDao queuedTaskDao;
+    
+    @Autowired
+    private DummyEntityDao dummyEntityDao;
+    
+    
+    private static final AtomicInteger attempts = new AtomicInteger();
+    
+    private static volatile boolean hungExited = false;
+    
+    private static volatile boolean retriedWhileHung = false;
+    
+    
+    /**
+     * Persists an entity per attempt. The first one ignores interruptions and
+     * hangs for 8 seconds, well over its timeout.
+     */
+    @TaskTimeout(1000)
+    public static class HungTask extends AbstractBaseTask {
+
+        @Autowired
+        private transient DummyEntityDao dummyEntityDao;
+        
+        public HungTask(String data) {
+            super();
+            this.data = data;
+        }
+        
+        private final String data;
+        
+        @Override
+        public void doTaskInTransaction() {
+            int attempt = attempts.incrementAndGet();
+            DummyEntity de = new DummyEntity();
+            de.setData(this.data + "-" + attempt);
+            dummyEntityDao.persist(de);
+            
+            if ( attempt == 1 ) {
+                long end = System.currentTimeMillis() + 8000;
+                while ( System.currentTimeMillis() < end ) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        // Ignored on purpose
+                    }
+                }
+                hungExited = true;
+            }
+            else if ( !hungExited ) {
+                retriedWhileHung = true;
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Enqueues a task that hangs on its first attempt, waits for the watchdog
+     * to free it and retries it while the first attempt still runs. Only the
+     * retry must be committed.
+     */
+    @Test
+    public void testHungTaskFenced() throws InterruptedException {
+        
+        String data = "" + System.nanoTime();
+        HungTask task = new HungTask(data);
+        String taskId = enqueueTask(task);
+        
+        int tries = 0;
+        while (tries < 180 && attempts.get() == 0) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Task didn't start in 3 minutes time", tries < 180);
+        
+        tries = 0;
+        while (tries < 60 && findTask(taskId).getStartedStamp() != null) {
+            Thread.sleep(100);
+            tries++;
+        }
+        Assert.assertTrue("Hung task not freed", tries < 60);
+        Assert.assertFalse(hungExited);
+        
+        // Retry it right away, not on the next scheduled runner
+        this.persistentTaskExecutor.runner();
+        
+        tries = 0;
+        while (tries < 180 && (!hungExited || findTask(taskId).getCompletedStamp() == null)) {
+            Thread.sleep(1000); // 1 second
+            tries++;
+        }
+        Assert.assertTrue("Task not retried in 3 minutes time", tries < 180);
+        Thread.sleep(1000);
+        
+        Assert.assertTrue("Not retried while the hung attempt ran", retriedWhileHung);
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertFalse("Hung attempt committed", pollDummyEntity(data + "-1"));
+        Assert.assertTrue("Retry not committed", pollDummyEntity(data + "-2"));
+    }
+    
+    
+    @Transactional
+    public String enqueueTask(AbstractBaseTask task) {
+        persistentTaskExecutor.execute(task);
+        return task.getQueuedTaskId();
+    }
+    
+    @Transactional(readOnly=true)
+    public QueuedTaskHolder findTask(String taskId) {
+        return this.queuedTaskDao.findById(taskId);
+    }
+    
+    @Transactional
+    public boolean pollDummyEntity(String data) {
+        return !this.dummyEntityDao.findByData(data).isEmpty();
+    }
+}
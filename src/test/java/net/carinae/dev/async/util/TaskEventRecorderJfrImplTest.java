@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 Carlos Vara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.carinae.dev.async.util;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.Assert;
+import net.carinae.dev.async.util.TaskEventRecorder.Phase;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Checks that the JFR recorder does nothing without JFR, and records the
+ * task events when it is available. The JFR API is reached through
+ * reflection, as the recorder does.
+ * 
+ * @author Carlos Vara
+ */
+public class TaskEventRecorderJfrImplTest {
+
+    /**
+     * Hides the JFR API from the recorder, and checks that nothing is
+     * recorded and nothing fails.
+     */
+    @Test
+    public void testWithoutJfr() {
+        
+        ClassLoader withoutJfr = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if ( name.startsWith("jdk.jfr.") ) {
+                    throw new ClassNotFoundException(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+        TaskEventRecorderJfrImpl recorder = new TaskEventRecorderJfrImpl(withoutJfr);
+        
+        for ( Phase phase : Phase.values() ) {
+            Object event = recorder.begin(phase);
+            Assert.assertNull("Event recorded without JFR: " + phase, event);
+            recorder.commit(event, "test.Task", "task-id", 10, 0);
+        }
+    }
+    
+    
+    /**
+     * Records a claim event while a recording enables it, and checks that it
+     * is in the recording with its fields. Skipped if JFR isn't available.
+     */
+    @Test
+    public void testWithJfr() throws Exception {
+        
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        
+        TaskEventRecorderJfrImpl recorder = new TaskEventRecorderJfrImpl();
+        Assert.assertNull("Event recorded without a recording", recorder.begin(Phase.CLAIM));
+        
+        Object recording = recordingClass.newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, "net.carinae.dev.async.Claim");
+        recordingClass.getMethod("start").invoke(recording);
+        
+        File dump = File.createTempFile("task-events", ".jfr");
+        try {
+            Object event = recorder.begin(Phase.CLAIM);
+            Assert.assertNotNull("Enabled event not recorded", event);
+            recorder.commit(event, "test.Task", "task-id", 10, 2);
+            
+            recordingClass.getMethod("stop").invoke(recording);
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Object path = File.class.getMethod("toPath").invoke(dump);
+            recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+            
+            Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+            Class<?> recordedEvent = Class.forName("jdk.jfr.consumer.RecordedEvent");
+            Class<?> eventType = Class.forName("jdk.jfr.EventType");
+            
+            boolean found = false;
+            for ( Object recorded : (List<?>)recordingFile.getMethod("readAllEvents", pathClass).invoke(null, path) ) {
+                Object type = recordedEvent.getMethod("getEventType").invoke(recorded);
+                if ( !"net.carinae.dev.async.Claim".equals(eventType.getMethod("getName").invoke(type)) ) {
+                    continue;
+                }
+                found = true;
+                Assert.assertEquals("test.Task", recordedEvent.getMethod("getString", String.class).invoke(recorded, "taskClass"));
+                Assert.assertEquals("task-id", recordedEvent.getMethod("getString", String.class).invoke(recorded, "taskId"));
+                Assert.assertEquals(10, recordedEvent.getMethod("getInt", String.class).invoke(recorded, "payloadSize"));
+                Assert.assertEquals(2, recordedEvent.getMethod("getInt", String.class).invoke(recorded, "conflicts"));
+            }
+            Assert.assertTrue("Claim event not in the recording", found);
+            
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            dump.delete();
+        }
+    }
+    
+}